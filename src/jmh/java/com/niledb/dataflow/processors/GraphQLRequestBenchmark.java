@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Per-record cost of building GraphQL requests: the original JsonObject tree against the compiled template writing
+ * into a reused buffer. Run with "-prof gc" to compare allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphQLRequestBenchmark {
+
+	private static final String QUERY = "mutation ($email: String, $firstName: String, $lastName: String, $age: Int) {\n"
+			+ "  Customers_CustomerCreate(entity: { email: $email firstName: $firstName lastName: $lastName age: $age }) { id }\n"
+			+ "}";
+
+	private static final int BATCH_SIZE = 50;
+
+	private MockFlowFile flowFile;
+	private List<MockFlowFile> flowFiles;
+	private GraphQLRequestTemplate template;
+	private JsonBuffer buffer;
+
+	@Setup
+	public void setup() {
+		flowFiles = new ArrayList<>();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			MockFlowFile flowFile = new MockFlowFile(i);
+			HashMap<String, String> attributes = new HashMap<>();
+			attributes.put("email", "customer" + i + "@niledb.com");
+			attributes.put("firstName", "José");
+			attributes.put("lastName", "O'Donnell \"Jr\"");
+			attributes.put("age", String.valueOf(20 + i));
+			flowFile.putAttributes(attributes);
+			flowFiles.add(flowFile);
+		}
+		flowFile = flowFiles.get(0);
+		template = GraphQLRequestTemplate.compile("email, firstName, lastName, age:number", QUERY);
+		buffer = new JsonBuffer();
+	}
+
+	/**
+	 * The request building of the original processor: tokenizing the attribute names and encoding a JsonObject.
+	 */
+	@Benchmark
+	public byte[] jsonObject() {
+		JsonObject variables = new JsonObject();
+		StringTokenizer attributes = new StringTokenizer("email,firstName,lastName,age", ",");
+		while (attributes.hasMoreTokens()) {
+			String attributeName = attributes.nextToken().trim();
+			variables.put(attributeName, flowFile.getAttribute(attributeName));
+		}
+		return new JsonObject()
+				.put("query", QUERY)
+				.put("variables", variables)
+				.encode()
+				.getBytes();
+	}
+
+	@Benchmark
+	public int template() {
+		buffer.reset();
+		template.writeRequest(buffer, null, flowFile);
+		return buffer.size();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int templateAliasedBatch() {
+		buffer.reset();
+		buffer.writeRaw("{\"query\":").writeString(template.getMergedQuery(BATCH_SIZE)).writeRaw(",\"variables\":{");
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			if (i > 0) {
+				buffer.write(',');
+			}
+			template.writeVariables(buffer, GraphQLBatch.prefix(i), flowFiles.get(i));
+		}
+		buffer.writeRaw("}}");
+		return buffer.size();
+	}
+}
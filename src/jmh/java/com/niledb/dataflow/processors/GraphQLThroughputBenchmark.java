@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.Vertx;
+
+/**
+ * End-to-end throughput of the GraphQL processor, in FlowFiles per second, against the local stand-in for NileDB Core
+ * of the tests, which answers every operation without doing any work, so that the numbers measure the processor and
+ * the HTTP stack rather than a server. Both the stub and the client share the machine, so compare runs on the same one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GraphQLThroughputBenchmark {
+
+	private static final String QUERY = "mutation ($email: String, $firstName: String, $lastName: String, $age: Int) {\n"
+			+ "  Customers_CustomerCreate(entity: { email: $email firstName: $firstName lastName: $lastName age: $age }) { id }\n"
+			+ "}";
+
+	private static final int FLOWFILES = 1000;
+
+	@Param({ "synchronous", "asynchronous" })
+	public String executionMode;
+
+	@Param({ "1", "50" })
+	public int batchSize;
+
+	@Param({ "aliased", "array" })
+	public String batchMode;
+
+	private Vertx vertx;
+	private GraphQL processor;
+	private TestRunner runner;
+	private List<Map<String, String>> attributes;
+
+	@Setup
+	public void setup() throws Exception {
+		vertx = Vertx.vertx();
+		processor = new GraphQL();
+		runner = TestRunners.newTestRunner(processor);
+		runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + EchoServer.start(vertx) + "/graphql");
+		runner.setProperty(GraphQL.QUERY, QUERY);
+		runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "email, firstName, lastName, age:number");
+		runner.setProperty(GraphQL.EXECUTION_MODE, executionMode);
+		runner.setProperty(GraphQL.BATCH_SIZE, String.valueOf(batchSize));
+		runner.setProperty(GraphQL.BATCH_MODE, batchMode);
+
+		attributes = new ArrayList<>(FLOWFILES);
+		for (int i = 0; i < FLOWFILES; i++) {
+			Map<String, String> flowFileAttributes = new HashMap<>();
+			flowFileAttributes.put("email", "customer" + i + "@niledb.com");
+			flowFileAttributes.put("firstName", "José");
+			flowFileAttributes.put("lastName", "O'Donnell \"Jr\"");
+			flowFileAttributes.put("age", String.valueOf(20 + i % 50));
+			attributes.add(flowFileAttributes);
+		}
+		// Schedules the processor, so that the benchmark only triggers it
+		runner.run(1, false, true);
+	}
+
+	@TearDown
+	public void tearDown() {
+		runner.run(1, true, false);
+		vertx.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FLOWFILES)
+	public int execute() {
+		for (Map<String, String> flowFileAttributes : attributes) {
+			runner.enqueue(new byte[0], flowFileAttributes);
+		}
+		// Synchronous triggers take a batch each, asynchronous ones drain the queue
+		int triggers = executionMode.equals("synchronous") ? (FLOWFILES + batchSize - 1) / batchSize : 1;
+		while (!runner.isQueueEmpty()) {
+			// The mock framework unschedules the processor after every run, and asynchronous mode stops taking FlowFiles
+			processor.updateScheduledTrue();
+			runner.run(triggers, false, false);
+		}
+		int transferred = runner.getFlowFilesForRelationship(GraphQL.SUCCESS).size();
+		if (transferred != FLOWFILES) {
+			throw new IllegalStateException(transferred + " FlowFiles transferred to success out of " + FLOWFILES);
+		}
+		runner.clearTransferState();
+		return transferred;
+	}
+}
+
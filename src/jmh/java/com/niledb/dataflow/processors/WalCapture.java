@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.DriverManager;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
+
+/**
+ * Captures of the WAL messages sent by a replication slot, replayed by the benchmarks without a server.
+ *
+ * A capture is a sequence of messages, each one written as the LSN it was received at (8 bytes), its length (4 bytes)
+ * and its bytes, as sent by the output plugin. Captures are recorded from a live slot, without acknowledging anything,
+ * so the slot can be recorded again:
+ *
+ * record jdbc:postgresql://localhost:5432/postgres postgres postgres slot 10000 pgoutput.capture [publications]
+ *
+ * where publications are only given for pgoutput slots, or synthesized, which is how the captures of the benchmark
+ * resources were created:
+ *
+ * synthesize test_decoding|pgoutput 200 test_decoding.capture
+ */
+public class WalCapture {
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSXXX").withZone(ZoneOffset.UTC);
+
+	private static final String[] FIRST_NAMES = { "José", "Ann", "Zoë", "Mohammed", "Li", "Chloé", "Søren", "Kate" };
+	private static final String[] LAST_NAMES = { "O'Donnell", "García", "Smith", "Nakamura", "Müller", "Dubois" };
+	private static final String[] STATUSES = { "pending", "paid", "shipped", "cancelled" };
+
+	public static List<ReplicationReader.Message> read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		List<ReplicationReader.Message> messages = new ArrayList<>();
+		while (true) {
+			long lsn;
+			try {
+				lsn = data.readLong();
+			}
+			catch (EOFException e) {
+				return messages;
+			}
+			byte[] bytes = new byte[data.readInt()];
+			data.readFully(bytes);
+			messages.add(new ReplicationReader.Message(ByteBuffer.wrap(bytes), LogSequenceNumber.valueOf(lsn)));
+		}
+	}
+
+	/**
+	 * Reads a capture from a file or, if there is none, from a resource of the classpath.
+	 */
+	public static List<ReplicationReader.Message> read(String path) throws IOException {
+		if (new File(path).isFile()) {
+			try (InputStream in = new FileInputStream(path)) {
+				return read(in);
+			}
+		}
+		InputStream in = WalCapture.class.getClassLoader().getResourceAsStream(path);
+		if (in == null) {
+			throw new IOException("Capture not found: " + path);
+		}
+		try {
+			return read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static void write(DataOutputStream out, long lsn, ByteBuffer buffer) throws IOException {
+		out.writeLong(lsn);
+		out.writeInt(buffer.remaining());
+		out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+	}
+
+	private static void record(String url, String user, String password, String slot, int count, String file, String publications) throws Exception {
+		Properties properties = new Properties();
+		PGProperty.USER.set(properties, user);
+		PGProperty.PASSWORD.set(properties, password);
+		PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "10.0");
+		PGProperty.REPLICATION.set(properties, "database");
+		PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+		try (java.sql.Connection connection = DriverManager.getConnection(url, properties);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			ChainedLogicalStreamBuilder builder = connection.unwrap(PGConnection.class).getReplicationAPI()
+					.replicationStream()
+					.logical()
+					.withSlotName(slot);
+			if (publications != null) {
+				builder.withSlotOption("proto_version", 1);
+				builder.withSlotOption("publication_names", publications);
+			}
+			else {
+				builder.withSlotOption("include-timestamp", true);
+			}
+			PGReplicationStream stream = builder.start();
+			for (int i = 0; i < count; i++) {
+				ByteBuffer buffer = stream.read();
+				write(out, stream.getLastReceiveLSN().asLong(), buffer);
+			}
+			stream.close();
+		}
+	}
+
+	/**
+	 * Writes the changes of an online shop: customers signing up and updating their details, and orders being placed
+	 * and going through their statuses, in transactions of 1 to 20 changes, 60% inserts, 30% updates and 10% deletes.
+	 * Tables have the default replica identity, their primary key.
+	 */
+	private static void synthesize(String plugin, int transactions, String file) throws IOException {
+		boolean pgoutput = plugin.equals("pgoutput");
+		Random random = new Random(42);
+		long lsn = 0x16B3748L;
+		long commitTime = 1537446896789012L;
+		int xid = 571;
+		int customers = 0;
+		long orders = 0;
+		Table customerTable = new Table(16385, "customers", new String[] { "id", "email", "first_name", "last_name", "age", "created_at" },
+				new String[] { "integer", "text", "text", "text", "integer", "timestamp with time zone" }, new int[] { 23, 25, 25, 25, 23, 1184 });
+		Table orderTable = new Table(16394, "orders", new String[] { "id", "customer_id", "amount", "status", "notes" },
+				new String[] { "bigint", "integer", "numeric", "text", "text" }, new int[] { 20, 23, 1700, 25, 25 });
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			for (int t = 0; t < transactions; t++) {
+				xid++;
+				commitTime += random.nextInt(50000);
+				int changes = 1 + random.nextInt(20);
+				List<byte[]> messages = new ArrayList<>();
+				for (int c = 0; c < changes; c++) {
+					int dice = random.nextInt(10);
+					boolean order = customers > 0 && random.nextBoolean();
+					Table table = order ? orderTable : customerTable;
+					String op = dice < 6 || (order ? orders : customers) == 0 ? "INSERT" : dice < 9 ? "UPDATE" : "DELETE";
+					String[] values;
+					if (order) {
+						long id = op.equals("INSERT") ? ++orders : 1 + (long) (random.nextDouble() * orders);
+						values = new String[] { String.valueOf(id), String.valueOf(1 + random.nextInt(customers)),
+								(10 + random.nextInt(99000)) / 100 + "." + random.nextInt(10) + random.nextInt(10),
+								STATUSES[random.nextInt(STATUSES.length)],
+								random.nextInt(4) == 0 ? null : "Deliver to the back door,\nring twice: \"fragile\"" };
+					}
+					else {
+						int id = op.equals("INSERT") ? ++customers : 1 + random.nextInt(customers);
+						String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+						String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+						values = new String[] { String.valueOf(id), "customer" + id + "@niledb.com", firstName, lastName,
+								random.nextInt(5) == 0 ? null : String.valueOf(18 + random.nextInt(70)),
+								TIMESTAMP.format(Instant.ofEpochSecond(0, (commitTime + PgOutputDecoder.POSTGRES_EPOCH_MICROS) * 1000)) };
+					}
+					if (op.equals("DELETE")) {
+						// Only the replica identity is sent
+						String[] key = new String[values.length];
+						key[0] = values[0];
+						values = key;
+					}
+					if (pgoutput) {
+						if (!table.sent) {
+							messages.add(table.relation());
+							table.sent = true;
+						}
+						messages.add(table.change(op.charAt(0), values));
+					}
+					else {
+						messages.add(table.line(op, values).getBytes(StandardCharsets.UTF_8));
+					}
+				}
+
+				// The commit record follows the changes, and commits are received at the end of their record
+				long endLsn = lsn;
+				for (byte[] message : messages) {
+					endLsn += 24 + message.length;
+				}
+				if (pgoutput) {
+					write(out, lsn, ByteBuffer.wrap(ByteBuffer.allocate(21).put((byte) 'B').putLong(endLsn).putLong(commitTime).putInt(xid).array()));
+				}
+				else {
+					write(out, lsn, ByteBuffer.wrap(("BEGIN " + xid).getBytes(StandardCharsets.UTF_8)));
+				}
+				for (byte[] message : messages) {
+					lsn += 24 + message.length;
+					write(out, lsn, ByteBuffer.wrap(message));
+				}
+				if (pgoutput) {
+					write(out, endLsn + 48, ByteBuffer.wrap(ByteBuffer.allocate(26).put((byte) 'C').put((byte) 0).putLong(endLsn).putLong(endLsn + 48).putLong(commitTime).array()));
+				}
+				else {
+					String time = TIMESTAMP.format(Instant.ofEpochSecond(0, (commitTime + PgOutputDecoder.POSTGRES_EPOCH_MICROS) * 1000));
+					write(out, endLsn + 48, ByteBuffer.wrap(("COMMIT " + xid + " (at " + time + ")").getBytes(StandardCharsets.UTF_8)));
+				}
+				lsn = endLsn + 48;
+			}
+		}
+	}
+
+	private static final class Table {
+		final int oid;
+		final String name;
+		final String[] columnNames;
+		final String[] typeNames;
+		final int[] typeOids;
+		boolean sent = false;
+
+		Table(int oid, String name, String[] columnNames, String[] typeNames, int[] typeOids) {
+			this.oid = oid;
+			this.name = name;
+			this.columnNames = columnNames;
+			this.typeNames = typeNames;
+			this.typeOids = typeOids;
+		}
+
+		byte[] relation() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte('R');
+			out.writeInt(oid);
+			writeString(out, "public");
+			writeString(out, name);
+			out.writeByte('d');
+			out.writeShort(columnNames.length);
+			for (int i = 0; i < columnNames.length; i++) {
+				out.writeByte(i == 0 ? 1 : 0);
+				writeString(out, columnNames[i]);
+				out.writeInt(typeOids[i]);
+				out.writeInt(-1);
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * @param op 'I', 'U' or 'D'. Updates don't change the key, so its old value isn't sent.
+		 */
+		byte[] change(char op, String[] values) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(op);
+			out.writeInt(oid);
+			out.writeByte(op == 'D' ? 'K' : 'N');
+			out.writeShort(values.length);
+			for (String value : values) {
+				if (value == null) {
+					out.writeByte('n');
+				}
+				else {
+					byte[] text = value.getBytes(StandardCharsets.UTF_8);
+					out.writeByte('t');
+					out.writeInt(text.length);
+					out.write(text);
+				}
+			}
+			return bytes.toByteArray();
+		}
+
+		String line(String op, String[] values) {
+			StringBuilder line = new StringBuilder("table public.").append(name).append(": ").append(op).append(':');
+			for (int i = 0; i < values.length; i++) {
+				if (op.equals("DELETE") && i > 0) {
+					break;
+				}
+				line.append(' ').append(columnNames[i]).append('[').append(typeNames[i]).append("]:");
+				if (values[i] == null) {
+					line.append("null");
+				}
+				else if (typeNames[i].equals("integer") || typeNames[i].equals("bigint") || typeNames[i].equals("numeric")) {
+					line.append(values[i]);
+				}
+				else {
+					line.append('\'').append(values[i].replace("'", "''")).append('\'');
+				}
+			}
+			return line.toString();
+		}
+
+		private static void writeString(DataOutputStream out, String value) throws IOException {
+			out.write(value.getBytes(StandardCharsets.UTF_8));
+			out.writeByte(0);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 7 && args[0].equals("record")) {
+			record(args[1], args[2], args[3], args[4], Integer.parseInt(args[5]), args[6], args.length > 7 ? args[7] : null);
+		}
+		else if (args.length == 4 && args[0].equals("synthesize")) {
+			synthesize(args[1], Integer.parseInt(args[2]), args[3]);
+		}
+		else {
+			System.err.println("Usage: WalCapture record <url> <user> <password> <slot> <count> <file> [<publications>]");
+			System.err.println("       WalCapture synthesize test_decoding|pgoutput <transactions> <file>");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processor.Relationship;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding throughput of LogicalDecoding, replaying WAL captures (see {@link WalCapture}) through the same parsers and
+ * writers as the processor, without a server. Every operation replays a whole capture, and the messages and bytes
+ * counters give the throughput per message. Other captures can be replayed with i.e. -p pgOutputCapture=my.capture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalDecodingBenchmark {
+
+	/**
+	 * Messages and bytes decoded, reported as rates along with the benchmark score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long messages;
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			messages = 0;
+			bytes = 0;
+		}
+	}
+
+	private static final Relationship SUCCESS = new Relationship.Builder().name("SUCCESS").build();
+
+	@Param({ "wal/pgoutput.capture" })
+	public String pgOutputCapture;
+
+	@Param({ "wal/test_decoding.capture" })
+	public String testDecodingCapture;
+
+	private List<ReplicationReader.Message> pgOutputMessages;
+	private List<ReplicationReader.Message> testDecodingMessages;
+	private long pgOutputBytes;
+	private long testDecodingBytes;
+
+	@Setup
+	public void setup() throws Exception {
+		pgOutputMessages = WalCapture.read(pgOutputCapture);
+		testDecodingMessages = WalCapture.read(testDecodingCapture);
+		pgOutputBytes = countBytes(pgOutputMessages);
+		testDecodingBytes = countBytes(testDecodingMessages);
+	}
+
+	private static long countBytes(List<ReplicationReader.Message> messages) {
+		long bytes = 0;
+		for (ReplicationReader.Message message : messages) {
+			bytes += message.buffer.remaining();
+		}
+		return bytes;
+	}
+
+	private static ChangeRouter passThrough() {
+		return new ChangeRouter(null, null, null, new LinkedHashMap<>(), SUCCESS);
+	}
+
+	/**
+	 * Routing by operation, so that changes are inspected and some of them skipped.
+	 */
+	private static ChangeRouter filtering() {
+		return new ChangeRouter(null, null, new HashSet<>(Arrays.asList("insert", "update")), new LinkedHashMap<>(), SUCCESS);
+	}
+
+	/**
+	 * pgoutput messages written as JSON lines, the default output of the processor.
+	 */
+	@Benchmark
+	public void pgOutputJson(Counters counters, Blackhole blackhole) {
+		PgOutputDecoder decoder = new PgOutputDecoder();
+		ChangeJsonWriter writer = new ChangeJsonWriter(passThrough());
+		for (ReplicationReader.Message message : pgOutputMessages) {
+			writer.reset();
+			decoder.decode(message.buffer, writer);
+			for (JsonBuffer buffer : writer.getBuffers().values()) {
+				blackhole.consume(buffer.size());
+			}
+		}
+		counters.messages += pgOutputMessages.size();
+		counters.bytes += pgOutputBytes;
+	}
+
+	/**
+	 * pgoutput messages collected as records, for a record writer.
+	 */
+	@Benchmark
+	public void pgOutputRecords(Counters counters, Blackhole blackhole) {
+		PgOutputDecoder decoder = new PgOutputDecoder();
+		ChangeRecords records = new ChangeRecords(passThrough());
+		for (ReplicationReader.Message message : pgOutputMessages) {
+			records.lsn = message.lsn.asString();
+			if (decoder.decode(message.buffer, records) == PgOutputDecoder.COMMIT) {
+				blackhole.consume(records.getRecords());
+				records.clear();
+			}
+		}
+		counters.messages += pgOutputMessages.size();
+		counters.bytes += pgOutputBytes;
+	}
+
+	/**
+	 * test_decoding lines routed without parsing their values, as they are copied to the content.
+	 */
+	@Benchmark
+	public void testDecodingRoute(Counters counters, Blackhole blackhole) {
+		TestDecodingParser parser = new TestDecodingParser();
+		ChangeRouter router = filtering();
+		for (ReplicationReader.Message message : testDecodingMessages) {
+			ByteBuffer buffer = message.buffer;
+			String line = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+			blackhole.consume(parser.route(line, router));
+		}
+		counters.messages += testDecodingMessages.size();
+		counters.bytes += testDecodingBytes;
+	}
+
+	/**
+	 * test_decoding lines parsed into records, for a record writer.
+	 */
+	@Benchmark
+	public void testDecodingRecords(Counters counters, Blackhole blackhole) {
+		TestDecodingParser parser = new TestDecodingParser();
+		ChangeRecords records = new ChangeRecords(passThrough());
+		for (ReplicationReader.Message message : testDecodingMessages) {
+			ByteBuffer buffer = message.buffer;
+			String line = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+			records.lsn = message.lsn.asString();
+			if (parser.parse(line, records)) {
+				blackhole.consume(records.getRecords());
+				records.clear();
+			}
+		}
+		counters.messages += testDecodingMessages.size();
+		counters.bytes += testDecodingBytes;
+	}
+}
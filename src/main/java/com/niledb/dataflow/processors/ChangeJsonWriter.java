@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.processor.Relationship;
+
+import com.niledb.dataflow.processors.PgOutputDecoder.Relation;
+import com.niledb.dataflow.processors.PgOutputDecoder.Tuple;
+
+/**
+ * Writes decoded pgoutput changes as JSON lines, i.e.
+ *
+ * {"xid":1234,"op":"update","schema":"public","table":"customers","before":{"id":"1"},"after":{"id":"1","name":"Ann"}}
+ *
+ * Values are the text representation of PostgreSQL, copied from the message buffer without decoding them. Unchanged
+ * TOASTed values are not sent by the server, so they are omitted. Changes are written to a buffer per relationship,
+ * and the ones filtered out by the router are skipped.
+ */
+class ChangeJsonWriter implements PgOutputDecoder.Listener {
+
+	private final ChangeRouter router;
+	private final Map<Relationship, JsonBuffer> buffers = new LinkedHashMap<>();
+	private JsonBuffer out;
+	// Relation names and column keys, already encoded, by relation OID
+	private final Map<Integer, byte[][]> encodedRelations = new HashMap<>();
+	private final Map<Integer, Relation> encodedVersions = new HashMap<>();
+	private int xid;
+
+	ChangeJsonWriter(ChangeRouter router) {
+		this.router = router;
+	}
+
+	/**
+	 * @return the buffers of the changes written since the last reset, some of them may be empty
+	 */
+	Map<Relationship, JsonBuffer> getBuffers() {
+		return buffers;
+	}
+
+	void reset() {
+		for (JsonBuffer buffer : buffers.values()) {
+			buffer.reset();
+		}
+	}
+
+	@Override
+	public void begin(long finalLsn, long commitTime, int xid) {
+		this.xid = xid;
+	}
+
+	@Override
+	public void insert(Relation relation, Tuple newTuple) {
+		if (!writeHeader("insert", relation)) {
+			return;
+		}
+		writeTuple(",\"after\":", relation, newTuple);
+		out.writeRaw("}\n");
+	}
+
+	@Override
+	public void update(Relation relation, Tuple oldTuple, Tuple newTuple) {
+		if (!writeHeader("update", relation)) {
+			return;
+		}
+		if (oldTuple != null) {
+			writeTuple(",\"before\":", relation, oldTuple);
+		}
+		writeTuple(",\"after\":", relation, newTuple);
+		out.writeRaw("}\n");
+	}
+
+	@Override
+	public void delete(Relation relation, Tuple oldTuple) {
+		if (!writeHeader("delete", relation)) {
+			return;
+		}
+		writeTuple(",\"before\":", relation, oldTuple);
+		out.writeRaw("}\n");
+	}
+
+	@Override
+	public void truncate(List<Relation> relations) {
+		for (Relation relation : relations) {
+			if (writeHeader("truncate", relation)) {
+				out.writeRaw("}\n");
+			}
+		}
+	}
+
+	@Override
+	public void commit(long commitLsn, long endLsn, long commitTime) {
+	}
+
+	/**
+	 * @return false if the change is filtered out
+	 */
+	private boolean writeHeader(String op, Relation relation) {
+		Relationship relationship = router.route(op, relation.namespace, relation.name);
+		if (relationship == null) {
+			return false;
+		}
+		out = buffers.get(relationship);
+		if (out == null) {
+			out = new JsonBuffer();
+			buffers.put(relationship, out);
+		}
+		out.writeRaw("{\"xid\":").writeRaw(Integer.toUnsignedString(xid)).writeRaw(",\"op\":\"").writeRaw(op).writeRaw("\",");
+		out.write(encode(relation)[0]);
+		return true;
+	}
+
+	private void writeTuple(String name, Relation relation, Tuple tuple) {
+		byte[][] encoded = encode(relation);
+		out.writeRaw(name).write('{');
+		boolean first = true;
+		for (int i = 0; i < tuple.columnCount && i < relation.columnNames.length; i++) {
+			if (tuple.isUnchangedToast(i)) {
+				continue;
+			}
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			out.write(encoded[i + 1]);
+			if (tuple.isNull(i)) {
+				out.writeRaw("null");
+			}
+			else {
+				out.writeString(tuple.buffer, tuple.offsets[i], tuple.lengths[i]);
+			}
+		}
+		out.write('}');
+	}
+
+	private byte[][] encode(Relation relation) {
+		byte[][] encoded = encodedRelations.get(relation.oid);
+		// Relations are sent again when altered, and then the decoder replaces them
+		if (encoded == null || encodedVersions.get(relation.oid) != relation) {
+			encoded = new byte[relation.columnNames.length + 1][];
+			JsonBuffer buffer = new JsonBuffer(64);
+			buffer.writeRaw("\"schema\":").writeString(relation.namespace).writeRaw(",\"table\":").writeString(relation.name);
+			encoded[0] = buffer.toByteArray();
+			for (int i = 0; i < relation.columnNames.length; i++) {
+				buffer.reset();
+				buffer.writeString(relation.columnNames[i]).write(':');
+				encoded[i + 1] = buffer.toByteArray();
+			}
+			encodedRelations.put(relation.oid, encoded);
+			encodedVersions.put(relation.oid, relation);
+		}
+		return encoded;
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import com.niledb.dataflow.processors.PgOutputDecoder.Relation;
+import com.niledb.dataflow.processors.PgOutputDecoder.Tuple;
+
+/**
+ * Collects decoded changes as records of {@link #SCHEMA}, one per changed row (or truncated table).
+ *
+ * Changes are kept until the commit of their transaction, which provides the commit time, or until they are flushed
+ * before it (pgoutput already sends the commit time at the beginning), and then they are available in
+ * {@link #getRecords()}, along with their relationships, until {@link #clear()}. Changes filtered out
+ * by the router are skipped. Column values are the text representation of PostgreSQL, and unchanged TOASTed values
+ * are omitted because the server doesn't send them.
+ */
+class ChangeRecords implements PgOutputDecoder.Listener {
+
+	static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("xid", RecordFieldType.LONG.getDataType()),
+			new RecordField("lsn", RecordFieldType.STRING.getDataType()),
+			new RecordField("commitTime", RecordFieldType.TIMESTAMP.getDataType()),
+			new RecordField("op", RecordFieldType.STRING.getDataType()),
+			new RecordField("schema", RecordFieldType.STRING.getDataType()),
+			new RecordField("table", RecordFieldType.STRING.getDataType()),
+			new RecordField("keyColumns", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())),
+			new RecordField("before", RecordFieldType.MAP.getMapDataType(RecordFieldType.STRING.getDataType())),
+			new RecordField("after", RecordFieldType.MAP.getMapDataType(RecordFieldType.STRING.getDataType()))));
+
+	private final ChangeRouter router;
+	private final List<Map<String, Object>> transaction = new ArrayList<>();
+	private final List<Relationship> transactionRelationships = new ArrayList<>();
+	private final List<Record> records = new ArrayList<>();
+	private final List<Relationship> relationships = new ArrayList<>();
+	private final Map<Integer, Object[]> keyColumns = new HashMap<>();
+	private Long xid;
+	private Timestamp commitTime;
+
+	/**
+	 * LSN of the message being decoded, set before decoding it.
+	 */
+	String lsn;
+
+	ChangeRecords(ChangeRouter router) {
+		this.router = router;
+	}
+
+	List<Record> getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the relationship of every record
+	 */
+	List<Relationship> getRelationships() {
+		return relationships;
+	}
+
+	/**
+	 * Discards the collected records, including the ones of an incomplete transaction.
+	 */
+	void clear() {
+		transaction.clear();
+		transactionRelationships.clear();
+		records.clear();
+		relationships.clear();
+	}
+
+	/**
+	 * @param xid the transaction id, or null for the rows of the initial snapshot, which aren't part of a transaction
+	 * @param commitTime the commit time, if known in advance, or null
+	 */
+	void begin(Long xid, Timestamp commitTime) {
+		this.xid = xid;
+		this.commitTime = commitTime;
+		transaction.clear();
+		transactionRelationships.clear();
+	}
+
+	void change(String op, String schema, String table, Object[] keyColumns, Map<String, Object> before, Map<String, Object> after) {
+		Relationship relationship = router.route(op, schema, table);
+		if (relationship == null) {
+			return;
+		}
+		Map<String, Object> values = new HashMap<>(16);
+		values.put("xid", xid);
+		values.put("lsn", lsn);
+		values.put("commitTime", commitTime);
+		values.put("op", op);
+		values.put("schema", schema);
+		values.put("table", table);
+		values.put("keyColumns", keyColumns);
+		values.put("before", before);
+		values.put("after", after);
+		transaction.add(values);
+		transactionRelationships.add(relationship);
+	}
+
+	void commit(Timestamp commitTime) {
+		if (this.commitTime == null) {
+			for (Map<String, Object> values : transaction) {
+				values.put("commitTime", commitTime);
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * @return the number of changes of the transaction being received that haven't been flushed
+	 */
+	int getPendingCount() {
+		return transaction.size();
+	}
+
+	/**
+	 * Makes the changes of the transaction being received available, before its commit.
+	 */
+	void flush() {
+		for (Map<String, Object> values : transaction) {
+			records.add(new MapRecord(SCHEMA, values));
+		}
+		relationships.addAll(transactionRelationships);
+		transaction.clear();
+		transactionRelationships.clear();
+	}
+
+	@Override
+	public void begin(long finalLsn, long commitTime, int xid) {
+		begin(Integer.toUnsignedLong(xid), toTimestamp(commitTime));
+	}
+
+	@Override
+	public void insert(Relation relation, Tuple newTuple) {
+		change("insert", relation.namespace, relation.name, getKeyColumns(relation), null, toMap(relation, newTuple));
+	}
+
+	@Override
+	public void update(Relation relation, Tuple oldTuple, Tuple newTuple) {
+		change("update", relation.namespace, relation.name, getKeyColumns(relation), oldTuple == null ? null : toMap(relation, oldTuple), toMap(relation, newTuple));
+	}
+
+	@Override
+	public void delete(Relation relation, Tuple oldTuple) {
+		change("delete", relation.namespace, relation.name, getKeyColumns(relation), toMap(relation, oldTuple), null);
+	}
+
+	@Override
+	public void truncate(List<Relation> relations) {
+		for (Relation relation : relations) {
+			change("truncate", relation.namespace, relation.name, getKeyColumns(relation), null, null);
+		}
+	}
+
+	@Override
+	public void commit(long commitLsn, long endLsn, long commitTime) {
+		commit(toTimestamp(commitTime));
+	}
+
+	private static Timestamp toTimestamp(long postgresMicros) {
+		long micros = postgresMicros + PgOutputDecoder.POSTGRES_EPOCH_MICROS;
+		Timestamp timestamp = new Timestamp(Math.floorDiv(micros, 1000L));
+		timestamp.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+		return timestamp;
+	}
+
+	private Object[] getKeyColumns(Relation relation) {
+		// Slot 0 keeps the relation, which is replaced by the decoder when it changes
+		Object[] cached = keyColumns.get(relation.oid);
+		if (cached == null || cached[0] != relation) {
+			List<String> names = new ArrayList<>();
+			for (int i = 0; i < relation.columnNames.length; i++) {
+				if (relation.keyColumns[i]) {
+					names.add(relation.columnNames[i]);
+				}
+			}
+			cached = new Object[] {relation, names.toArray()};
+			keyColumns.put(relation.oid, cached);
+		}
+		return (Object[]) cached[1];
+	}
+
+	private static Map<String, Object> toMap(Relation relation, Tuple tuple) {
+		Map<String, Object> values = new LinkedHashMap<>(tuple.columnCount * 4 / 3 + 1);
+		for (int i = 0; i < tuple.columnCount && i < relation.columnNames.length; i++) {
+			if (!tuple.isUnchangedToast(i)) {
+				values.put(relation.columnNames[i], tuple.getString(i));
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.nifi.processor.Relationship;
+
+/**
+ * Decides whether a change is delivered and to which relationship, from its operation and its table.
+ *
+ * Table patterns are matched against the qualified name of the table (schema.table). Routes are checked in order,
+ * and changes not matching any of them go to the default relationship. Decisions are cached by table, so patterns are
+ * only evaluated for the first change of every table.
+ */
+class ChangeRouter {
+
+	// Cached decision for the tables that are filtered out
+	private static final Relationship FILTERED = new Relationship.Builder().name("filtered").build();
+
+	private final Pattern include;
+	private final Pattern exclude;
+	private final Set<String> operations;
+	private final Map<Relationship, Pattern> routes;
+	private final Relationship defaultRelationship;
+	private final Map<String, Map<String, Relationship>> decisions = new HashMap<>();
+
+	/**
+	 * @param include tables to deliver, or null for all of them
+	 * @param exclude tables not to deliver, or null for none
+	 * @param operations operations to deliver (insert, update, delete, truncate), or null for all of them
+	 */
+	ChangeRouter(Pattern include, Pattern exclude, Set<String> operations, LinkedHashMap<Relationship, Pattern> routes, Relationship defaultRelationship) {
+		this.include = include;
+		this.exclude = exclude;
+		this.operations = operations;
+		this.routes = routes;
+		this.defaultRelationship = defaultRelationship;
+	}
+
+	/**
+	 * @return true if every change goes to the default relationship, so changes don't even need to be parsed
+	 */
+	boolean isPassThrough() {
+		return include == null && exclude == null && operations == null && routes.isEmpty();
+	}
+
+	Relationship getDefaultRelationship() {
+		return defaultRelationship;
+	}
+
+	/**
+	 * @return the relationship of the change, or null if it must not be delivered
+	 */
+	Relationship route(String op, String schema, String table) {
+		if (operations != null && !operations.contains(op)) {
+			return null;
+		}
+		Map<String, Relationship> tables = decisions.get(schema);
+		if (tables == null) {
+			tables = new HashMap<>();
+			decisions.put(schema, tables);
+		}
+		Relationship relationship = tables.get(table);
+		if (relationship == null) {
+			relationship = decide(schema + "." + table);
+			tables.put(table, relationship);
+		}
+		return relationship == FILTERED ? null : relationship;
+	}
+
+	private Relationship decide(String qualifiedName) {
+		if ((include != null && !include.matcher(qualifiedName).matches())
+				|| (exclude != null && exclude.matcher(qualifiedName).matches())) {
+			return FILTERED;
+		}
+		for (Map.Entry<Relationship, Pattern> route : routes.entrySet()) {
+			if (route.getValue().matcher(qualifiedName).matches()) {
+				return route.getKey();
+			}
+		}
+		return defaultRelationship;
+	}
+}
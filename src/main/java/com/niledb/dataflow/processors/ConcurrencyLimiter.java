@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+/**
+ * Adaptive limit of the requests in flight to a service, shared by the concurrent tasks of a processor.
+ *
+ * The limit follows AIMD, like TCP congestion control: it grows by one for every limit's worth of requests answered in
+ * time, and it's halved when the service shows signs of overload (throttling responses, timeouts or latency above the
+ * threshold). It's only halved once per round trip, by the requests sent after the last decrease, since the ones sent
+ * before it don't tell anything new. The service can also ask for a pause, with Retry-After, during which no permit is
+ * given at all.
+ */
+class ConcurrencyLimiter {
+
+	private static final double DECREASE_RATIO = 0.5;
+
+	private final int maxLimit;
+	private final long latencyThresholdNanos;
+	private double limit;
+	private int inFlight = 0;
+	private long lastDecrease;
+	private long pausedUntil;
+
+	/**
+	 * @param maxLimit initial and maximum limit
+	 * @param latencyThresholdMillis latency above which a request is a sign of overload, or 0 for none
+	 */
+	ConcurrencyLimiter(int maxLimit, long latencyThresholdMillis) {
+		this.maxLimit = maxLimit;
+		this.latencyThresholdNanos = latencyThresholdMillis * 1000000L;
+		this.limit = maxLimit;
+		this.lastDecrease = System.nanoTime();
+		this.pausedUntil = lastDecrease;
+	}
+
+	/**
+	 * @return true if a request can be sent, which must be followed by {@link #release()}
+	 */
+	synchronized boolean tryAcquire() {
+		if (inFlight >= (int) limit || pausedUntil - System.nanoTime() > 0) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	synchronized void release() {
+		inFlight--;
+	}
+
+	/**
+	 * Adjusts the limit to the outcome of a request.
+	 *
+	 * @param start System.nanoTime() when the request was sent
+	 * @param overloaded true if the request failed with a sign of overload
+	 */
+	synchronized void record(long start, boolean overloaded) {
+		long now = System.nanoTime();
+		if (overloaded || (latencyThresholdNanos > 0 && now - start > latencyThresholdNanos)) {
+			if (start - lastDecrease > 0) {
+				limit = Math.max(1, limit * DECREASE_RATIO);
+				lastDecrease = now;
+			}
+		}
+		else {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+
+	/**
+	 * Stops giving permits for the given time, unless a longer pause is already running.
+	 */
+	synchronized void pause(long millis) {
+		long until = System.nanoTime() + millis * 1000000L;
+		if (until - pausedUntil > 0) {
+			pausedUntil = until;
+		}
+	}
+
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import com.niledb.dataflow.services.StandardGraphQLClientService;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.http.WebsocketVersion;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+
+@Tags({ "GraphQL", "Subscription", "WebSocket", "NileDB", "Consume", "Data Publication/Subscription", "niledb.com" })
+@CapabilityDescription("Subscribes to NileDB's GraphQL services over a WebSocket, with the graphql-ws protocol, and emits the "
+		+ "events they push, instead of polling them with queries.")
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@TriggerSerially
+public class ConsumeGraphQLSubscription extends AbstractProcessor {
+	
+	static final String SUB_PROTOCOL = "graphql-ws";
+	static final String EVENT_COUNT_ATTRIBUTE = "graphql.event.count";
+	
+	private static final String SUBSCRIPTION_ID = "1";
+	private static final long CHECK_INTERVAL_MILLIS = 1000;
+	private static final long POLL_MILLIS = 100;
+	private static final long CLOSE_MILLIS = 5000;
+	private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+	
+	private List<PropertyDescriptor> properties;
+	private Set<Relationship> relationships;
+	
+	// Events received and not emitted yet. They survive a stop, so that they are emitted once started again
+	private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+	private volatile int queueSize = 0;
+	
+	private volatile Vertx vertx = null;
+	private volatile HttpClient client = null;
+	private volatile boolean running = false;
+	// Only used from the Vert.x event loop
+	private Connection connection = null;
+	private int failures = 0;
+	private String endpoint;
+	private String initMessage;
+	private String startMessage;
+	private long reconnectBackoffMillis;
+	private long maxReconnectBackoffMillis;
+	private long keepAliveTimeoutMillis;
+	
+	private Metrics metrics = null;
+	private volatile Integer metricsPort = null;
+	private Metrics.Counter eventsMetric;
+	private Metrics.Counter flowFilesMetric;
+	private Metrics.Counter reconnectionsMetric;
+	private Metrics.Gauge queuedEventsMetric;
+	
+	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor.Builder()
+			.name("endpoint")
+			.displayName("GraphQL endpoint")
+			.description("GraphQL subscriptions WebSocket endpoint (i.e. wss://niledb.com/graphql).")
+			.defaultValue("ws://core/graphql")
+			.expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor QUERY = new PropertyDescriptor.Builder()
+			.name("query")
+			.displayName("GraphQL subscription")
+			.description("GraphQL subscription document (i.e. subscription { Customers_CustomerCreated { id email } }).")
+			.expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor VARIABLES = new PropertyDescriptor.Builder()
+			.name("variables")
+			.displayName("GraphQL variables")
+			.description("Variables of the subscription, as a JSON object.")
+			.expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+			.required(false)
+			.addValidator(ConsumeGraphQLSubscription::validateJsonObject)
+			.build();
+	
+	public static final PropertyDescriptor CONNECTION_PARAMS = new PropertyDescriptor.Builder()
+			.name("connectionParams")
+			.displayName("Connection parameters")
+			.description("Payload of the connection_init message, as a JSON object, usually with the credentials "
+					+ "(i.e. {\"authorization\": \"Bearer ...\"}).")
+			.expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+			.required(false)
+			.sensitive(true)
+			.addValidator(ConsumeGraphQLSubscription::validateJsonObject)
+			.build();
+	
+	public static final PropertyDescriptor QUEUE_SIZE = new PropertyDescriptor.Builder()
+			.name("queueSize")
+			.displayName("Queue size")
+			.description("Maximum number of events received ahead of the triggers. When the queue is full, reading from the "
+					+ "WebSocket pauses until the processor catches up, so that back pressure reaches the GraphQL service. "
+					+ "Queued events are kept in memory only.")
+			.defaultValue("10000")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("batchSize")
+			.displayName("Batch size")
+			.description("Maximum number of events per FlowFile. FlowFiles with several events hold one JSON response per line.")
+			.defaultValue("1")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_EVENTS_PER_TRIGGER = new PropertyDescriptor.Builder()
+			.name("maxEventsPerTrigger")
+			.displayName("Max events per trigger")
+			.description("Maximum number of events emitted in a single trigger, and committed in a single session.")
+			.defaultValue("10000")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor KEEP_ALIVE_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("keepAliveTimeout")
+			.displayName("Keep alive timeout")
+			.description("How long the WebSocket can go without receiving anything, keep alive messages included, before it "
+					+ "is considered dead and opened again. It must be longer than the keep alive interval of the GraphQL "
+					+ "service. With 0 sec, dead connections are only detected by the operating system.")
+			.defaultValue("0 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RECONNECT_BACKOFF = new PropertyDescriptor.Builder()
+			.name("reconnectBackoff")
+			.displayName("Reconnect backoff")
+			.description("How long to wait before opening the WebSocket and subscribing again after a failure. The wait is "
+					+ "doubled after every consecutive failure, up to 'Max reconnect backoff'. Events pushed meanwhile are lost, "
+					+ "unless the GraphQL service keeps them for the subscription.")
+			.defaultValue("1 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RECONNECT_BACKOFF = new PropertyDescriptor.Builder()
+			.name("maxReconnectBackoff")
+			.displayName("Max reconnect backoff")
+			.description("Maximum wait before subscribing again after consecutive failures. Subscriptions rejected by the "
+					+ "GraphQL service, i.e. for an invalid document, are retried after this wait.")
+			.defaultValue("1 min")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final Relationship SUCCESS = new Relationship.Builder().name("SUCCESS")
+			.description("Events pushed by the GraphQL service").build();
+	
+	@Override
+	public void init(final ProcessorInitializationContext context) {
+		List<PropertyDescriptor> properties = new ArrayList<>();
+		properties.add(ENDPOINT);
+		properties.add(QUERY);
+		properties.add(VARIABLES);
+		properties.add(CONNECTION_PARAMS);
+		properties.add(QUEUE_SIZE);
+		properties.add(BATCH_SIZE);
+		properties.add(MAX_EVENTS_PER_TRIGGER);
+		properties.add(KEEP_ALIVE_TIMEOUT);
+		properties.add(RECONNECT_BACKOFF);
+		properties.add(MAX_RECONNECT_BACKOFF);
+		properties.add(MetricsEndpoint.PORT);
+		this.properties = Collections.unmodifiableList(properties);
+		
+		Set<Relationship> relationships = new HashSet<>();
+		relationships.add(SUCCESS);
+		this.relationships = Collections.unmodifiableSet(relationships);
+		
+		metrics = new Metrics("ConsumeGraphQLSubscription", context.getIdentifier());
+		eventsMetric = metrics.counter("events", "Events emitted.");
+		flowFilesMetric = metrics.counter("flowfiles", "FlowFiles transferred.");
+		reconnectionsMetric = metrics.counter("reconnections", "Failures of the WebSocket or of the subscription.");
+		queuedEventsMetric = metrics.gauge("queued_events", "Events received, waiting to be emitted.");
+	}
+	
+	private static ValidationResult validateJsonObject(String subject, String input, ValidationContext context) {
+		String reason = null;
+		try {
+			new JsonObject(context.newPropertyValue(input).evaluateAttributeExpressions().getValue());
+		}
+		catch (DecodeException | ClassCastException e) {
+			reason = "not a JSON object";
+		}
+		return new ValidationResult.Builder().subject(subject).input(input).valid(reason == null).explanation(reason).build();
+	}
+	
+	@OnScheduled
+	public void startMetrics(final ProcessContext context) throws Exception {
+		metricsPort = context.getProperty("metricsPort").asInteger();
+		if (metricsPort != null) {
+			MetricsEndpoint.register(metricsPort, metrics);
+		}
+	}
+	
+	@OnStopped
+	public void stopMetrics() {
+		if (metricsPort != null) {
+			MetricsEndpoint.unregister(metricsPort, metrics);
+			metricsPort = null;
+		}
+	}
+	
+	@OnScheduled
+	public void subscribe(final ProcessContext context) {
+		JsonObject payload = new JsonObject().put("query", context.getProperty("query").evaluateAttributeExpressions().getValue());
+		if (context.getProperty("variables").isSet()) {
+			payload.put("variables", new JsonObject(context.getProperty("variables").evaluateAttributeExpressions().getValue()));
+		}
+		JsonObject connectionParams = context.getProperty("connectionParams").isSet()
+				? new JsonObject(context.getProperty("connectionParams").evaluateAttributeExpressions().getValue()) : new JsonObject();
+		
+		endpoint = context.getProperty("endpoint").evaluateAttributeExpressions().getValue();
+		initMessage = new JsonObject().put("type", "connection_init").put("payload", connectionParams).encode();
+		startMessage = new JsonObject().put("id", SUBSCRIPTION_ID).put("type", "start").put("payload", payload).encode();
+		reconnectBackoffMillis = context.getProperty("reconnectBackoff").asTimePeriod(TimeUnit.MILLISECONDS);
+		maxReconnectBackoffMillis = context.getProperty("maxReconnectBackoff").asTimePeriod(TimeUnit.MILLISECONDS);
+		keepAliveTimeoutMillis = context.getProperty("keepAliveTimeout").asTimePeriod(TimeUnit.MILLISECONDS);
+		queueSize = context.getProperty("queueSize").asInteger();
+		failures = 0;
+		
+		vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+		client = vertx.createHttpClient(new HttpClientOptions()
+				.setConnectTimeout((int) StandardGraphQLClientService.DEFAULT_CONNECT_TIMEOUT)
+				.setMaxWebsocketFrameSize(MAX_MESSAGE_SIZE)
+				.setMaxWebsocketMessageSize(MAX_MESSAGE_SIZE));
+		running = true;
+		// The fields above are published to the event loop by the task submission
+		vertx.runOnContext(v -> connect());
+	}
+	
+	/**
+	 * A WebSocket and its subscription, driven from the Vert.x event loop. Once failed, it's replaced by a new one.
+	 */
+	private static final class Connection {
+		WebSocket webSocket;
+		final long openTime = System.nanoTime();
+		long lastMessageTime = openTime;
+		boolean acknowledged = false;
+		boolean paused = false;
+		boolean failed = false;
+		long checkTimer = -1;
+	}
+	
+	/**
+	 * Opens the WebSocket and starts the graphql-ws handshake: connection_init, answered with connection_ack, after
+	 * which the subscription is started.
+	 */
+	private void connect() {
+		if (!running) {
+			return;
+		}
+		Connection connection = new Connection();
+		this.connection = connection;
+		client.websocketAbs(endpoint, null, WebsocketVersion.V13, SUB_PROTOCOL, webSocket -> {
+			connection.webSocket = webSocket;
+			webSocket.textMessageHandler(text -> receive(connection, text));
+			webSocket.exceptionHandler(e -> fail(connection, e));
+			webSocket.closeHandler(v -> fail(connection, new IOException("WebSocket closed by the GraphQL service")));
+			if (connection.failed || !running) {
+				webSocket.close();
+				return;
+			}
+			webSocket.writeTextMessage(initMessage);
+		}, e -> fail(connection, e));
+		connection.checkTimer = vertx.setPeriodic(CHECK_INTERVAL_MILLIS, timer -> check(connection));
+	}
+	
+	private void receive(Connection connection, String text) {
+		if (connection.failed) {
+			return;
+		}
+		connection.lastMessageTime = System.nanoTime();
+		JsonObject message;
+		try {
+			message = new JsonObject(text);
+		}
+		catch (DecodeException e) {
+			fail(connection, e);
+			return;
+		}
+		String type = String.valueOf(message.getValue("type"));
+		switch (type) {
+		case "connection_ack":
+			connection.acknowledged = true;
+			failures = 0;
+			connection.webSocket.writeTextMessage(startMessage);
+			break;
+		case "data":
+			Object payload = message.getValue("payload");
+			events.add(payload instanceof JsonObject ? ((JsonObject) payload).encode() : String.valueOf(payload));
+			if (events.size() >= queueSize && !connection.paused) {
+				// Resumed by the triggers, once they have taken some events
+				connection.paused = true;
+				connection.webSocket.pause();
+			}
+			break;
+		case "error":
+			// The subscription itself was rejected, it won't work any better by retrying it right away
+			failures = Math.max(failures, 20);
+			fail(connection, new ProcessException("GraphQL service rejected the subscription: " + message.getValue("payload")));
+			break;
+		case "complete":
+			fail(connection, new IOException("GraphQL service completed the subscription"));
+			break;
+		case "connection_error":
+			fail(connection, new IOException("GraphQL service refused the connection: " + message.getValue("payload")));
+			break;
+		default:
+			// Keep alive messages ("ka") only count as activity
+		}
+	}
+	
+	/**
+	 * Fails connections that aren't acknowledged in time, or that have been silent for too long.
+	 */
+	private void check(Connection connection) {
+		long now = System.nanoTime();
+		if (!connection.acknowledged && now - connection.openTime > TimeUnit.MILLISECONDS.toNanos(StandardGraphQLClientService.DEFAULT_SOCKET_TIMEOUT)) {
+			fail(connection, new TimeoutException("GraphQL service didn't acknowledge the connection"));
+		}
+		else if (connection.acknowledged && !connection.paused && keepAliveTimeoutMillis > 0
+				&& now - connection.lastMessageTime > TimeUnit.MILLISECONDS.toNanos(keepAliveTimeoutMillis)) {
+			fail(connection, new TimeoutException("No message received from the GraphQL service in " + keepAliveTimeoutMillis + " ms"));
+		}
+	}
+	
+	/**
+	 * Closes a failed connection and subscribes again after the backoff, unless it was already failed or stopped.
+	 */
+	private void fail(Connection connection, Throwable failure) {
+		if (connection.failed) {
+			return;
+		}
+		connection.failed = true;
+		vertx.cancelTimer(connection.checkTimer);
+		if (connection.webSocket != null) {
+			try {
+				connection.webSocket.close();
+			}
+			catch (IllegalStateException e) {
+				// Already closed
+			}
+		}
+		if (!running || connection != this.connection) {
+			return;
+		}
+		long backoff = Math.min(reconnectBackoffMillis << Math.min(failures, 20), maxReconnectBackoffMillis);
+		failures++;
+		getLogger().error("GraphQL subscription failed {} times in a row, subscribing again in {} ms", new Object[] { failures, backoff }, failure);
+		reconnectionsMetric.add(1);
+		vertx.setTimer(Math.max(1, backoff), timer -> connect());
+	}
+	
+	/**
+	 * Emits the queued events, up to "maxEventsPerTrigger", in FlowFiles of up to "batchSize" events. It waits a bit
+	 * for the first one, so that events are emitted as soon as they arrive without yielding.
+	 */
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		int maxEvents = context.getProperty("maxEventsPerTrigger").asInteger();
+		int batchSize = context.getProperty("batchSize").asInteger();
+		
+		List<String> batch = new ArrayList<>();
+		try {
+			String first = events.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				return;
+			}
+			batch.add(first);
+			events.drainTo(batch, maxEvents - 1);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		for (int start = 0; start < batch.size(); start += batchSize) {
+			List<String> chunk = batch.subList(start, Math.min(start + batchSize, batch.size()));
+			FlowFile flowFile = session.create();
+			flowFile = session.write(flowFile, out -> {
+				for (int i = 0; i < chunk.size(); i++) {
+					if (i > 0) {
+						out.write('\n');
+					}
+					out.write(chunk.get(i).getBytes(StandardCharsets.UTF_8));
+				}
+			});
+			Map<String, String> attributes = new HashMap<>();
+			attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+			attributes.put(EVENT_COUNT_ATTRIBUTE, String.valueOf(chunk.size()));
+			flowFile = session.putAllAttributes(flowFile, attributes);
+			session.transfer(flowFile, SUCCESS);
+			flowFilesMetric.add(1);
+		}
+		eventsMetric.add(batch.size());
+		queuedEventsMetric.set(events.size());
+		metrics.report(session);
+		resume();
+	}
+	
+	/**
+	 * Resumes reading from the WebSocket if it was paused by a full queue that has room now.
+	 */
+	private void resume() {
+		Vertx vertx = this.vertx;
+		if (vertx == null || events.size() >= queueSize) {
+			return;
+		}
+		vertx.runOnContext(v -> {
+			Connection connection = this.connection;
+			if (connection != null && connection.paused && !connection.failed && events.size() < queueSize) {
+				connection.paused = false;
+				connection.lastMessageTime = System.nanoTime();
+				connection.webSocket.resume();
+			}
+		});
+	}
+	
+	/**
+	 * Stops the subscription and closes the WebSocket. Events already received stay queued for the next start.
+	 */
+	@OnStopped
+	public void close() {
+		ComponentLog log = getLogger();
+		running = false;
+		Vertx vertx = this.vertx;
+		if (vertx == null) {
+			return;
+		}
+		try {
+			CompletableFuture<Void> closed = new CompletableFuture<>();
+			vertx.runOnContext(v -> {
+				Connection connection = this.connection;
+				if (connection != null && !connection.failed && connection.webSocket != null) {
+					if (connection.acknowledged) {
+						connection.webSocket.writeTextMessage(new JsonObject().put("id", SUBSCRIPTION_ID).put("type", "stop").encode());
+					}
+					connection.webSocket.writeTextMessage(new JsonObject().put("type", "connection_terminate").encode());
+				}
+				if (connection != null) {
+					fail(connection, null);
+				}
+				this.connection = null;
+				vertx.close(result -> closed.complete(null));
+			});
+			closed.get(CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		catch (Exception e) {
+			log.warn(e.getMessage(), e);
+		}
+		finally {
+			this.vertx = null;
+			client = null;
+		}
+	}
+	
+	@Override
+	public Set<Relationship> getRelationships() {
+		return relationships;
+	}
+	
+	@Override
+	public List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return properties;
+	}
+}
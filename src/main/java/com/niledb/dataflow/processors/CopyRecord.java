@@ -0,0 +1,365 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.postgresql.jdbc.PgConnection;
+
+@Tags({ "PostgreSQL", "NileDB", "COPY", "bulk", "insert", "upsert", "niledb.com", "record", "csv", "avro", "json" })
+@CapabilityDescription("Writes records into a NileDB table with PostgreSQL's COPY, in binary format when every column type allows it. "
+		+ "Records are copied in batches, and all the batches of a FlowFile are committed in the same transaction. "
+		+ "Optionally, rows with existing keys are updated, through a staging table.")
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+public class CopyRecord extends AbstractProcessor {
+
+	private static final String STAGING_TABLE = "niledb_copy_staging";
+	// How long an idle connection has to answer before being reused
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private List<PropertyDescriptor> properties;
+	private Set<Relationship> relationships;
+
+	// Idle connections, so that concurrent tasks don't share a transaction
+	private final ConcurrentLinkedQueue<PgConnection> connections = new ConcurrentLinkedQueue<>();
+
+	public static final PropertyDescriptor TABLE_NAME = new PropertyDescriptor.Builder()
+			.name("tableName")
+			.displayName("Table name")
+			.description("Table where records are copied, optionally qualified with its schema (i.e. public.customers). "
+					+ "Record fields are copied to the columns with the same name, and fields without a column are ignored.")
+			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("batchSize")
+			.displayName("Batch size")
+			.description("Maximum number of records copied with a single COPY statement.")
+			.defaultValue("10000")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor UPSERT_KEYS = new PropertyDescriptor.Builder()
+			.name("upsertKeys")
+			.displayName("Upsert keys")
+			.description("Columns of a primary key or unique constraint of the table, separated by commas (i.e. id). If set, "
+					+ "every batch is copied to a temporary staging table and then inserted, updating the other columns of the "
+					+ "rows whose keys already exist. Records with the same keys must not be in the same batch.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+			.build();
+
+	public static final Relationship SUCCESS = new Relationship.Builder().name("SUCCESS")
+			.description("FlowFiles whose records have been copied").build();
+
+	public static final Relationship FAILURE = new Relationship.Builder().name("FAILURE")
+			.description("FlowFiles whose records couldn't be read or copied, none of them is kept in the table. FlowFiles that "
+					+ "failed because the connection to the database was lost are penalized and kept in the queue instead.").build();
+
+	@Override
+	public void init(final ProcessorInitializationContext context) {
+		List<PropertyDescriptor> properties = new ArrayList<>();
+		properties.add(LogicalDecoding.DB_NAME);
+		properties.add(LogicalDecoding.DB_HOST);
+		properties.add(LogicalDecoding.DB_PORT);
+		properties.add(LogicalDecoding.DB_USERNAME);
+		properties.add(LogicalDecoding.DB_PASSWORD);
+		properties.add(LogicalDecoding.DB_SSL);
+		properties.add(LogicalDecoding.DB_SSL_MODE);
+		properties.add(LogicalDecoding.DB_SSL_ROOT_CERT);
+		properties.add(GraphQLRecord.RECORD_READER);
+		properties.add(TABLE_NAME);
+		properties.add(BATCH_SIZE);
+		properties.add(UPSERT_KEYS);
+		this.properties = Collections.unmodifiableList(properties);
+
+		Set<Relationship> relationships = new HashSet<>();
+		relationships.add(SUCCESS);
+		relationships.add(FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return relationships;
+	}
+
+	@Override
+	public List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return properties;
+	}
+
+	@OnStopped
+	public void close() {
+		ComponentLog log = getLogger();
+		PgConnection connection;
+		while ((connection = connections.poll()) != null) {
+			try {
+				connection.close();
+			}
+			catch (Exception e) {
+				log.warn(e.getMessage(), e);
+			}
+		}
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		ComponentLog log = getLogger();
+
+		FlowFile flowFile = session.get();
+		if (flowFile == null) {
+			return;
+		}
+
+		String tableName = context.getProperty("tableName").evaluateAttributeExpressions(flowFile).getValue();
+		PgConnection connection = null;
+		long recordCount;
+		try {
+			// Idle connections may have been closed by the server or a failover meanwhile
+			while ((connection = connections.poll()) != null && !connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+				close(connection);
+			}
+			if (connection == null) {
+				connection = LogicalDecoding.createConnection(context, false);
+				connection.setAutoCommit(false);
+			}
+			recordCount = copy(context, session, flowFile, connection, tableName);
+			connection.commit();
+		}
+		catch (Exception e) {
+			if (isConnectionFailure(e)) {
+				// Nothing wrong with the FlowFile, it is copied again once the database is back
+				log.error("Lost the connection to the database copying the records of {} to {}, retrying later",
+						new Object[] { flowFile, tableName }, e);
+				if (connection != null) {
+					close(connection);
+					connection = null;
+				}
+				session.rollback(true);
+				context.yield();
+				return;
+			}
+			log.error("Failed to copy the records of {} to {}", new Object[] { flowFile, tableName }, e);
+			if (connection != null) {
+				try {
+					connection.rollback();
+				}
+				catch (Exception rollbackException) {
+					// Broken connections are not reused
+					close(connection);
+					connection = null;
+				}
+			}
+			session.transfer(flowFile, FAILURE);
+			return;
+		}
+		finally {
+			if (connection != null) {
+				connections.offer(connection);
+			}
+		}
+
+		flowFile = session.putAttribute(flowFile, GraphQL.RECORD_COUNT_ATTRIBUTE, String.valueOf(recordCount));
+		session.transfer(flowFile, SUCCESS);
+	}
+
+	private long copy(final ProcessContext context, final ProcessSession session, FlowFile flowFile, PgConnection connection, String tableName) throws SQLException {
+		RecordReaderFactory readerFactory = context.getProperty("recordReader").asControllerService(RecordReaderFactory.class);
+		int batchSize = context.getProperty("batchSize").asInteger();
+		String upsertKeys = context.getProperty("upsertKeys").getValue();
+
+		// Columns of the table, by name, and the table name as quoted by PostgreSQL
+		Map<String, String> columnTypes = new HashMap<>();
+		String quotedName = null;
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT a.attname, format_type(a.atttypid, NULL), a.attrelid::regclass::text FROM pg_attribute a "
+				+ "WHERE a.attrelid = ?::regclass AND a.attnum > 0 AND NOT a.attisdropped ORDER BY a.attnum")) {
+			statement.setString(1, tableName);
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next()) {
+					columnTypes.put(result.getString(1), result.getString(2));
+					quotedName = result.getString(3);
+				}
+			}
+		}
+		if (quotedName == null) {
+			throw new ProcessException("Table " + tableName + " has no columns");
+		}
+		String table = quotedName;
+
+		String target = table;
+		if (upsertKeys != null) {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("CREATE TEMPORARY TABLE " + STAGING_TABLE + " (LIKE " + table + " INCLUDING DEFAULTS) ON COMMIT DROP");
+			}
+			target = STAGING_TABLE;
+		}
+		String copyTarget = target;
+
+		AtomicLong recordCount = new AtomicLong();
+		session.read(flowFile, in -> {
+			try (RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger())) {
+				// Unquoted identifiers are folded to lower case by PostgreSQL, so i.e. a customerId field matches customerid
+				List<String> fieldNames = new ArrayList<>();
+				List<String> columnNames = new ArrayList<>();
+				List<String> types = new ArrayList<>();
+				for (String fieldName : reader.getSchema().getFieldNames()) {
+					String columnName = columnTypes.containsKey(fieldName) ? fieldName : fieldName.toLowerCase();
+					if (columnTypes.containsKey(columnName)) {
+						fieldNames.add(fieldName);
+						columnNames.add(columnName);
+						types.add(columnTypes.get(columnName));
+					}
+				}
+				if (fieldNames.isEmpty()) {
+					throw new ProcessException("No record field matches a column of " + table);
+				}
+				PgCopyEncoder encoder = new PgCopyEncoder(columnNames, types);
+				StringBuilder columns = new StringBuilder();
+				for (String columnName : columnNames) {
+					columns.append(columns.length() > 0 ? ", " : "").append(quote(columnName));
+				}
+				String copySql = "COPY " + copyTarget + " (" + columns + ") FROM STDIN WITH " + encoder.getOptions();
+				String upsertSql = upsertKeys == null ? null : upsertSql(table, columnNames, columns.toString(), upsertKeys);
+
+				Object[] values = new Object[fieldNames.size()];
+				Record record = reader.nextRecord();
+				while (record != null) {
+					PGCopyOutputStream copyOut = new PGCopyOutputStream(connection, copySql, 65536);
+					try {
+						DataOutputStream out = new DataOutputStream(copyOut);
+						encoder.writeHeader(out);
+						int batchCount = 0;
+						while (record != null && batchCount < batchSize) {
+							for (int i = 0; i < values.length; i++) {
+								values[i] = record.getValue(fieldNames.get(i));
+							}
+							encoder.writeRow(out, values);
+							batchCount++;
+							record = reader.nextRecord();
+						}
+						encoder.writeTrailer(out);
+						out.flush();
+						copyOut.endCopy();
+						recordCount.addAndGet(batchCount);
+					}
+					finally {
+						if (copyOut.isActive()) {
+							copyOut.cancelCopy();
+						}
+					}
+					if (upsertSql != null) {
+						try (Statement statement = connection.createStatement()) {
+							statement.executeUpdate(upsertSql);
+							statement.execute("TRUNCATE " + STAGING_TABLE);
+						}
+					}
+				}
+			}
+			catch (MalformedRecordException | SchemaNotFoundException | SQLException e) {
+				throw new IOException(e);
+			}
+		});
+		return recordCount.get();
+	}
+
+	/**
+	 * @return true if the failure is the loss of the connection to the database (SQL state class 08), or the server
+	 *         shutting down, which the records have nothing to do with
+	 */
+	static boolean isConnectionFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException) {
+				String state = ((SQLException) cause).getSQLState();
+				if (state != null && (state.startsWith("08") || state.equals("57P01") || state.equals("57P02") || state.equals("57P03"))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static String upsertSql(String table, List<String> columnNames, String columns, String upsertKeys) {
+		Set<String> keys = new HashSet<>();
+		StringBuilder conflict = new StringBuilder();
+		for (String key : upsertKeys.split(",")) {
+			keys.add(key.trim());
+			conflict.append(conflict.length() > 0 ? ", " : "").append(quote(key.trim()));
+		}
+		StringBuilder updates = new StringBuilder();
+		for (String columnName : columnNames) {
+			if (!keys.contains(columnName)) {
+				updates.append(updates.length() > 0 ? ", " : "").append(quote(columnName)).append(" = EXCLUDED.").append(quote(columnName));
+			}
+		}
+		return "INSERT INTO " + table + " (" + columns + ") SELECT " + columns + " FROM " + STAGING_TABLE
+				+ " ON CONFLICT (" + conflict + ") DO " + (updates.length() > 0 ? "UPDATE SET " + updates : "NOTHING");
+	}
+
+	private void close(PgConnection connection) {
+		try {
+			connection.close();
+		}
+		catch (Exception e) {
+			getLogger().warn(e.getMessage(), e);
+		}
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+}
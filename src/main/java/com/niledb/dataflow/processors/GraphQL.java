@@ -15,44 +15,158 @@
  */
 package com.niledb.dataflow.processors;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
-import org.apache.http.client.entity.EntityBuilder;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
-import org.apache.nifi.annotation.behavior.SideEffectFree;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.niledb.dataflow.services.GraphQLClientService;
+import com.niledb.dataflow.services.StandardGraphQLClientService;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
-@SideEffectFree
 @Tags({ "GraphQL", "API", "NileDB", "Invoke", "Service", "niledb.com" })
 @CapabilityDescription("Invokes NileDB's GraphQL services populating GraphQL variables with NIFI attributes.")
-public class GraphQL extends AbstractProcessor {
+public class GraphQL extends AbstractSessionFactoryProcessor {
+	
+	static final AllowableValue BATCH_MODE_ALIASED = new AllowableValue("aliased", "Aliased document",
+			"Merges the operations into a single document, aliasing their root fields and renaming their variables.");
+	static final AllowableValue BATCH_MODE_ARRAY = new AllowableValue("array", "Array",
+			"Sends a JSON array of requests. The GraphQL service must support array batching.");
+	
+	static final AllowableValue RESPONSE_DESTINATION_ATTRIBUTE = new AllowableValue("attribute", "Attribute",
+			"The response is stored in the attribute named by 'Response target attribute name'.");
+	static final AllowableValue RESPONSE_DESTINATION_CONTENT = new AllowableValue("content", "Content",
+			"The response replaces the FlowFile content. It is streamed without being loaded in memory, unless batching is enabled.");
+	
+	static final AllowableValue VARIABLES_SOURCE_ATTRIBUTES = new AllowableValue("attributes", "Attributes",
+			"Variables are taken from the attributes listed in 'Attribute names'.");
+	static final AllowableValue VARIABLES_SOURCE_CONTENT = new AllowableValue("content", "Content",
+			"Variables are read from the content: a JSON object, a JSON array of objects or newline delimited JSON objects. "
+			+ "Every object is sent as the variables of one operation, in batches of 'Batch size' operations per request.");
+	
+	static final String RECORD_COUNT_ATTRIBUTE = "record.count";
+	static final String ERROR_ATTRIBUTE = "graphql.error";
+	static final String STATUS_CODE_ATTRIBUTE = "graphql.status.code";
+	
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	
+	// Smaller requests fit in a packet anyway, they are sent as they are
+	private static final int MIN_COMPRESSED_SIZE = 1024;
+	
+	static final AllowableValue EXECUTION_MODE_SYNCHRONOUS = new AllowableValue("synchronous", "Synchronous",
+			"Each concurrent task blocks until its request is answered.");
+	static final AllowableValue EXECUTION_MODE_ASYNCHRONOUS = new AllowableValue("asynchronous", "Asynchronous",
+			"Requests are sent from a non-blocking Vert.x HTTP client, keeping several of them in flight per concurrent task.");
 	
 	private List<PropertyDescriptor> properties;
 	private Set<Relationship> relationships;
+	
+	private volatile CloseableHttpClient httpClient = null;
+	private volatile boolean ownHttpClient = false;
+	// Timeouts of the HTTP client, which the asynchronous client follows
+	private volatile long connectTimeoutMillis = StandardGraphQLClientService.DEFAULT_CONNECT_TIMEOUT;
+	private volatile long socketTimeoutMillis = StandardGraphQLClientService.DEFAULT_SOCKET_TIMEOUT;
+	private volatile long idleTimeoutMillis = StandardGraphQLClientService.DEFAULT_IDLE_TIMEOUT;
+	private volatile Vertx vertx = null;
+	private volatile HttpClient asyncHttpClient = null;
+	private volatile JsonPathExtractor responseExtractor = null;
+	private volatile GraphQLRequestTemplate requestTemplate = null;
+	private volatile GraphQLResponseCache responseCache = null;
+	private volatile ConcurrencyLimiter limiter = null;
+	private volatile int maxRetries = 0;
+	private volatile long retryBackoffMillis = 0;
+	private volatile long maxRetryBackoffMillis = 0;
+	private volatile PersistedQueries persistedQueries = null;
+	private volatile boolean compressRequests = false;
+	private volatile boolean compressResponses = false;
+	
+	private Metrics metrics = null;
+	private volatile Integer metricsPort = null;
+	private Metrics.Counter requestsMetric;
+	private Metrics.Counter errorsMetric;
+	private Metrics.Counter retriesMetric;
+	private Metrics.Counter persistedQueryMissesMetric;
+	private Metrics.Counter responseBytesMetric;
+	private Metrics.Counter cacheHitsMetric;
+	private Metrics.Counter cacheMissesMetric;
+	private Metrics.Counter cacheEvictionsMetric;
+	private Metrics.Gauge inFlightMetric;
+	private Metrics.Gauge concurrencyLimitMetric;
+	private Metrics.Histogram requestTimeMetric;
+	private Metrics.Histogram requestSizeMetric;
+	
+	private static final ThreadLocal<JsonBuffer> REQUEST_BUFFER = ThreadLocal.withInitial(JsonBuffer::new);
+	private static final ThreadLocal<JsonBuffer> CACHE_KEY_BUFFER = ThreadLocal.withInitial(JsonBuffer::new);
+	private static final ThreadLocal<JsonBuffer> EXPANDED_REQUEST_BUFFER = ThreadLocal.withInitial(JsonBuffer::new);
+	private static final ThreadLocal<JsonBuffer> COMPRESSED_REQUEST_BUFFER = ThreadLocal.withInitial(JsonBuffer::new);
 
 	public static final PropertyDescriptor QUERY = new PropertyDescriptor.Builder()
 			.name("query")
@@ -76,9 +190,25 @@ public class GraphQL extends AbstractProcessor {
 	public static final PropertyDescriptor ATTRIBUTE_NAMES = new PropertyDescriptor.Builder()
 			.name("attributeNames")
 			.displayName("Attribute names")
-			.description("Attributes that must be mapped to GraphQL variables, separated by commas (i.e. username,password,age)")
+			.description("Attributes that must be mapped to GraphQL variables, separated by commas (i.e. username,password,age). "
+					+ "Variables are strings unless a type is given after a colon: number, boolean or json (i.e. username,age:number,active:boolean).")
 			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
 			.required(false)
+			.addValidator((subject, input, context) -> {
+				String reason = GraphQLRequestTemplate.validate(input);
+				return new ValidationResult.Builder().subject(subject).input(input).valid(reason == null).explanation(reason).build();
+			})
+			.build();
+	
+	public static final PropertyDescriptor VARIABLES_SOURCE = new PropertyDescriptor.Builder()
+			.name("variablesSource")
+			.displayName("Variables source")
+			.description("Where GraphQL variables are taken from. When they are read from the content, the response is a JSON array "
+					+ "with one response per object (unless the content is a single object), and FlowFiles are always processed synchronously.")
+			.defaultValue(VARIABLES_SOURCE_ATTRIBUTES.getValue())
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.allowableValues(VARIABLES_SOURCE_ATTRIBUTES, VARIABLES_SOURCE_CONTENT)
 			.build();
 	
 	public static final PropertyDescriptor RESPONSE_TARGET_ATTRIBUTE_NAME = new PropertyDescriptor.Builder()
@@ -90,8 +220,178 @@ public class GraphQL extends AbstractProcessor {
 			.addValidator(StandardValidators.ATTRIBUTE_KEY_VALIDATOR)
 			.build();
 	
+	public static final PropertyDescriptor RESPONSE_DESTINATION = new PropertyDescriptor.Builder()
+			.name("responseDestination")
+			.displayName("Response destination")
+			.description("Where the GraphQL services response must be stored. Large query results should be written to the content. "
+					+ "In both cases, dynamic properties can extract single values from the response (i.e. $.data.Customers_CustomerCreate.id) into attributes.")
+			.defaultValue(RESPONSE_DESTINATION_ATTRIBUTE.getValue())
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.allowableValues(RESPONSE_DESTINATION_ATTRIBUTE, RESPONSE_DESTINATION_CONTENT)
+			.build();
+	
+	public static final PropertyDescriptor HTTP_CLIENT_SERVICE = new PropertyDescriptor.Builder()
+			.name("httpClientService")
+			.displayName("HTTP client service")
+			.description("Shared, pooled HTTP client. If not set, the processor uses its own pool with default settings.")
+			.required(false)
+			.identifiesControllerService(GraphQLClientService.class)
+			.build();
+	
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("batchSize")
+			.displayName("Batch size")
+			.description("Maximum number of FlowFiles sent to the GraphQL service in a single HTTP request.")
+			.defaultValue("1")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor BATCH_MODE = new PropertyDescriptor.Builder()
+			.name("batchMode")
+			.displayName("Batch mode")
+			.description("How the requests of a batch are combined. Only used when batch size is greater than 1.")
+			.defaultValue(BATCH_MODE_ALIASED.getValue())
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.allowableValues(BATCH_MODE_ALIASED, BATCH_MODE_ARRAY)
+			.build();
+	
+	public static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor.Builder()
+			.name("executionMode")
+			.displayName("Execution mode")
+			.description("Whether requests block the NiFi thread or are pipelined on the Vert.x event loop.")
+			.defaultValue(EXECUTION_MODE_SYNCHRONOUS.getValue())
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.allowableValues(EXECUTION_MODE_SYNCHRONOUS, EXECUTION_MODE_ASYNCHRONOUS)
+			.build();
+	
+	public static final PropertyDescriptor MAX_IN_FLIGHT_REQUESTS = new PropertyDescriptor.Builder()
+			.name("maxInFlightRequests")
+			.displayName("Max in-flight requests")
+			.description("Maximum number of requests awaiting a response, per concurrent task. Only used in asynchronous mode.")
+			.defaultValue("16")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor.Builder()
+			.name("cacheSize")
+			.displayName("Cache size")
+			.description("Maximum number of responses kept in memory, by evaluated query and variables, so that repeated lookups "
+					+ "don't reach the GraphQL service. Only query operations are cached, never mutations, and only if their response has no errors. "
+					+ "Variables read from the content are not cached. 0 disables the cache.")
+			.defaultValue("0")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor CACHE_TTL = new PropertyDescriptor.Builder()
+			.name("cacheTtl")
+			.displayName("Cache time to live")
+			.description("How long a cached response can be used (i.e. 5 min).")
+			.defaultValue("5 min")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RETRIES = new PropertyDescriptor.Builder()
+			.name("maxRetries")
+			.displayName("Max retries")
+			.description("Number of times a request in flight is retried after a transient failure, in asynchronous mode: a "
+					+ "connection error, a timeout or an HTTP status 408, 429 or 5xx. FlowFiles whose requests still fail are "
+					+ "routed to RETRY. Synchronous requests are not retried, they would hold the thread while waiting: their "
+					+ "FlowFiles are routed to RETRY, penalized, at the first transient failure.")
+			.defaultValue("3")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RETRY_BACKOFF = new PropertyDescriptor.Builder()
+			.name("retryBackoff")
+			.displayName("Retry back-off")
+			.description("Time to wait before the first retry in asynchronous mode, doubled for every following one. A random "
+					+ "jitter of up to the same time is added, so that concurrent tasks don't retry in lockstep.")
+			.defaultValue("100 ms")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RETRY_BACKOFF = new PropertyDescriptor.Builder()
+			.name("maxRetryBackoff")
+			.displayName("Max retry back-off")
+			.description("Maximum time to wait before a retry, including the time asked by the GraphQL service with a "
+					+ "Retry-After header, during which no concurrent task sends requests.")
+			.defaultValue("30 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor LATENCY_THRESHOLD = new PropertyDescriptor.Builder()
+			.name("latencyThreshold")
+			.displayName("Latency threshold")
+			.description("Requests in flight are limited adaptively, up to 'Max in-flight requests' per concurrent task: "
+					+ "the limit is halved when the GraphQL service is overloaded and grows back by one every round trip. "
+					+ "Throttling responses (HTTP 429 and 503) and timeouts are signs of overload, and so are responses "
+					+ "slower than this threshold, if set (i.e. 2 sec).")
+			.required(false)
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor PERSISTED_QUERIES = new PropertyDescriptor.Builder()
+			.name("persistedQueries")
+			.displayName("Persisted queries")
+			.description("Whether requests carry the SHA-256 hash of the query instead of its text, as automatic persisted "
+					+ "queries. The text is only sent when the GraphQL service doesn't know the hash yet, along with it, "
+					+ "so that the service registers the query. If the service doesn't support them, the text is sent from then on.")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.build();
+	
+	public static final PropertyDescriptor COMPRESS_REQUESTS = new PropertyDescriptor.Builder()
+			.name("compressRequests")
+			.displayName("Compress requests")
+			.description("Whether requests of " + MIN_COMPRESSED_SIZE + " bytes or more are sent gzipped, with a "
+					+ "'Content-Encoding: gzip' header. The GraphQL service must support compressed requests.")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.build();
+	
+	public static final PropertyDescriptor COMPRESS_RESPONSES = new PropertyDescriptor.Builder()
+			.name("compressResponses")
+			.displayName("Compress responses")
+			.description("Whether gzipped or deflated responses are accepted, with an 'Accept-Encoding' header. They are "
+					+ "decompressed before being stored.")
+			.defaultValue("true")
+			.allowableValues("true", "false")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.build();
+	
 	public static final Relationship SUCCESS = new Relationship.Builder().name("SUCCESS")
 			.description("Success relationship").build();
+	
+	public static final Relationship FAILURE = new Relationship.Builder().name("FAILURE")
+			.description("FlowFiles whose requests failed permanently, i.e. with an HTTP 4xx status or an invalid response, "
+					+ "with the error in the " + ERROR_ATTRIBUTE + " attribute").build();
+	
+	public static final Relationship RETRY = new Relationship.Builder().name("RETRY")
+			.description("FlowFiles whose requests failed with a transient error, after all the retries in asynchronous "
+					+ "mode. They are penalized, so they can be routed back to the processor").build();
 
 	@Override
 	public void init(final ProcessorInitializationContext context) {
@@ -99,71 +399,1068 @@ public class GraphQL extends AbstractProcessor {
 		properties.add(QUERY);
 		properties.add(ENDPOINT);
 		properties.add(ATTRIBUTE_NAMES);
+		properties.add(VARIABLES_SOURCE);
 		properties.add(RESPONSE_TARGET_ATTRIBUTE_NAME);
+		properties.add(RESPONSE_DESTINATION);
+		properties.add(HTTP_CLIENT_SERVICE);
+		properties.add(BATCH_SIZE);
+		properties.add(BATCH_MODE);
+		properties.add(EXECUTION_MODE);
+		properties.add(MAX_IN_FLIGHT_REQUESTS);
+		properties.add(CACHE_SIZE);
+		properties.add(CACHE_TTL);
+		properties.add(MAX_RETRIES);
+		properties.add(RETRY_BACKOFF);
+		properties.add(MAX_RETRY_BACKOFF);
+		properties.add(LATENCY_THRESHOLD);
+		properties.add(PERSISTED_QUERIES);
+		properties.add(COMPRESS_REQUESTS);
+		properties.add(COMPRESS_RESPONSES);
+		properties.add(MetricsEndpoint.PORT);
 		this.properties = Collections.unmodifiableList(properties);
 		
 		Set<Relationship> relationships = new HashSet<>();
 		relationships.add(SUCCESS);
+		relationships.add(FAILURE);
+		relationships.add(RETRY);
 		this.relationships = Collections.unmodifiableSet(relationships);
+		
+		metrics = new Metrics("GraphQL", context.getIdentifier());
+		requestsMetric = metrics.counter("requests", "HTTP requests sent to the GraphQL service.");
+		errorsMetric = metrics.counter("errors", "FlowFiles or batches whose requests failed, routed to FAILURE or RETRY.");
+		retriesMetric = metrics.counter("retries", "Requests retried after a transient failure.");
+		persistedQueryMissesMetric = metrics.counter("persisted_query_misses",
+				"Requests sent again with their query text, because the GraphQL service didn't know its hash.");
+		responseBytesMetric = metrics.counter("response_bytes", "Bytes of the responses received, when their length is known.");
+		cacheHitsMetric = metrics.counter("cache_hits", "Requests answered from the response cache.");
+		cacheMissesMetric = metrics.counter("cache_misses", "Requests whose response wasn't cached, or had expired.");
+		cacheEvictionsMetric = metrics.counter("cache_evictions", "Responses evicted from the cache, expired or least recently used.");
+		inFlightMetric = metrics.gauge("in_flight_requests", "Requests awaiting a response.");
+		concurrencyLimitMetric = metrics.gauge("concurrency_limit", "Requests allowed in flight by the adaptive limit.");
+		requestTimeMetric = metrics.histogram("request_milliseconds", "Time between sending a request and receiving its whole response.",
+				Metrics.LATENCY_BUCKETS);
+		requestSizeMetric = metrics.histogram("request_bytes", "Size of the requests sent.", Metrics.SIZE_BUCKETS);
+	}
+	
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder()
+				.name(propertyDescriptorName)
+				.description("JSON path of the response value to be stored in the '" + propertyDescriptorName + "' attribute.")
+				.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+				.required(false)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+				.dynamic(true)
+				.build();
+	}
+	
+	@OnScheduled
+	public void compile(final ProcessContext context) {
+		PropertyValue query = context.getProperty("query");
+		persistedQueries = context.getProperty("persistedQueries").asBoolean() ? new PersistedQueries() : null;
+		requestTemplate = GraphQLRequestTemplate.compile(context.getProperty("attributeNames").getValue(),
+				query.isExpressionLanguagePresent() ? null : query.evaluateAttributeExpressions().getValue(), persistedQueries);
+		
+		Map<String, String> paths = new HashMap<>();
+		for (Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+			if (property.getKey().isDynamic()) {
+				paths.put(property.getKey().getName(), property.getValue());
+			}
+		}
+		responseExtractor = paths.isEmpty() ? null : new JsonPathExtractor(paths);
+		
+		int cacheSize = context.getProperty("cacheSize").asInteger();
+		responseCache = cacheSize > 0 ? new GraphQLResponseCache(cacheSize, context.getProperty("cacheTtl").asTimePeriod(TimeUnit.MILLISECONDS),
+				cacheHitsMetric, cacheMissesMetric, cacheEvictionsMetric) : null;
+	}
+	
+	@OnScheduled
+	public void createHttpClient(final ProcessContext context) {
+		GraphQLClientService httpClientService = context.getProperty("httpClientService").asControllerService(GraphQLClientService.class);
+		if (httpClientService != null) {
+			httpClient = httpClientService.getHttpClient();
+			ownHttpClient = false;
+			connectTimeoutMillis = httpClientService.getConnectTimeout();
+			socketTimeoutMillis = httpClientService.getSocketTimeout();
+			idleTimeoutMillis = httpClientService.getIdleTimeout();
+		}
+		else {
+			httpClient = StandardGraphQLClientService.createDefaultHttpClient();
+			ownHttpClient = true;
+			connectTimeoutMillis = StandardGraphQLClientService.DEFAULT_CONNECT_TIMEOUT;
+			socketTimeoutMillis = StandardGraphQLClientService.DEFAULT_SOCKET_TIMEOUT;
+			idleTimeoutMillis = StandardGraphQLClientService.DEFAULT_IDLE_TIMEOUT;
+		}
+		compressRequests = context.getProperty("compressRequests").asBoolean();
+		compressResponses = context.getProperty("compressResponses").asBoolean();
+		
+		if (context.getProperty("executionMode").getValue().equals(EXECUTION_MODE_ASYNCHRONOUS.getValue())) {
+			int maxInFlightRequests = context.getProperty("maxInFlightRequests").asInteger();
+			vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+			asyncHttpClient = vertx.createHttpClient(new HttpClientOptions()
+					.setKeepAlive(true)
+					.setMaxPoolSize(maxInFlightRequests)
+					.setMaxWaitQueueSize(-1)
+					.setTryUseCompression(compressResponses)
+					.setConnectTimeout((int) connectTimeoutMillis)
+					// In seconds, and 0 would keep idle connections forever
+					.setIdleTimeout((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(idleTimeoutMillis))));
+		}
+	}
+	
+	@OnScheduled
+	public void createLimiter(final ProcessContext context) {
+		boolean asynchronous = context.getProperty("executionMode").getValue().equals(EXECUTION_MODE_ASYNCHRONOUS.getValue());
+		int maxLimit = context.getMaxConcurrentTasks() * (asynchronous ? context.getProperty("maxInFlightRequests").asInteger() : 1);
+		PropertyValue latencyThreshold = context.getProperty("latencyThreshold");
+		limiter = new ConcurrencyLimiter(maxLimit, latencyThreshold.isSet() ? latencyThreshold.asTimePeriod(TimeUnit.MILLISECONDS) : 0);
+		concurrencyLimitMetric.set(maxLimit);
+		maxRetries = context.getProperty("maxRetries").asInteger();
+		retryBackoffMillis = context.getProperty("retryBackoff").asTimePeriod(TimeUnit.MILLISECONDS);
+		maxRetryBackoffMillis = context.getProperty("maxRetryBackoff").asTimePeriod(TimeUnit.MILLISECONDS);
+	}
+	
+	@OnScheduled
+	public void startMetrics(final ProcessContext context) throws Exception {
+		metricsPort = context.getProperty("metricsPort").asInteger();
+		if (metricsPort != null) {
+			MetricsEndpoint.register(metricsPort, metrics);
+		}
+	}
+	
+	@OnStopped
+	public void stopMetrics() {
+		if (metricsPort != null) {
+			MetricsEndpoint.unregister(metricsPort, metrics);
+			metricsPort = null;
+		}
 	}
 	
-    @Override
-	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+	@OnStopped
+	public void closeHttpClient() {
+		ComponentLog log = getLogger();
+		try {
+			if (httpClient != null && ownHttpClient) {
+				httpClient.close();
+			}
+			if (vertx != null) {
+				vertx.close();
+			}
+		}
+		catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+		finally {
+			httpClient = null;
+			asyncHttpClient = null;
+			vertx = null;
+		}
+	}
+	
+	/**
+	 * FlowFiles sent to the GraphQL service in a single HTTP request.
+	 */
+	private static final class Batch {
+		final ProcessSession session;
+		final List<FlowFile> flowFiles;
+		final int[] requestIndexes;
+		// Responses found in the cache, by FlowFile, and cache keys, by request
+		final String[] cachedResponses;
+		final ByteBuffer[] cacheKeys;
+		int requestCount = 0;
+		// Null for a single, not batched, request
+		String batchMode;
+		JsonBuffer request;
+		int retries = 0;
+		// Whether the request was written again with its query text, after a persisted query rejection
+		boolean expanded = false;
+		// Vert.x timer of the next retry, or -1
+		volatile long retryTimer = -1;
+		
+		Batch(ProcessSession session, List<FlowFile> flowFiles) {
+			this.session = session;
+			this.flowFiles = new ArrayList<>(flowFiles);
+			this.requestIndexes = new int[flowFiles.size()];
+			this.cachedResponses = new String[flowFiles.size()];
+			this.cacheKeys = new ByteBuffer[flowFiles.size()];
+		}
+	}
+	
+	/**
+	 * Completion of an asynchronous request, handed over from the event loop to the NiFi thread.
+	 */
+	private static final class Completion {
+		final Batch batch;
+		final String response;
+		final Throwable failure;
+		
+		Completion(Batch batch, String response, Throwable failure) {
+			this.batch = batch;
+			this.response = response;
+			this.failure = failure;
+		}
+	}
+	
+	/**
+	 * Response of the GraphQL service with an HTTP status other than 2xx.
+	 */
+	static final class ServiceException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private static final int MAX_BODY_LENGTH = 200;
+		
+		final int statusCode;
+		// Time asked by the service with Retry-After, or -1
+		final long retryAfterMillis;
+		
+		ServiceException(int statusCode, String body, long retryAfterMillis) {
+			super("GraphQL service returned HTTP " + statusCode + (body == null || body.isEmpty() ? ""
+					: ": " + (body.length() > MAX_BODY_LENGTH ? body.substring(0, MAX_BODY_LENGTH) + "..." : body)));
+			this.statusCode = statusCode;
+			this.retryAfterMillis = retryAfterMillis;
+		}
+	}
+	
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+		boolean contentVariables = context.getProperty("variablesSource").getValue().equals(VARIABLES_SOURCE_CONTENT.getValue());
+		if (!contentVariables
+				&& context.getProperty("executionMode").getValue().equals(EXECUTION_MODE_ASYNCHRONOUS.getValue())) {
+			onTriggerAsynchronous(context, sessionFactory);
+			return;
+		}
+		
+		ConcurrencyLimiter limiter = this.limiter;
+		if (!limiter.tryAcquire()) {
+			// FlowFiles stay queued, so that back pressure reaches the upstream processors
+			context.yield();
+			return;
+		}
+		ProcessSession session = sessionFactory.createSession();
+		try {
+			if (contentVariables) {
+				onTriggerContent(context, session);
+			}
+			else {
+				onTriggerSynchronous(context, session);
+			}
+			metrics.report(session);
+			session.commit();
+		}
+		catch (Throwable t) {
+			session.rollback(true);
+			throw t;
+		}
+		finally {
+			limiter.release();
+		}
+	}
+	
+	private void onTriggerSynchronous(final ProcessContext context, final ProcessSession session) throws ProcessException {
     	ComponentLog log = getLogger();
     	
-    	FlowFile flowFile = session.get();
+    	List<FlowFile> flowFiles = session.get(context.getProperty("batchSize").asInteger());
+    	if (flowFiles.isEmpty()) {
+    		return;
+    	}
     	
-		String query = context.getProperty("query").evaluateAttributeExpressions(flowFile).getValue();
+		Batch batch = new Batch(session, flowFiles);
+		
+		try {
+			prepare(context, batch, REQUEST_BUFFER.get());
+			List<String> responses = Collections.emptyList();
+			if (batch.requestCount == 1 && batch.cacheKeys[0] == null
+					&& context.getProperty("responseDestination").getValue().equals(RESPONSE_DESTINATION_CONTENT.getValue())) {
+				// The response is streamed straight into the FlowFile content
+				executeToContent(context.getProperty("endpoint").getValue(), batch);
+				responses = Collections.singletonList(null);
+			}
+			else if (batch.requestCount > 0) {
+				responses = parseResponses(batch, execute(context.getProperty("endpoint").getValue(), batch.request));
+			}
+			transfer(context, batch, responses);
+		}
+		catch (Exception e) {
+			log.info(e.getMessage());
+			errorsMetric.add(1);
+			transferFailure(session, batch.flowFiles, e);
+		}
+	}
+	
+	/**
+	 * Sends the records of the FlowFile content (a JSON object, a JSON array or newline delimited JSON) as the
+	 * variables of up to "batchSize" operations per request. The content is streamed, so a FlowFile with millions
+	 * of records is never split nor loaded in memory, unless the responses are stored in an attribute.
+	 */
+	private void onTriggerContent(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		ComponentLog log = getLogger();
+		
+		FlowFile flowFile = session.get();
+		if (flowFile == null) {
+			return;
+		}
+		
+		GraphQLRequestTemplate template = requestTemplate;
+		String query = template.isStatic() ? template.getStaticQuery() : context.getProperty("query").evaluateAttributeExpressions(flowFile).getValue();
 		String endpoint = context.getProperty("endpoint").getValue();
-		String attributeNames = context.getProperty("attributeNames").getValue();
 		String responseTargetAttributeName = context.getProperty("responseTargetAttributeName").getValue();
+		boolean contentDestination = context.getProperty("responseDestination").getValue().equals(RESPONSE_DESTINATION_CONTENT.getValue());
+		int batchSize = context.getProperty("batchSize").asInteger();
+		String batchMode = context.getProperty("batchMode").getValue();
 		
-		boolean flowFileTransferredOrRemoved = false;
+		AtomicLong recordCount = new AtomicLong();
+		try {
+			String response = null;
+			if (contentDestination) {
+				flowFile = session.write(flowFile, (in, out) -> recordCount.set(sendRecords(in, out, template, query, endpoint, batchSize, batchMode)));
+				flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), ContentType.APPLICATION_JSON.getMimeType());
+			}
+			else {
+				ByteArrayOutputStream responses = new ByteArrayOutputStream();
+				session.read(flowFile, in -> recordCount.set(sendRecords(in, responses, template, query, endpoint, batchSize, batchMode)));
+				response = responses.toString(StandardCharsets.UTF_8.name());
+				if (responseTargetAttributeName != null
+						&& !responseTargetAttributeName.equals("")) {
+					flowFile = session.putAttribute(flowFile, responseTargetAttributeName, response);
+				}
+			}
+			flowFile = session.putAttribute(flowFile, RECORD_COUNT_ATTRIBUTE, String.valueOf(recordCount.get()));
+			flowFile = putResponseValues(session, flowFile, response);
+			session.transfer(flowFile, SUCCESS);
+		}
+		catch (Exception e) {
+			// The session wraps the failures of the callback, which would hide the request that failed
+			Throwable failure = e instanceof ProcessException && e.getCause() instanceof IOException ? e.getCause() : e;
+			log.info(failure.getMessage());
+			errorsMetric.add(1);
+			transferFailure(session, Collections.singletonList(flowFile), failure);
+		}
+	}
+	
+	/**
+	 * Streams the JSON records from the input into requests, writing the responses to the output: the plain response
+	 * if the input is a single object, or an array with one response per record otherwise.
+	 * 
+	 * @return number of records
+	 */
+	private long sendRecords(InputStream in, OutputStream out, GraphQLRequestTemplate template, String query, String endpoint,
+			int batchSize, String batchMode) throws IOException {
 		
-		CloseableHttpClient httpClient = HttpClients.createDefault();
+		boolean aliased = batchSize > 1 && batchMode.equals(BATCH_MODE_ALIASED.getValue());
+		Map<Integer, String> mergedQueries = new HashMap<>();
 		
-		try {
-			if (query != null && !query.equals("")
-					&& endpoint != null && !endpoint.equals("")) {
+		JsonBuffer request = REQUEST_BUFFER.get();
+		try (JsonParser parser = JSON_FACTORY.createParser(in);
+				JsonGenerator generator = JSON_FACTORY.createGenerator((OutputStream) request)) {
+			generator.setRootValueSeparator(null);
+			
+			JsonToken token = parser.nextToken();
+			boolean array = token == JsonToken.START_ARRAY;
+			if (array) {
+				token = parser.nextToken();
+			}
+			
+			long count = 0;
+			while (token != null && token != JsonToken.END_ARRAY) {
+				Batch chunk = new Batch(null, Collections.emptyList());
+				chunk.batchMode = batchSize > 1 ? batchMode : null;
+				chunk.request = request;
+				request.reset();
+				
+				int members = 0;
+				if (aliased) {
+					// Variables go first, the merged query depends on the number of records in the chunk
+					request.writeRaw("{\"variables\":{");
+				}
+				else if (batchSize > 1) {
+					request.write('[');
+				}
+				
+				while (token != null && token != JsonToken.END_ARRAY && chunk.requestCount < batchSize) {
+					if (token != JsonToken.START_OBJECT) {
+						throw new ProcessException("GraphQL variables must be JSON objects, found " + token + " at record " + count);
+					}
+					if (aliased) {
+						String prefix = GraphQLBatch.prefix(chunk.requestCount);
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							if (members++ > 0) {
+								request.write(',');
+							}
+							request.writeString(prefix + parser.getCurrentName()).write(':');
+							parser.nextToken();
+							generator.copyCurrentStructure(parser);
+							generator.flush();
+						}
+					}
+					else {
+						if (chunk.requestCount > 0) {
+							request.write(',');
+						}
+						template.writeHeader(request, query);
+						generator.copyCurrentStructure(parser);
+						generator.flush();
+						request.write('}');
+					}
+					chunk.requestCount++;
+					count++;
+					token = parser.nextToken();
+				}
 				
-				JsonObject variables = new JsonObject();
-				if (attributeNames != null
-						&& !attributeNames.equals("")) {
-					StringTokenizer attributes = new StringTokenizer(attributeNames, ",");
-					while (attributes.hasMoreTokens()) {
-						String attributeName = attributes.nextToken().trim();
-						variables.put(attributeName, flowFile.getAttribute(attributeName));
+				if (aliased) {
+					int size = chunk.requestCount;
+					String mergedQuery = template.isStatic() ? template.getMergedQuery(size)
+							: mergedQueries.computeIfAbsent(size, key -> GraphQLBatch.mergeQuery(Collections.nCopies(size, query)));
+					request.writeRaw("},");
+					template.writeQueryMember(request, mergedQuery);
+					request.write('}');
+				}
+				else if (batchSize > 1) {
+					request.write(']');
+				}
+				
+				List<String> responses = parseResponses(chunk, execute(endpoint, request));
+				if (!array && count == 1 && token == null) {
+					out.write(responses.get(0).getBytes(StandardCharsets.UTF_8));
+					return count;
+				}
+				boolean first = count == chunk.requestCount;
+				for (int i = 0; i < responses.size(); i++) {
+					out.write(first && i == 0 ? '[' : ',');
+					out.write(responses.get(i).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			
+			if (count == 0) {
+				out.write('[');
+			}
+			out.write(']');
+			return count;
+		}
+	}
+	
+	/**
+	 * Keeps up to "maxInFlightRequests" requests running on the Vert.x event loop, each one with its own session,
+	 * and transfers and commits the FlowFiles from this thread as their responses arrive. It returns once the input
+	 * queue is drained, or once the adaptive limit doesn't allow more requests and those in flight are answered.
+	 * Transient failures are retried from a Vert.x timer, keeping the batch in flight.
+	 */
+	private void onTriggerAsynchronous(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+		ComponentLog log = getLogger();
+		
+		int batchSize = context.getProperty("batchSize").asInteger();
+		int maxInFlightRequests = context.getProperty("maxInFlightRequests").asInteger();
+		String endpoint = context.getProperty("endpoint").getValue();
+		ConcurrencyLimiter limiter = this.limiter;
+		
+		BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+		Set<Batch> inFlightBatches = new HashSet<>();
+		boolean limited = false;
+		
+		try {
+			while (true) {
+				while (inFlightBatches.size() < maxInFlightRequests && isScheduled()) {
+					if (!limiter.tryAcquire()) {
+						limited = true;
+						break;
+					}
+					ProcessSession session = sessionFactory.createSession();
+					List<FlowFile> flowFiles = session.get(batchSize);
+					if (flowFiles.isEmpty()) {
+						limiter.release();
+						session.commit();
+						break;
+					}
+					Batch batch = new Batch(session, flowFiles);
+					try {
+						// In-flight requests can't share a buffer
+						prepare(context, batch, new JsonBuffer());
+						if (batch.requestCount == 0) {
+							limiter.release();
+							transfer(context, batch, Collections.emptyList());
+							session.commit();
+							continue;
+						}
+						send(endpoint, batch, completions);
+						inFlightBatches.add(batch);
+					}
+					catch (Exception e) {
+						limiter.release();
+						log.info(e.getMessage());
+						errorsMetric.add(1);
+						transferFailure(session, batch.flowFiles, e);
+						session.commit();
 					}
 				}
 				
-				JsonObject request = new JsonObject()
-						.put("query", query)
-						.put("variables", variables);
+				if (inFlightBatches.isEmpty()) {
+					break;
+				}
 				
-				HttpPost httpPost = new HttpPost(endpoint);
-				httpPost.setEntity(EntityBuilder.create().setContentEncoding("UTF-8").setContentType(ContentType.APPLICATION_JSON).setText(request.encode()).build());
-				CloseableHttpResponse response = httpClient.execute(httpPost);
+				Completion completion = completions.poll(socketTimeoutMillis * 2 + maxRetryBackoffMillis,
+						TimeUnit.MILLISECONDS);
+				if (completion == null) {
+					throw new ProcessException("Timed out waiting for " + inFlightBatches.size() + " GraphQL requests");
+				}
 				
-				if (responseTargetAttributeName != null
+				do {
+					Batch batch = completion.batch;
+					Throwable failure = completion.failure;
+					int rejection = failure == null && !batch.expanded ? rejection(completion.response) : PersistedQueries.NONE;
+					if (rejection != PersistedQueries.NONE) {
+						// Sent again with the query text, which the service registers for the following requests
+						persistedQueryMissesMetric.add(1);
+						JsonBuffer expanded = new JsonBuffer(batch.request.size() + 256);
+						persistedQueries.expand(batch.request, expanded, rejection);
+						batch.request = expanded;
+						batch.expanded = true;
+						send(endpoint, batch, completions);
+						completion = completions.poll();
+						continue;
+					}
+					if (failure != null && batch.retries < maxRetries && isTransient(failure) && isScheduled()) {
+						retriesMetric.add(1);
+						batch.retryTimer = vertx.setTimer(Math.max(1, retryDelay(batch.retries++, failure)), timer -> {
+							batch.retryTimer = -1;
+							send(endpoint, batch, completions);
+						});
+						completion = completions.poll();
+						continue;
+					}
+					inFlightBatches.remove(batch);
+					limiter.release();
+					try {
+						if (failure != null) {
+							throw failure;
+						}
+						transfer(context, batch, parseResponses(batch, completion.response));
+					}
+					catch (Throwable e) {
+						log.info(e.getMessage());
+						errorsMetric.add(1);
+						transferFailure(batch.session, batch.flowFiles, e);
+					}
+					batch.session.commit();
+					completion = completions.poll();
+				}
+				while (completion != null);
+			}
+			if (limited) {
+				context.yield();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProcessException(e);
+		}
+		finally {
+			// Batches still in flight go back to the input queue
+			for (Batch batch : inFlightBatches) {
+				if (batch.retryTimer >= 0) {
+					vertx.cancelTimer(batch.retryTimer);
+				}
+				limiter.release();
+				batch.session.rollback();
+			}
+			ProcessSession session = sessionFactory.createSession();
+			metrics.report(session);
+			session.commit();
+		}
+	}
+	
+	private void send(String endpoint, Batch batch, BlockingQueue<Completion> completions) {
+		Buffer body;
+		try {
+			// In-flight requests can't share a buffer
+			body = Buffer.buffer(isCompressed(batch.request) ? compress(batch.request, new JsonBuffer()).toByteArray()
+					: batch.request.toByteArray());
+		}
+		catch (IOException e) {
+			completions.add(new Completion(batch, null, e));
+			return;
+		}
+		// A request may fail after its response started, but it must be completed only once
+		AtomicBoolean completed = new AtomicBoolean(false);
+		long start = startRequest(body.length());
+		Handler<Throwable> failureHandler = e -> {
+			if (completed.compareAndSet(false, true)) {
+				endRequest(start, -1, e);
+				completions.add(new Completion(batch, null, e));
+			}
+		};
+		HttpClientRequest request = asyncHttpClient.postAbs(endpoint, response -> {
+			response.exceptionHandler(failureHandler);
+			response.bodyHandler(responseBody -> {
+				if (completed.compareAndSet(false, true)) {
+					String text = responseBody.toString(StandardCharsets.UTF_8.name());
+					// Persisted query rejections may come with an error status, they are handled as responses
+					boolean rejected = !batch.expanded && rejection(text) != PersistedQueries.NONE;
+					ServiceException failure = response.statusCode() / 100 == 2 || rejected ? null
+							: new ServiceException(response.statusCode(), text, parseRetryAfter(response.getHeader("Retry-After")));
+					endRequest(start, responseBody.length(), failure);
+					completions.add(new Completion(batch, failure == null ? text : null, failure));
+				}
+			});
+		});
+		request.exceptionHandler(failureHandler);
+		request.setTimeout(socketTimeoutMillis);
+		request.putHeader("Content-Type", ContentType.APPLICATION_JSON.toString());
+		if (isCompressed(batch.request)) {
+			request.putHeader("Content-Encoding", "gzip");
+		}
+		request.end(body);
+	}
+	
+	/**
+	 * Writes the request of the batch into the given buffer, using the template compiled at schedule time.
+	 */
+	private void prepare(final ProcessContext context, Batch batch, JsonBuffer request) {
+		GraphQLRequestTemplate template = requestTemplate;
+		GraphQLResponseCache cache = responseCache;
+		boolean staticQueryCacheable = cache != null && template.isStatic() && isQueryOperation(template.getStaticQuery());
+		String endpoint = context.getProperty("endpoint").getValue();
+		List<FlowFile> flowFiles = batch.flowFiles;
+		
+		batch.batchMode = context.getProperty("batchMode").getValue();
+		batch.request = request;
+		request.reset();
+		
+		List<String> queries = new ArrayList<>(flowFiles.size());
+		for (int i = 0; i < flowFiles.size(); i++) {
+			FlowFile flowFile = flowFiles.get(i);
+			String query = template.isStatic() ? template.getStaticQuery() : context.getProperty("query").evaluateAttributeExpressions(flowFile).getValue();
+			batch.requestIndexes[i] = -1;
+			if (query != null && !query.equals("")
+					&& endpoint != null && !endpoint.equals("")) {
+				ByteBuffer cacheKey = null;
+				if (cache != null && (template.isStatic() ? staticQueryCacheable : isQueryOperation(query))) {
+					JsonBuffer single = CACHE_KEY_BUFFER.get();
+					single.reset();
+					template.writeRequest(single, query, flowFile);
+					cacheKey = GraphQLResponseCache.key(single);
+					batch.cachedResponses[i] = cache.get(cacheKey);
+					if (batch.cachedResponses[i] != null) {
+						continue;
+					}
+				}
+				batch.cacheKeys[batch.requestCount] = cacheKey;
+				batch.requestIndexes[i] = batch.requestCount++;
+				queries.add(query);
+			}
+		}
+		
+		if (batch.requestCount == 1) {
+			batch.batchMode = null;
+			template.writeRequest(request, queries.get(0), flowFiles.get(indexOfRequest(batch, 0)));
+		}
+		else if (batch.requestCount > 1 && batch.batchMode.equals(BATCH_MODE_ARRAY.getValue())) {
+			request.write('[');
+			for (int i = 0; i < batch.requestCount; i++) {
+				if (i > 0) {
+					request.write(',');
+				}
+				template.writeRequest(request, queries.get(i), flowFiles.get(indexOfRequest(batch, i)));
+			}
+			request.write(']');
+		}
+		else if (batch.requestCount > 1) {
+			String query = template.isStatic() ? template.getMergedQuery(batch.requestCount) : GraphQLBatch.mergeQuery(queries);
+			request.write('{');
+			template.writeQueryMember(request, query);
+			request.writeRaw(",\"variables\":{");
+			for (int i = 0; i < batch.requestCount; i++) {
+				if (i > 0 && template.getVariableCount() > 0) {
+					request.write(',');
+				}
+				template.writeVariables(request, GraphQLBatch.prefix(i), flowFiles.get(indexOfRequest(batch, i)));
+			}
+			request.writeRaw("}}");
+		}
+	}
+	
+	private static boolean isQueryOperation(String query) {
+		try {
+			return GraphQLBatch.operationType(query).equals("query");
+		}
+		catch (RuntimeException e) {
+			return false;
+		}
+	}
+	
+	private static int indexOfRequest(Batch batch, int requestIndex) {
+		for (int i = requestIndex; i < batch.requestIndexes.length; i++) {
+			if (batch.requestIndexes[i] == requestIndex) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("Request " + requestIndex + " not found in batch");
+	}
+	
+	private List<String> parseResponses(Batch batch, String response) {
+		List<String> responses = new ArrayList<>(batch.requestCount);
+		if (batch.batchMode == null) {
+			responses.add(response);
+		}
+		else if (batch.batchMode.equals(BATCH_MODE_ARRAY.getValue())) {
+			JsonArray array = new JsonArray(response);
+			if (array.size() != batch.requestCount) {
+				throw new ProcessException("GraphQL service returned " + array.size() + " responses for a batch of " + batch.requestCount + " requests");
+			}
+			for (int i = 0; i < array.size(); i++) {
+				responses.add(array.getJsonObject(i).encode());
+			}
+		}
+		else {
+			for (JsonObject single : GraphQLBatch.split(new JsonObject(response), batch.requestCount)) {
+				responses.add(single.encode());
+			}
+		}
+		return responses;
+	}
+	
+	/**
+	 * Stores the responses and transfers every FlowFile of the batch. A null response means it was already streamed
+	 * into the FlowFile content.
+	 */
+	private void transfer(final ProcessContext context, Batch batch, List<String> responses) throws IOException {
+		ProcessSession session = batch.session;
+		String responseTargetAttributeName = context.getProperty("responseTargetAttributeName").getValue();
+		boolean contentDestination = context.getProperty("responseDestination").getValue().equals(RESPONSE_DESTINATION_CONTENT.getValue());
+		
+		GraphQLResponseCache cache = responseCache;
+		
+		for (int i = 0; i < batch.flowFiles.size(); i++) {
+			FlowFile flowFile = batch.flowFiles.get(i);
+			int index = batch.requestIndexes[i];
+			if (index >= 0 || batch.cachedResponses[i] != null) {
+				String response = index >= 0 ? responses.get(index) : batch.cachedResponses[i];
+				if (index >= 0 && cache != null && batch.cacheKeys[index] != null && response != null
+						&& new JsonObject(response).getValue("errors") == null) {
+					cache.put(batch.cacheKeys[index], response);
+				}
+				// Every new version is kept in the batch, so that it can still be routed to failure
+				if (contentDestination) {
+					if (response != null) {
+						flowFile = session.write(flowFile, out -> out.write(response.getBytes(StandardCharsets.UTF_8)));
+					}
+					flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), ContentType.APPLICATION_JSON.getMimeType());
+				}
+				else if (responseTargetAttributeName != null
 						&& !responseTargetAttributeName.equals("")) {
-					session.putAttribute(flowFile, responseTargetAttributeName, EntityUtils.toString(response.getEntity()));
+					flowFile = session.putAttribute(flowFile, responseTargetAttributeName, response);
 				}
+				batch.flowFiles.set(i, flowFile);
 				
-				response.close();
-				httpClient.close();
+				flowFile = putResponseValues(session, flowFile, response);
 			}
+			batch.flowFiles.set(i, flowFile);
 			session.transfer(flowFile, SUCCESS);
-			flowFileTransferredOrRemoved = true;
 		}
-		catch (Exception e) {
-			log.info(e.getMessage());
-			e.printStackTrace();
+	}
+	
+	/**
+	 * Routes the FlowFiles of a failed request to RETRY, penalized, if the failure is transient, so that they are
+	 * sent again later, or to FAILURE otherwise, with the error in attributes. A pause asked by the service is
+	 * honored by every concurrent task.
+	 */
+	private void transferFailure(final ProcessSession session, List<FlowFile> flowFiles, Throwable failure) {
+		boolean retry = isTransient(failure);
+		ServiceException serviceException = findServiceException(failure);
+		if (retry && serviceException != null && serviceException.retryAfterMillis > 0) {
+			limiter.pause(Math.min(serviceException.retryAfterMillis, maxRetryBackoffMillis));
+		}
+		for (FlowFile flowFile : flowFiles) {
+			flowFile = session.putAttribute(flowFile, ERROR_ATTRIBUTE, String.valueOf(failure.getMessage()));
+			if (serviceException != null) {
+				flowFile = session.putAttribute(flowFile, STATUS_CODE_ATTRIBUTE, String.valueOf(serviceException.statusCode));
+			}
+			if (retry) {
+				session.transfer(session.penalize(flowFile), RETRY);
+			}
+			else {
+				session.transfer(flowFile, FAILURE);
+			}
+		}
+	}
+	
+	static ServiceException findServiceException(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ServiceException) {
+				return (ServiceException) cause;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return true if the request may succeed if sent again: it failed with a connection error, a timeout or an HTTP
+	 *         status 408, 429 or 5xx, and not because of the request or the response
+	 */
+	static boolean isTransient(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ServiceException) {
+				int statusCode = ((ServiceException) cause).statusCode;
+				return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+			}
+			if (cause instanceof JsonProcessingException) {
+				return false;
+			}
+			if (cause instanceof IOException || cause instanceof TimeoutException || cause instanceof VertxException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true if the failure tells the GraphQL service is overloaded: it throttled the request or timed out
+	 */
+	private static boolean isOverload(Throwable failure) {
+		if (failure instanceof ServiceException) {
+			int statusCode = ((ServiceException) failure).statusCode;
+			return statusCode == 429 || statusCode == 503;
+		}
+		// Socket and connect timeouts, and Vert.x request timeouts
+		return failure instanceof InterruptedIOException || failure instanceof TimeoutException;
+	}
+	
+	/**
+	 * @return the time asked by a Retry-After header, in seconds or as an HTTP date, or -1 if there is none
+	 */
+	static long parseRetryAfter(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()) * 1000);
+		}
+		catch (NumberFormatException e) {
+			try {
+				return Math.max(0, ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+						- System.currentTimeMillis());
+			}
+			catch (DateTimeParseException e2) {
+				return -1;
+			}
+		}
+	}
+	
+	/**
+	 * @return the time to wait before a retry: the time asked by the service, which pauses every concurrent task, or
+	 *         an exponential back-off with jitter, bounded by "maxRetryBackoff"
+	 */
+	private long retryDelay(int retries, Throwable failure) {
+		ServiceException serviceException = findServiceException(failure);
+		if (serviceException != null && serviceException.retryAfterMillis >= 0) {
+			long delay = Math.min(serviceException.retryAfterMillis, maxRetryBackoffMillis);
+			limiter.pause(delay);
+			return delay;
+		}
+		long backoff = Math.min(maxRetryBackoffMillis, retryBackoffMillis << Math.min(retries, 20));
+		return Math.min(maxRetryBackoffMillis, backoff + ThreadLocalRandom.current().nextLong(backoff + 1));
+	}
+	
+	/**
+	 * @throws ServiceException if the response has an error status
+	 */
+	static void checkStatus(CloseableHttpResponse response, String body) throws ServiceException {
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode / 100 != 2) {
+			Header retryAfter = response.getFirstHeader("Retry-After");
+			throw new ServiceException(statusCode, body, parseRetryAfter(retryAfter == null ? null : retryAfter.getValue()));
+		}
+	}
+	
+	/**
+	 * Extracts the values selected by dynamic properties into attributes. A null response is read from the content.
+	 */
+	private FlowFile putResponseValues(final ProcessSession session, FlowFile flowFile, String response) throws IOException {
+		JsonPathExtractor extractor = responseExtractor;
+		if (extractor == null) {
+			return flowFile;
+		}
+		Map<String, String> values;
+		if (response == null) {
+			values = new HashMap<>();
+			session.read(flowFile, in -> values.putAll(extractor.extract(in)));
+		}
+		else {
+			values = extractor.extract(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+		}
+		return session.putAllAttributes(flowFile, values);
+	}
+	
+	private void executeToContent(String endpoint, Batch batch) throws IOException {
+		int rejection = postToContent(endpoint, batch, batch.request, persistedQueries != null);
+		if (rejection != PersistedQueries.NONE) {
+			// Sent again with the query text, which the service registers for the following requests
+			persistedQueryMissesMetric.add(1);
+			JsonBuffer expanded = EXPANDED_REQUEST_BUFFER.get();
+			persistedQueries.expand(batch.request, expanded, rejection);
+			postToContent(endpoint, batch, expanded, false);
+		}
+	}
+	
+	/**
+	 * Streams the response into the content of the FlowFile of the request.
+	 * 
+	 * @param hashed whether the request may be rejected for carrying unknown query hashes
+	 * @return the rejection of the persisted query, in which case the content isn't written, or PersistedQueries.NONE
+	 */
+	private int postToContent(String endpoint, Batch batch, JsonBuffer request, boolean hashed) throws IOException {
+		HttpPost httpPost = createPost(endpoint, request);
+		long start = startRequest((int) httpPost.getEntity().getContentLength());
+		long length = -1;
+		IOException failure = null;
+		try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+			HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() / 100 != 2) {
+				String body = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+				int rejection = hashed ? PersistedQueries.rejection(body) : PersistedQueries.NONE;
+				if (rejection == PersistedQueries.NONE) {
+					checkStatus(response, body);
+				}
+				return rejection;
+			}
+			InputStream content = entity.getContent();
+			if (hashed) {
+				// Rejections are short, they are told apart without reading the whole response
+				content = new BufferedInputStream(content, PersistedQueries.MAX_REJECTION_LENGTH);
+				content.mark(PersistedQueries.MAX_REJECTION_LENGTH);
+				byte[] beginning = new byte[PersistedQueries.MAX_REJECTION_LENGTH];
+				int read = StreamUtils.fillBuffer(content, beginning, false);
+				content.reset();
+				int rejection = PersistedQueries.rejection(new String(beginning, 0, read, StandardCharsets.UTF_8));
+				if (rejection != PersistedQueries.NONE) {
+					EntityUtils.consume(entity);
+					return rejection;
+				}
+			}
+			InputStream in = content;
+			AtomicLong copied = new AtomicLong();
+			for (int i = 0; i < batch.flowFiles.size(); i++) {
+				if (batch.requestIndexes[i] >= 0) {
+					batch.flowFiles.set(i, batch.session.write(batch.flowFiles.get(i), out -> copied.set(StreamUtils.copy(in, out))));
+				}
+			}
+			length = copied.get();
+			return PersistedQueries.NONE;
+		}
+		catch (IOException e) {
+			failure = e;
+			throw e;
 		}
 		finally {
-			if (!flowFileTransferredOrRemoved) {
-				session.remove(flowFile);
+			endRequest(start, length, failure);
+		}
+	}
+	
+	private String execute(String endpoint, JsonBuffer request) throws IOException {
+		String response = post(endpoint, request, persistedQueries != null);
+		int rejection = rejection(response);
+		if (rejection != PersistedQueries.NONE) {
+			// Sent again with the query text, which the service registers for the following requests
+			persistedQueryMissesMetric.add(1);
+			JsonBuffer expanded = EXPANDED_REQUEST_BUFFER.get();
+			persistedQueries.expand(request, expanded, rejection);
+			response = post(endpoint, expanded, false);
+		}
+		return response;
+	}
+	
+	/**
+	 * @param hashed whether the request may be rejected for carrying unknown query hashes, which isn't an error then
+	 * @return the response body
+	 */
+	private String post(String endpoint, JsonBuffer request, boolean hashed) throws IOException {
+		HttpPost httpPost = createPost(endpoint, request);
+		long start = startRequest((int) httpPost.getEntity().getContentLength());
+		long length = -1;
+		IOException failure = null;
+		try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+			String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			// Chunked and decompressed responses have no length, their characters are close enough
+			length = response.getEntity().getContentLength() >= 0 ? response.getEntity().getContentLength() : body.length();
+			if (!hashed || PersistedQueries.rejection(body) == PersistedQueries.NONE) {
+				checkStatus(response, body);
 			}
+			return body;
+		}
+		catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			endRequest(start, length, failure);
+		}
+	}
+	
+	/**
+	 * @return a POST of the request, gzipped if it's worth it, which must be sent before the next one from this thread
+	 */
+	private HttpPost createPost(String endpoint, JsonBuffer request) throws IOException {
+		HttpPost httpPost = new HttpPost(endpoint);
+		if (isCompressed(request)) {
+			JsonBuffer compressed = compress(request, COMPRESSED_REQUEST_BUFFER.get());
+			ByteArrayEntity entity = new ByteArrayEntity(compressed.array(), 0, compressed.size(), ContentType.APPLICATION_JSON);
+			entity.setContentEncoding("gzip");
+			httpPost.setEntity(entity);
+		}
+		else {
+			httpPost.setEntity(new ByteArrayEntity(request.array(), 0, request.size(), ContentType.APPLICATION_JSON));
+		}
+		if (!compressResponses) {
+			// Otherwise the HTTP client asks for gzip or deflate, and decompresses the response
+			httpPost.setHeader("Accept-Encoding", "identity");
+		}
+		return httpPost;
+	}
+	
+	private boolean isCompressed(JsonBuffer request) {
+		return compressRequests && request.size() >= MIN_COMPRESSED_SIZE;
+	}
+	
+	/**
+	 * Gzips the request into the given buffer.
+	 */
+	private static JsonBuffer compress(JsonBuffer request, JsonBuffer out) throws IOException {
+		out.reset();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(request.array(), 0, request.size());
+		}
+		return out;
+	}
+	
+	/**
+	 * @return the rejection of a persisted query in the response, or PersistedQueries.NONE
+	 */
+	private int rejection(String response) {
+		return persistedQueries == null || response == null ? PersistedQueries.NONE : PersistedQueries.rejection(response);
+	}
+	
+	/**
+	 * @return the start time of the request, to be given to {@link #endRequest(long, long, Throwable)}
+	 */
+	private long startRequest(int size) {
+		requestsMetric.add(1);
+		requestSizeMetric.observe(size);
+		inFlightMetric.add(1);
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Records the outcome of a request in the metrics and in the adaptive limit.
+	 * 
+	 * @param responseLength bytes of the response, or -1 if unknown or failed
+	 * @param failure the failure of the request, or null
+	 */
+	private void endRequest(long start, long responseLength, Throwable failure) {
+		inFlightMetric.add(-1);
+		requestTimeMetric.observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		if (responseLength > 0) {
+			responseBytesMetric.add(responseLength);
 		}
+		ConcurrencyLimiter limiter = this.limiter;
+		limiter.record(start, failure != null && isOverload(failure));
+		concurrencyLimitMetric.set(limiter.getLimit());
 	}
 	
 	@Override
@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Merges several single-operation GraphQL requests into one aliased document, and splits the response back.
+ *
+ * Every root field of the i-th operation is aliased as "b{i}_{alias or field name}" and every variable is renamed
+ * as "$b{i}_{name}", so the operations can't collide. Fragments, multiple operations per document and operation
+ * directives are not supported.
+ */
+class GraphQLBatch {
+
+	static final class Operation {
+		String type;
+		String variableDefinitions;
+		String selections;
+	}
+
+	static String prefix(int index) {
+		return "b" + index + "_";
+	}
+
+	/**
+	 * Merges the queries. The variables of the i-th query must be renamed with {@link #prefix(int)}.
+	 */
+	static String mergeQuery(List<String> queries) {
+		String type = null;
+		StringBuilder variableDefinitions = new StringBuilder();
+		StringBuilder selections = new StringBuilder();
+
+		for (int i = 0; i < queries.size(); i++) {
+			Operation operation = parse(queries.get(i), prefix(i));
+			if (type == null) {
+				type = operation.type;
+			}
+			else if (!type.equals(operation.type)) {
+				throw new IllegalArgumentException("Can't batch " + type + " and " + operation.type + " operations in the same document");
+			}
+			if (operation.variableDefinitions != null) {
+				variableDefinitions.append(operation.variableDefinitions).append(' ');
+			}
+			selections.append(operation.selections).append('\n');
+		}
+
+		StringBuilder query = new StringBuilder(type);
+		if (variableDefinitions.length() > 0) {
+			query.append(" (").append(variableDefinitions).append(')');
+		}
+		query.append(" {\n").append(selections).append('}');
+		return query.toString();
+	}
+
+	static List<JsonObject> split(JsonObject response, int size) {
+		List<JsonObject> responses = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			responses.add(new JsonObject());
+		}
+
+		JsonObject data = response.getJsonObject("data");
+		for (int i = 0; i < size; i++) {
+			responses.get(i).put("data", data == null ? null : new JsonObject());
+		}
+		if (data != null) {
+			for (Map.Entry<String, Object> field : data) {
+				int index = indexOf(field.getKey());
+				if (index >= 0 && index < size) {
+					responses.get(index).getJsonObject("data").put(field.getKey().substring(prefix(index).length()), field.getValue());
+				}
+			}
+		}
+
+		JsonArray errors = response.getJsonArray("errors");
+		if (errors != null) {
+			for (int e = 0; e < errors.size(); e++) {
+				JsonObject error = errors.getJsonObject(e);
+				JsonArray path = error.getJsonArray("path");
+				int index = path != null && path.size() > 0 && path.getValue(0) instanceof String ? indexOf(path.getString(0)) : -1;
+				if (index >= 0 && index < size) {
+					JsonArray localPath = new JsonArray().add(path.getString(0).substring(prefix(index).length()));
+					for (int p = 1; p < path.size(); p++) {
+						localPath.add(path.getValue(p));
+					}
+					addError(responses.get(index), error.copy().put("path", localPath));
+				}
+				else {
+					// Errors that can't be attributed to an operation (i.e. validation errors) affect all of them
+					for (JsonObject single : responses) {
+						addError(single, error);
+					}
+				}
+			}
+		}
+		return responses;
+	}
+
+	private static void addError(JsonObject response, JsonObject error) {
+		JsonArray errors = response.getJsonArray("errors");
+		if (errors == null) {
+			errors = new JsonArray();
+			response.put("errors", errors);
+		}
+		errors.add(error);
+	}
+
+	private static int indexOf(String alias) {
+		if (alias.length() < 3 || alias.charAt(0) != 'b') {
+			return -1;
+		}
+		int end = alias.indexOf('_');
+		if (end < 2) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(alias.substring(1, end));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the type of the first operation of the document (query, mutation or subscription)
+	 */
+	static String operationType(String query) {
+		int i = skipIgnored(query, 0);
+		if (i < query.length() && query.charAt(i) == '{') {
+			return "query";
+		}
+		return query.substring(i, readName(query, i));
+	}
+
+	static Operation parse(String query, String prefix) {
+		Operation operation = new Operation();
+		int i = skipIgnored(query, 0);
+		if (i < query.length() && query.charAt(i) == '{') {
+			operation.type = "query";
+		}
+		else {
+			int end = readName(query, i);
+			operation.type = query.substring(i, end);
+			if (!operation.type.equals("query") && !operation.type.equals("mutation") && !operation.type.equals("subscription")) {
+				throw new IllegalArgumentException("Unexpected token '" + operation.type + "' in GraphQL query");
+			}
+			i = skipIgnored(query, end);
+			if (i < query.length() && isNameStart(query.charAt(i))) {
+				// Operation name, not needed in the merged document
+				i = skipIgnored(query, readName(query, i));
+			}
+			if (i < query.length() && query.charAt(i) == '(') {
+				int close = matching(query, i, '(', ')');
+				operation.variableDefinitions = renameVariables(query.substring(i + 1, close), prefix);
+				i = skipIgnored(query, close + 1);
+			}
+		}
+		if (i >= query.length() || query.charAt(i) != '{') {
+			throw new IllegalArgumentException("Only single operations without directives can be batched");
+		}
+		int close = matching(query, i, '{', '}');
+		operation.selections = aliasSelections(query.substring(i + 1, close), prefix);
+		if (skipIgnored(query, close + 1) != query.length()) {
+			throw new IllegalArgumentException("Fragments and multiple operations per document can't be batched");
+		}
+		return operation;
+	}
+
+	private static String renameVariables(String text, String prefix) {
+		StringBuilder result = new StringBuilder(text.length() + 16);
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '"') {
+				int end = skipString(text, i);
+				result.append(text, i, end);
+				i = end;
+			}
+			else if (c == '#') {
+				i = skipComment(text, i);
+			}
+			else if (c == '$') {
+				result.append('$').append(prefix);
+				i++;
+			}
+			else {
+				result.append(c);
+				i++;
+			}
+		}
+		return result.toString();
+	}
+
+	private static String aliasSelections(String text, String prefix) {
+		StringBuilder result = new StringBuilder(text.length() + 64);
+		int nesting = 0;
+		boolean fieldAfterAlias = false;
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '"') {
+				int end = skipString(text, i);
+				result.append(text, i, end);
+				i = end;
+			}
+			else if (c == '#') {
+				i = skipComment(text, i);
+			}
+			else if (c == '$') {
+				result.append('$').append(prefix);
+				i++;
+			}
+			else if (c == '{' || c == '(' || c == '[') {
+				nesting++;
+				result.append(c);
+				i++;
+			}
+			else if (c == '}' || c == ')' || c == ']') {
+				nesting--;
+				result.append(c);
+				i++;
+			}
+			else if (c == '@' && nesting == 0) {
+				// Field directive, copied verbatim
+				int end = readName(text, i + 1);
+				result.append(text, i, end);
+				i = end;
+			}
+			else if (c == '.' && nesting == 0) {
+				throw new IllegalArgumentException("Fragment spreads can't be batched");
+			}
+			else if (isNameStart(c)) {
+				int end = readName(text, i);
+				if (nesting == 0) {
+					if (fieldAfterAlias) {
+						result.append(text, i, end);
+						fieldAfterAlias = false;
+					}
+					else {
+						int next = skipIgnored(text, end);
+						if (next < text.length() && text.charAt(next) == ':') {
+							fieldAfterAlias = true;
+							result.append(prefix).append(text, i, end);
+						}
+						else {
+							result.append(prefix).append(text, i, end).append(": ").append(text, i, end);
+						}
+					}
+				}
+				else {
+					result.append(text, i, end);
+				}
+				i = end;
+			}
+			else {
+				result.append(c);
+				i++;
+			}
+		}
+		return result.toString();
+	}
+
+	private static boolean isNameStart(char c) {
+		return c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private static int readName(String text, int i) {
+		int end = i;
+		while (end < text.length()) {
+			char c = text.charAt(end);
+			if (!isNameStart(c) && !(c >= '0' && c <= '9')) {
+				break;
+			}
+			end++;
+		}
+		return end;
+	}
+
+	private static int skipIgnored(String text, int i) {
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '#') {
+				i = skipComment(text, i);
+			}
+			else if (Character.isWhitespace(c) || c == ',' || c == '\uFEFF') {
+				i++;
+			}
+			else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int skipComment(String text, int i) {
+		while (i < text.length() && text.charAt(i) != '\n' && text.charAt(i) != '\r') {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipString(String text, int i) {
+		if (text.startsWith("\"\"\"", i)) {
+			int end = text.indexOf("\"\"\"", i + 3);
+			while (end > 0 && text.charAt(end - 1) == '\\') {
+				end = text.indexOf("\"\"\"", end + 3);
+			}
+			if (end < 0) {
+				throw new IllegalArgumentException("Unterminated block string in GraphQL query");
+			}
+			return end + 3;
+		}
+		i++;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				i += 2;
+			}
+			else if (c == '"') {
+				return i + 1;
+			}
+			else {
+				i++;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string in GraphQL query");
+	}
+
+	private static int matching(String text, int i, char open, char close) {
+		int depth = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '"') {
+				i = skipString(text, i);
+				continue;
+			}
+			if (c == '#') {
+				i = skipComment(text, i);
+				continue;
+			}
+			if (c == open) {
+				depth++;
+			}
+			else if (c == close) {
+				depth--;
+				if (depth == 0) {
+					return i;
+				}
+			}
+			i++;
+		}
+		throw new IllegalArgumentException("Unbalanced '" + open + "' in GraphQL query");
+	}
+}
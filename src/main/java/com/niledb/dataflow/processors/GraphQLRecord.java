@@ -0,0 +1,491 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.niledb.dataflow.services.GraphQLClientService;
+import com.niledb.dataflow.services.StandardGraphQLClientService;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+@Tags({ "GraphQL", "API", "NileDB", "Invoke", "Service", "niledb.com", "record", "csv", "avro", "json" })
+@CapabilityDescription("Invokes NileDB's GraphQL services once per record, populating GraphQL variables with record fields. "
+		+ "Records are read and sent in batches, and written back with the GraphQL response of each one, "
+		+ "so FlowFiles with millions of records don't need to be split. Batches already sent are not rolled back when a later "
+		+ "one fails: the whole FlowFile is routed to RETRY or FAILURE, and sending it again executes the operations of "
+		+ "those batches again, so mutations should be idempotent.")
+public class GraphQLRecord extends AbstractProcessor {
+
+	static final String ERROR_COUNT_ATTRIBUTE = "graphql.error.count";
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private List<PropertyDescriptor> properties;
+	private Set<Relationship> relationships;
+
+	private volatile CloseableHttpClient httpClient = null;
+	private volatile boolean ownHttpClient = false;
+	private volatile GraphQLRequestTemplate requestTemplate = null;
+
+	private static final ThreadLocal<JsonBuffer> REQUEST_BUFFER = ThreadLocal.withInitial(JsonBuffer::new);
+
+	public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+			.name("recordReader")
+			.displayName("Record reader")
+			.description("Reader of the incoming records (i.e. CSV, Avro or JSON).")
+			.identifiesControllerService(RecordReaderFactory.class)
+			.required(true)
+			.build();
+
+	public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+			.name("recordWriter")
+			.displayName("Record writer")
+			.description("Writer of the outgoing records, which are the incoming ones plus the response field.")
+			.identifiesControllerService(RecordSetWriterFactory.class)
+			.required(true)
+			.build();
+
+	public static final PropertyDescriptor FIELD_NAMES = new PropertyDescriptor.Builder()
+			.name("fieldNames")
+			.displayName("Field names")
+			.description("Record fields that must be mapped to GraphQL variables, separated by commas (i.e. email,firstName,age). "
+					+ "If not set, every field of the record is sent. Field types are kept, so numbers, booleans, arrays and nested records "
+					+ "are sent as such.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("batchSize")
+			.displayName("Batch size")
+			.description("Maximum number of records sent to the GraphQL service in a single HTTP request.")
+			.defaultValue("100")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor RESPONSE_FIELD_NAME = new PropertyDescriptor.Builder()
+			.name("responseFieldName")
+			.displayName("Response field name")
+			.description("Field of the outgoing records where the GraphQL response of each record is stored, as a JSON string.")
+			.defaultValue("response")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	public static final Relationship SUCCESS = new Relationship.Builder().name("SUCCESS")
+			.description("Records with their GraphQL responses").build();
+
+	public static final Relationship FAILURE = new Relationship.Builder().name("FAILURE")
+			.description("FlowFiles whose records couldn't be read or sent to the GraphQL service, i.e. because of an HTTP 4xx "
+					+ "status or an invalid response, with the error in the " + GraphQL.ERROR_ATTRIBUTE + " attribute").build();
+
+	public static final Relationship RETRY = new Relationship.Builder().name("RETRY")
+			.description("FlowFiles whose records couldn't be sent because of a transient error: a connection error, a timeout "
+					+ "or an HTTP status 408, 429 or 5xx. They are penalized, so they can be routed back to the processor. "
+					+ "Batches sent before the error are sent again then").build();
+
+	public static final Relationship ORIGINAL = new Relationship.Builder().name("ORIGINAL")
+			.description("Incoming FlowFiles, once their records have been sent").build();
+
+	@Override
+	public void init(final ProcessorInitializationContext context) {
+		List<PropertyDescriptor> properties = new ArrayList<>();
+		properties.add(RECORD_READER);
+		properties.add(RECORD_WRITER);
+		properties.add(GraphQL.QUERY);
+		properties.add(GraphQL.ENDPOINT);
+		properties.add(FIELD_NAMES);
+		properties.add(RESPONSE_FIELD_NAME);
+		properties.add(GraphQL.HTTP_CLIENT_SERVICE);
+		properties.add(BATCH_SIZE);
+		properties.add(GraphQL.BATCH_MODE);
+		this.properties = Collections.unmodifiableList(properties);
+
+		Set<Relationship> relationships = new HashSet<>();
+		relationships.add(SUCCESS);
+		relationships.add(FAILURE);
+		relationships.add(RETRY);
+		relationships.add(ORIGINAL);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@OnScheduled
+	public void compile(final ProcessContext context) {
+		PropertyValue query = context.getProperty("query");
+		requestTemplate = query.isExpressionLanguagePresent() ? null
+				: GraphQLRequestTemplate.compile(null, query.evaluateAttributeExpressions().getValue());
+	}
+
+	@OnScheduled
+	public void createHttpClient(final ProcessContext context) {
+		GraphQLClientService httpClientService = context.getProperty("httpClientService").asControllerService(GraphQLClientService.class);
+		if (httpClientService != null) {
+			httpClient = httpClientService.getHttpClient();
+			ownHttpClient = false;
+		}
+		else {
+			httpClient = StandardGraphQLClientService.createDefaultHttpClient();
+			ownHttpClient = true;
+		}
+	}
+
+	@OnStopped
+	public void closeHttpClient() {
+		ComponentLog log = getLogger();
+		try {
+			if (httpClient != null && ownHttpClient) {
+				httpClient.close();
+			}
+		}
+		catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+		finally {
+			httpClient = null;
+		}
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		ComponentLog log = getLogger();
+
+		FlowFile original = session.get();
+		if (original == null) {
+			return;
+		}
+
+		// Templates of queries with expression language are compiled per FlowFile, batches of a FlowFile share the query
+		GraphQLRequestTemplate template = requestTemplate != null ? requestTemplate
+				: GraphQLRequestTemplate.compile(null, context.getProperty("query").evaluateAttributeExpressions(original).getValue());
+		RecordReaderFactory readerFactory = context.getProperty("recordReader").asControllerService(RecordReaderFactory.class);
+		RecordSetWriterFactory writerFactory = context.getProperty("recordWriter").asControllerService(RecordSetWriterFactory.class);
+		String endpoint = context.getProperty("endpoint").getValue();
+		String fieldNames = context.getProperty("fieldNames").getValue();
+		String responseFieldName = context.getProperty("responseFieldName").getValue();
+		int batchSize = context.getProperty("batchSize").asInteger();
+		String batchMode = batchSize > 1 ? context.getProperty("batchMode").getValue() : null;
+
+		List<String> variableNames = null;
+		if (fieldNames != null) {
+			variableNames = new ArrayList<>();
+			for (String fieldName : fieldNames.split(",")) {
+				if (!fieldName.trim().isEmpty()) {
+					variableNames.add(fieldName.trim());
+				}
+			}
+		}
+		List<String> variables = variableNames;
+
+		FlowFile results = session.create(original);
+		Map<String, String> attributes = new HashMap<>();
+		AtomicInteger errorCount = new AtomicInteger();
+		try {
+			results = session.write(results, out -> session.read(original, in -> {
+				try (RecordReader reader = readerFactory.createRecordReader(original, in, log)) {
+					RecordSchema readSchema = reader.getSchema();
+					List<RecordField> fields = new ArrayList<>(readSchema.getFields());
+					fields.add(new RecordField(responseFieldName, RecordFieldType.STRING.getDataType()));
+					RecordSchema resultSchema = new SimpleRecordSchema(fields);
+					RecordSchema writeSchema = writerFactory.getSchema(original.getAttributes(), resultSchema);
+
+					try (RecordSetWriter writer = writerFactory.createWriter(log, writeSchema, out)) {
+						writer.beginRecordSet();
+						List<Record> batch = new ArrayList<>(batchSize);
+						Record record;
+						while ((record = reader.nextRecord()) != null) {
+							batch.add(record);
+							if (batch.size() == batchSize) {
+								errorCount.addAndGet(send(template, endpoint, batchMode, variables, batch, resultSchema, responseFieldName, writer));
+								batch.clear();
+							}
+						}
+						if (!batch.isEmpty()) {
+							errorCount.addAndGet(send(template, endpoint, batchMode, variables, batch, resultSchema, responseFieldName, writer));
+						}
+						WriteResult writeResult = writer.finishRecordSet();
+						attributes.putAll(writeResult.getAttributes());
+						attributes.put(GraphQL.RECORD_COUNT_ATTRIBUTE, String.valueOf(writeResult.getRecordCount()));
+						attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+					}
+				}
+				catch (MalformedRecordException | SchemaNotFoundException e) {
+					throw new ProcessException(e);
+				}
+			}));
+		}
+		catch (Exception e) {
+			log.error("Failed to send the records of {} to the GraphQL service", new Object[] { original }, e);
+			session.remove(results);
+			FlowFile failed = session.putAttribute(original, GraphQL.ERROR_ATTRIBUTE, String.valueOf(e.getMessage()));
+			GraphQL.ServiceException serviceException = GraphQL.findServiceException(e);
+			if (serviceException != null) {
+				failed = session.putAttribute(failed, GraphQL.STATUS_CODE_ATTRIBUTE, String.valueOf(serviceException.statusCode));
+			}
+			if (GraphQL.isTransient(e)) {
+				session.transfer(session.penalize(failed), RETRY);
+			}
+			else {
+				session.transfer(failed, FAILURE);
+			}
+			return;
+		}
+
+		attributes.put(ERROR_COUNT_ATTRIBUTE, String.valueOf(errorCount.get()));
+		session.transfer(session.putAllAttributes(results, attributes), SUCCESS);
+		session.transfer(original, ORIGINAL);
+	}
+
+	/**
+	 * Sends a batch of records in a single request and writes them with their responses.
+	 *
+	 * @return number of responses with errors
+	 */
+	private int send(GraphQLRequestTemplate template, String endpoint, String batchMode, List<String> variables, List<Record> batch,
+			RecordSchema resultSchema, String responseFieldName, RecordSetWriter writer) throws IOException {
+
+		JsonBuffer request = REQUEST_BUFFER.get();
+		request.reset();
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(request)) {
+			generator.setRootValueSeparator(null);
+			if (batchMode == null) {
+				template.writeHeader(request, null);
+				writeVariables(generator, null, variables, batch.get(0));
+				generator.flush();
+				request.write('}');
+			}
+			else if (batchMode.equals(GraphQL.BATCH_MODE_ARRAY.getValue())) {
+				request.write('[');
+				for (int i = 0; i < batch.size(); i++) {
+					if (i > 0) {
+						request.write(',');
+					}
+					template.writeHeader(request, null);
+					writeVariables(generator, null, variables, batch.get(i));
+					generator.flush();
+					request.write('}');
+				}
+				request.write(']');
+			}
+			else {
+				request.writeRaw("{\"query\":").writeString(template.getMergedQuery(batch.size())).writeRaw(",\"variables\":");
+				generator.writeStartObject();
+				for (int i = 0; i < batch.size(); i++) {
+					writeFields(generator, GraphQLBatch.prefix(i), variables, batch.get(i));
+				}
+				generator.writeEndObject();
+				generator.flush();
+				request.write('}');
+			}
+		}
+
+		List<JsonObject> responses = parseResponses(batchMode, batch.size(), execute(endpoint, request));
+		int errors = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			Record record = batch.get(i);
+			JsonObject response = responses.get(i);
+			if (response.getJsonArray("errors") != null) {
+				errors++;
+			}
+			Map<String, Object> values = new HashMap<>();
+			for (RecordField field : record.getSchema().getFields()) {
+				values.put(field.getFieldName(), record.getValue(field));
+			}
+			values.put(responseFieldName, response.encode());
+			writer.write(new MapRecord(resultSchema, values));
+		}
+		return errors;
+	}
+
+	private static List<JsonObject> parseResponses(String batchMode, int size, String response) {
+		if (batchMode == null) {
+			return Collections.singletonList(new JsonObject(response));
+		}
+		if (batchMode.equals(GraphQL.BATCH_MODE_ARRAY.getValue())) {
+			JsonArray array = new JsonArray(response);
+			if (array.size() != size) {
+				throw new ProcessException("GraphQL service returned " + array.size() + " responses for a batch of " + size + " requests");
+			}
+			List<JsonObject> responses = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				responses.add(array.getJsonObject(i));
+			}
+			return responses;
+		}
+		return GraphQLBatch.split(new JsonObject(response), size);
+	}
+
+	private static void writeVariables(JsonGenerator generator, String prefix, List<String> variables, Record record) throws IOException {
+		generator.writeStartObject();
+		writeFields(generator, prefix, variables, record);
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Writes the variables of a record as members of the current object, renamed with the batch prefix if any.
+	 */
+	private static void writeFields(JsonGenerator generator, String prefix, List<String> variables, Record record) throws IOException {
+		Collection<String> names = variables != null ? variables : record.getSchema().getFieldNames();
+		for (String name : names) {
+			generator.writeFieldName(prefix == null ? name : prefix + name);
+			writeValue(generator, record.getValue(name));
+		}
+	}
+
+	private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+		if (value == null) {
+			generator.writeNull();
+		}
+		else if (value instanceof String) {
+			generator.writeString((String) value);
+		}
+		else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			generator.writeNumber(((Number) value).longValue());
+		}
+		else if (value instanceof BigInteger) {
+			generator.writeNumber((BigInteger) value);
+		}
+		else if (value instanceof BigDecimal) {
+			generator.writeNumber((BigDecimal) value);
+		}
+		else if (value instanceof Number) {
+			generator.writeNumber(((Number) value).doubleValue());
+		}
+		else if (value instanceof Boolean) {
+			generator.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Timestamp) {
+			generator.writeString(((Timestamp) value).toInstant().toString());
+		}
+		else if (value instanceof java.sql.Date || value instanceof Time) {
+			generator.writeString(value.toString());
+		}
+		else if (value instanceof Date) {
+			generator.writeString(((Date) value).toInstant().toString());
+		}
+		else if (value instanceof Record) {
+			writeVariables(generator, null, null, (Record) value);
+		}
+		else if (value instanceof Map) {
+			generator.writeStartObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				generator.writeFieldName(String.valueOf(entry.getKey()));
+				writeValue(generator, entry.getValue());
+			}
+			generator.writeEndObject();
+		}
+		else if (value instanceof byte[]) {
+			generator.writeBinary((byte[]) value);
+		}
+		else if (value instanceof Object[]) {
+			generator.writeStartArray();
+			for (Object element : (Object[]) value) {
+				writeValue(generator, element);
+			}
+			generator.writeEndArray();
+		}
+		else if (value instanceof Collection) {
+			generator.writeStartArray();
+			for (Object element : (Collection<?>) value) {
+				writeValue(generator, element);
+			}
+			generator.writeEndArray();
+		}
+		else {
+			generator.writeString(value.toString());
+		}
+	}
+
+	private String execute(String endpoint, JsonBuffer request) throws IOException {
+		HttpPost httpPost = new HttpPost(endpoint);
+		httpPost.setEntity(new ByteArrayEntity(request.array(), 0, request.size(), ContentType.APPLICATION_JSON));
+		try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+			String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			// Error pages aren't GraphQL responses, and throttling must be told apart from invalid requests
+			GraphQL.checkStatus(response, body);
+			return body;
+		}
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return relationships;
+	}
+
+	@Override
+	public List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return properties;
+	}
+}
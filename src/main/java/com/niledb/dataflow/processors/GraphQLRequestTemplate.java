@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * GraphQL request template compiled once per schedule: attribute to variable mappings, and, when the query doesn't
+ * use expression language, the query itself, already escaped as the beginning of the request JSON. With persisted
+ * queries, requests carry the hash of the query instead of its text.
+ *
+ * Variables are declared as "name" or "name:type", where type is one of string (default), number, boolean or json.
+ */
+class GraphQLRequestTemplate {
+
+	enum VariableType { STRING, NUMBER, BOOLEAN, JSON }
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String[] names;
+	private final VariableType[] types;
+	private final byte[][] keys;
+	private final String staticQuery;
+	private final byte[] staticHeader;
+	private final PersistedQueries persistedQueries;
+	private final ConcurrentMap<Integer, String> mergedQueries = new ConcurrentHashMap<>();
+
+	private GraphQLRequestTemplate(String[] names, VariableType[] types, String staticQuery, PersistedQueries persistedQueries) {
+		this.names = names;
+		this.types = types;
+		this.staticQuery = staticQuery;
+		this.persistedQueries = persistedQueries;
+
+		keys = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			JsonBuffer key = new JsonBuffer(names[i].length() + 3);
+			key.writeString(names[i]).write(':');
+			keys[i] = key.toByteArray();
+		}
+
+		if (staticQuery != null) {
+			JsonBuffer header = new JsonBuffer(staticQuery.length() + 32);
+			header.write('{');
+			writeQueryMember(header, staticQuery);
+			header.writeRaw(",\"variables\":");
+			staticHeader = header.toByteArray();
+		}
+		else {
+			staticHeader = null;
+		}
+	}
+
+	/**
+	 * @param attributeNames comma separated variable declarations
+	 * @param staticQuery the query, or null if it has to be evaluated for each FlowFile
+	 */
+	static GraphQLRequestTemplate compile(String attributeNames, String staticQuery) {
+		return compile(attributeNames, staticQuery, null);
+	}
+
+	/**
+	 * @param persistedQueries hashes of the queries to send instead of their text, or null to always send the text
+	 */
+	static GraphQLRequestTemplate compile(String attributeNames, String staticQuery, PersistedQueries persistedQueries) {
+		List<String> names = new ArrayList<>();
+		List<VariableType> types = new ArrayList<>();
+		if (attributeNames != null) {
+			for (String declaration : attributeNames.split(",")) {
+				declaration = declaration.trim();
+				if (declaration.isEmpty()) {
+					continue;
+				}
+				int colon = declaration.lastIndexOf(':');
+				if (colon < 0) {
+					names.add(declaration);
+					types.add(VariableType.STRING);
+				}
+				else {
+					names.add(declaration.substring(0, colon).trim());
+					types.add(VariableType.valueOf(declaration.substring(colon + 1).trim().toUpperCase()));
+				}
+			}
+		}
+		return new GraphQLRequestTemplate(names.toArray(new String[names.size()]), types.toArray(new VariableType[types.size()]), staticQuery,
+				persistedQueries);
+	}
+
+	/**
+	 * @return the reason why the declarations are invalid, or null
+	 */
+	static String validate(String attributeNames) {
+		try {
+			compile(attributeNames, null);
+			return null;
+		}
+		catch (IllegalArgumentException e) {
+			return "unknown variable type, it must be one of string, number, boolean or json";
+		}
+	}
+
+	boolean isStatic() {
+		return staticQuery != null;
+	}
+
+	String getStaticQuery() {
+		return staticQuery;
+	}
+
+	/**
+	 * Aliased document merging "count" copies of the static query.
+	 */
+	String getMergedQuery(int count) {
+		return mergedQueries.computeIfAbsent(count, key -> GraphQLBatch.mergeQuery(Collections.nCopies(count, staticQuery)));
+	}
+
+	/**
+	 * Writes a complete request. The query is only used if the template isn't static.
+	 */
+	void writeRequest(JsonBuffer out, String query, FlowFile flowFile) {
+		writeHeader(out, query);
+		out.write('{');
+		writeVariables(out, null, flowFile);
+		out.writeRaw("}}");
+	}
+
+	/**
+	 * Writes the beginning of a request, up to the variables value. The query is only used if the template isn't static.
+	 */
+	void writeHeader(JsonBuffer out, String query) {
+		if (staticHeader != null && (persistedQueries == null || persistedQueries.isSupported())) {
+			out.write(staticHeader);
+		}
+		else {
+			out.write('{');
+			writeQueryMember(out, query != null ? query : staticQuery);
+			out.writeRaw(",\"variables\":");
+		}
+	}
+
+	/**
+	 * Writes the member of a request object that holds the query: its text, or its hash with persisted queries.
+	 */
+	void writeQueryMember(JsonBuffer out, String query) {
+		if (persistedQueries != null) {
+			persistedQueries.writeMember(out, query);
+		}
+		else {
+			out.writeRaw("\"query\":").writeString(query);
+		}
+	}
+
+	/**
+	 * Writes the variables of a FlowFile as comma separated members, without braces.
+	 */
+	void writeVariables(JsonBuffer out, String prefix, FlowFile flowFile) {
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			if (prefix == null) {
+				out.write(keys[i]);
+			}
+			else {
+				out.writeString(prefix + names[i]).write(':');
+			}
+			writeValue(out, names[i], types[i], flowFile.getAttribute(names[i]));
+		}
+	}
+
+	int getVariableCount() {
+		return names.length;
+	}
+
+	private static void writeValue(JsonBuffer out, String name, VariableType type, String value) {
+		if (value == null) {
+			out.writeRaw("null");
+			return;
+		}
+		switch (type) {
+		case NUMBER:
+			if (!isNumber(value)) {
+				throw new IllegalArgumentException("Variable " + name + " is not a number: " + value);
+			}
+			out.writeRaw(value);
+			break;
+		case BOOLEAN:
+			if (value.equalsIgnoreCase("true")) {
+				out.writeRaw("true");
+			}
+			else if (value.equalsIgnoreCase("false")) {
+				out.writeRaw("false");
+			}
+			else {
+				throw new IllegalArgumentException("Variable " + name + " is not a boolean: " + value);
+			}
+			break;
+		case JSON:
+			writeJson(out, name, value);
+			break;
+		default:
+			out.writeString(value);
+		}
+	}
+
+	/**
+	 * Copies a single JSON value through a parser, so that an invalid one can't break the request nor add members to it.
+	 */
+	private static void writeJson(JsonBuffer out, String name, String value) {
+		try (JsonParser parser = JSON_FACTORY.createParser(value);
+				JsonGenerator generator = JSON_FACTORY.createGenerator((OutputStream) out)) {
+			if (parser.nextToken() == null) {
+				throw new IllegalArgumentException("Variable " + name + " is not valid JSON: " + value);
+			}
+			generator.copyCurrentStructure(parser);
+			if (parser.nextToken() != null) {
+				throw new IllegalArgumentException("Variable " + name + " is not a single JSON value: " + value);
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Variable " + name + " is not valid JSON: " + value, e);
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Checks the JSON number grammar: -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+	 */
+	static boolean isNumber(String value) {
+		int i = 0;
+		int length = value.length();
+		if (i < length && value.charAt(i) == '-') {
+			i++;
+		}
+		if (i >= length) {
+			return false;
+		}
+		if (value.charAt(i) == '0') {
+			i++;
+		}
+		else {
+			int start = i;
+			while (i < length && isDigit(value.charAt(i))) {
+				i++;
+			}
+			if (i == start) {
+				return false;
+			}
+		}
+		if (i < length && value.charAt(i) == '.') {
+			int start = ++i;
+			while (i < length && isDigit(value.charAt(i))) {
+				i++;
+			}
+			if (i == start) {
+				return false;
+			}
+		}
+		if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+				i++;
+			}
+			int start = i;
+			while (i < length && isDigit(value.charAt(i))) {
+				i++;
+			}
+			if (i == start) {
+				return false;
+			}
+		}
+		return i == length;
+	}
+}
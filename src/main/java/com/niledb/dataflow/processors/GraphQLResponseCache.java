@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of GraphQL responses, evicting the least recently used entry when full and entries older than the
+ * time to live when they are found. Keys are SHA-256 digests of the request, that is, of the evaluated query and
+ * its variables, so that requests of any size take the same memory.
+ */
+class GraphQLResponseCache {
+
+	private static final class Entry {
+		final String response;
+		final long expiration;
+
+		Entry(String response, long expiration) {
+			this.response = response;
+			this.expiration = expiration;
+		}
+	}
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final LinkedHashMap<ByteBuffer, Entry> entries;
+
+	private final Metrics.Counter hits;
+	private final Metrics.Counter misses;
+	private final Metrics.Counter evictions;
+
+	GraphQLResponseCache(int maxEntries, long ttlMillis, Metrics.Counter hits, Metrics.Counter misses, Metrics.Counter evictions) {
+		this.maxEntries = maxEntries;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.ttlNanos = ttlMillis * 1000000L;
+		// Access ordered, so that the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<>(Math.min(maxEntries, 1024) * 4 / 3 + 1, 0.75f, true);
+	}
+
+	/**
+	 * @return the digest of the request, to be used as key
+	 */
+	static ByteBuffer key(JsonBuffer request) {
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		digest.update(request.array(), 0, request.size());
+		return ByteBuffer.wrap(digest.digest());
+	}
+
+	/**
+	 * @return the cached response, or null if it isn't cached or it has expired
+	 */
+	synchronized String get(ByteBuffer key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expiration - System.nanoTime() <= 0) {
+			entries.remove(key);
+			evictions.add(1);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.add(1);
+			return null;
+		}
+		hits.add(1);
+		return entry.response;
+	}
+
+	synchronized void put(ByteBuffer key, String response) {
+		long now = System.nanoTime();
+		entries.put(key, new Entry(response, now + ttlNanos));
+		Iterator<Map.Entry<ByteBuffer, Entry>> eldest = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+			evictions.add(1);
+		}
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable UTF-8 byte buffer with JSON string escaping. It is meant to be reset and reused, so that building a
+ * request doesn't allocate anything once the buffer has grown to the usual request size.
+ */
+class JsonBuffer extends OutputStream {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private byte[] bytes;
+	private int size = 0;
+
+	JsonBuffer() {
+		this(1024);
+	}
+
+	JsonBuffer(int capacity) {
+		bytes = new byte[capacity];
+	}
+
+	void reset() {
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Backing array, only valid up to {@link #size()}.
+	 */
+	byte[] array() {
+		return bytes;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(b, offset, bytes, size, length);
+		size += length;
+	}
+
+	@Override
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	/**
+	 * Writes characters that are known to be ASCII and not to need escaping (i.e. numbers, literals, punctuation).
+	 */
+	JsonBuffer writeRaw(String text) {
+		int length = text.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			bytes[size++] = (byte) text.charAt(i);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes unescaped text (i.e. a JSON document), encoded as UTF-8.
+	 */
+	JsonBuffer writeUtf8(String text) {
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			i = writeChar(text, i);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a quoted and escaped JSON string, or null.
+	 */
+	JsonBuffer writeString(String text) {
+		if (text == null) {
+			return writeRaw("null");
+		}
+		write('"');
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				ensureCapacity(2);
+				bytes[size++] = '\\';
+				bytes[size++] = (byte) c;
+			}
+			else if (c < 0x20) {
+				writeControl(c);
+			}
+			else {
+				i = writeChar(text, i);
+			}
+		}
+		write('"');
+		return this;
+	}
+
+	private void writeControl(char c) {
+		ensureCapacity(6);
+		bytes[size++] = '\\';
+		switch (c) {
+		case '\n': bytes[size++] = 'n'; break;
+		case '\r': bytes[size++] = 'r'; break;
+		case '\t': bytes[size++] = 't'; break;
+		case '\b': bytes[size++] = 'b'; break;
+		case '\f': bytes[size++] = 'f'; break;
+		default:
+			bytes[size++] = 'u';
+			bytes[size++] = '0';
+			bytes[size++] = '0';
+			bytes[size++] = HEX[c >> 4];
+			bytes[size++] = HEX[c & 0xF];
+		}
+	}
+
+	/**
+	 * Writes a quoted and escaped JSON string from UTF-8 bytes, without decoding them. Multi-byte sequences never
+	 * contain ASCII bytes, so they are copied as they are.
+	 */
+	JsonBuffer writeString(ByteBuffer buffer, int offset, int length) {
+		ensureCapacity(length + 2);
+		bytes[size++] = '"';
+		for (int i = offset; i < offset + length; i++) {
+			byte b = buffer.get(i);
+			if (b == '"' || b == '\\') {
+				ensureCapacity(2);
+				bytes[size++] = '\\';
+				bytes[size++] = b;
+			}
+			else if (b >= 0 && b < 0x20) {
+				writeControl((char) b);
+			}
+			else {
+				ensureCapacity(1);
+				bytes[size++] = b;
+			}
+		}
+		write('"');
+		return this;
+	}
+
+	private int writeChar(String text, int i) {
+		char c = text.charAt(i);
+		if (c < 0x80) {
+			write(c);
+		}
+		else if (c < 0x800) {
+			ensureCapacity(2);
+			bytes[size++] = (byte) (0xC0 | (c >> 6));
+			bytes[size++] = (byte) (0x80 | (c & 0x3F));
+		}
+		else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+			int codePoint = Character.toCodePoint(c, text.charAt(++i));
+			ensureCapacity(4);
+			bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+			bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+			bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+			bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+		}
+		else if (Character.isSurrogate(c)) {
+			// Unpaired surrogate, replaced as String.getBytes() does
+			write('?');
+		}
+		else {
+			ensureCapacity(3);
+			bytes[size++] = (byte) (0xE0 | (c >> 12));
+			bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			bytes[size++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return i;
+	}
+}
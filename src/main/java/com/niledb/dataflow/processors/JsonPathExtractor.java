@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Extracts values from a JSON document with a streaming parser, so that the document is never fully loaded in
+ * memory. Paths are dotted field names with optional array indexes (i.e. $.data.CustomerList[0].id), and subtrees
+ * that can't contain any of them are skipped without being parsed.
+ */
+class JsonPathExtractor {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final Map<String, List<String>> targets = new HashMap<>();
+	private final Set<String> prefixes = new HashSet<>();
+
+	/**
+	 * @param paths JSON path by attribute name
+	 */
+	JsonPathExtractor(Map<String, String> paths) {
+		for (Map.Entry<String, String> entry : paths.entrySet()) {
+			String path = normalize(entry.getValue());
+			targets.computeIfAbsent(path, key -> new ArrayList<>()).add(entry.getKey());
+			prefixes.add("");
+			for (int i = 0; i < path.length(); i++) {
+				char c = path.charAt(i);
+				if (c == '.' || c == '[') {
+					prefixes.add(path.substring(0, i));
+				}
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return targets.isEmpty();
+	}
+
+	static String normalize(String path) {
+		path = path.trim();
+		if (path.startsWith("$")) {
+			path = path.substring(1);
+		}
+		if (path.startsWith(".")) {
+			path = path.substring(1);
+		}
+		return path;
+	}
+
+	/**
+	 * @return extracted values by attribute name. Paths that are not found, or whose value is null, are omitted.
+	 */
+	Map<String, String> extract(InputStream in) throws IOException {
+		Map<String, String> results = new HashMap<>();
+		try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+			if (parser.nextToken() != null) {
+				walk(parser, "", results);
+			}
+		}
+		return results;
+	}
+
+	private void walk(JsonParser parser, String path, Map<String, String> results) throws IOException {
+		List<String> attributeNames = targets.get(path);
+		if (attributeNames != null) {
+			String value = capture(parser);
+			if (value != null) {
+				for (String attributeName : attributeNames) {
+					results.put(attributeName, value);
+				}
+			}
+			return;
+		}
+		if (!prefixes.contains(path)) {
+			parser.skipChildren();
+			return;
+		}
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				walk(parser, path.isEmpty() ? name : path + "." + name, results);
+			}
+		}
+		else if (token == JsonToken.START_ARRAY) {
+			int index = 0;
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				walk(parser, path + "[" + index++ + "]", results);
+			}
+		}
+	}
+
+	private static String capture(JsonParser parser) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token.isScalarValue()) {
+			return parser.getText();
+		}
+		StringWriter writer = new StringWriter();
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+			generator.copyCurrentStructure(parser);
+		}
+		return writer.toString();
+	}
+}
@@ -18,46 +18,79 @@ package com.niledb.dataflow.processors;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.InputRequirement;
-import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
 import org.postgresql.PGProperty;
 import org.postgresql.jdbc.PgConnection;
 import org.postgresql.replication.LogSequenceNumber;
 import org.postgresql.replication.PGReplicationStream;
 import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
 
-@SideEffectFree
 @Tags({ "PostgreSQL", "Logical Decoding", "Data Publication/Subscription", "Subscribe to replication slot", "data streaming", "niledb.com" })
 @CapabilityDescription("Subscribes to PostgreSQL's replication slot and receives data from NileDB platform.")
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
-public class LogicalDecoding extends AbstractProcessor {
+@TriggerSerially
+@Stateful(scopes = Scope.LOCAL, description = "The LSN of the last transaction committed to NiFi, where replication is resumed from.")
+@DynamicProperty(name = "Relationship name", value = "Table regular expression",
+		description = "Routes the changes of the tables matching the regular expression (schema.table) to the relationship of the same name.")
+@DynamicRelationship(name = "Name from dynamic property", description = "Changes of the tables matching the dynamic property.")
+public class LogicalDecoding extends AbstractSessionFactoryProcessor {
 
 	static final AllowableValue SSL_MODE_DISABLE = new AllowableValue("disable");
 	static final AllowableValue SSL_MODE_ALLOW = new AllowableValue("allow");
@@ -66,12 +99,112 @@ public class LogicalDecoding extends AbstractProcessor {
 	static final AllowableValue SSL_MODE_VERIFY_CA = new AllowableValue("verify-ca");
 	static final AllowableValue SSL_MODE_VERIFY_FULL = new AllowableValue("verify-full");
 	
+	static final AllowableValue OUTPUT_PLUGIN_TEST_DECODING = new AllowableValue("test_decoding", "test_decoding",
+			"Text plugin. Every change is written as received, one per line, including BEGIN and COMMIT lines.");
+	static final AllowableValue OUTPUT_PLUGIN_PGOUTPUT = new AllowableValue("pgoutput", "pgoutput",
+			"Built-in binary plugin (PostgreSQL 10+) streaming the tables of the given publications. "
+			+ "Every change is written as a JSON line with its transaction id, operation, schema, table and before/after column values.");
+	
+	private static final Pattern OPERATIONS_PATTERN = Pattern.compile(
+			"\\s*(insert|update|delete|truncate)\\s*(,\\s*(insert|update|delete|truncate)\\s*)*", Pattern.CASE_INSENSITIVE);
+	
 	private List<PropertyDescriptor> properties;
-	private Set<Relationship> relationships;
+	private volatile Set<Relationship> relationships;
 
-	private static PgConnection connection = null;
-	private static PGReplicationStream stream = null;
-	private static StringBuffer transaction = null;
+	// Every processor has its own replication connection, so that several slots or databases can be consumed in parallel
+	private volatile PgConnection connection = null;
+	private volatile PGReplicationStream stream = null;
+	// Reads the stream ahead in its own thread, so that triggers don't have to poll it
+	private volatile ReplicationReader reader = null;
+	
+	private static final byte[] BEGIN = "BEGIN".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] COMMIT = "COMMIT".getBytes(StandardCharsets.UTF_8);
+	
+	static final String TRANSACTION_COUNT_ATTRIBUTE = "transaction.count";
+	static final String LSN_ATTRIBUTE = "lsn";
+	static final String XID_ATTRIBUTE = "xid";
+	static final String FRAGMENT_INDEX_ATTRIBUTE = "fragment.index";
+	static final String FRAGMENT_LAST_ATTRIBUTE = "fragment.last";
+	static final String LSN_STATE_KEY = "lsn";
+	// How often metrics are reported as NiFi counters
+	private static final long METRICS_REPORT_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// How long closing waits for the reader thread to stop by itself, and once its connection has been closed
+	private static final long READER_STOP_MILLIS = 100;
+	private static final long READER_CLOSE_MILLIS = 1000;
+	
+	/**
+	 * Transactions of the open FlowFile of a relationship.
+	 */
+	private static final class Group {
+		FlowFile flowFile;
+		// Only used with a record writer, which writes the records to the content as they arrive, and can only finish
+		// the record set once the FlowFile is transferred
+		RecordSetWriter writer;
+		int transactions;
+		// Whether the transaction being received has changes in this FlowFile
+		boolean changed;
+		// Whether the FlowFile has the last fragment of a transaction
+		boolean fragment;
+	}
+	
+	// Transactions being received, in a FlowFile per relationship. FlowFiles stay open across triggers, and their
+	// content grows as changes arrive, so that memory doesn't depend on the transaction size.
+	private ProcessSession transactionSession = null;
+	private final Map<Relationship, Group> groups = new LinkedHashMap<>();
+	// Complete transactions in the open FlowFiles, LSN of the last one, and when the first one was completed
+	private int completedTransactions = 0;
+	private LogSequenceNumber completedLsn = null;
+	// LSN of the last message taken from the reader
+	private LogSequenceNumber receivedLsn = null;
+	// Where the stream was started from, and whether the pgoutput transaction being received was committed before it
+	private LogSequenceNumber startLsn = null;
+	private boolean skipping = false;
+	// Initial snapshot being copied, cancelled when the processor is stopped
+	private volatile TableSnapshot snapshot = null;
+	// Consecutive failures of the replication connection, and when it can be opened again
+	private int failures = 0;
+	private long reconnectTime = 0;
+	
+	private Metrics metrics = null;
+	private volatile Integer metricsPort = null;
+	private long metricsReportTime = 0;
+	private Metrics.Counter messagesMetric;
+	private Metrics.Counter bytesMetric;
+	private Metrics.Counter transactionsMetric;
+	private Metrics.Counter changesMetric;
+	private Metrics.Counter flowFilesMetric;
+	private Metrics.Counter reconnectionsMetric;
+	private Metrics.Counter waitTimeMetric;
+	private Metrics.Counter processingTimeMetric;
+	private Metrics.Gauge receivedLsnMetric;
+	private Metrics.Gauge acknowledgedLsnMetric;
+	private Metrics.Gauge lagBytesMetric;
+	private Metrics.Gauge lagTimeMetric;
+	private Metrics.Gauge queuedMessagesMetric;
+	private Metrics.Histogram commitTimeMetric;
+	private long lingerStart = 0;
+	private boolean inTransaction = false;
+	
+	private ChangeRouter router = null;
+	// BEGIN line of the test_decoding transaction being received
+	private byte[] begin = null;
+	// Id of the transaction being received, changes in the open FlowFiles, and fragments of the transaction already
+	// transferred
+	private String xid = null;
+	private int pendingChanges = 0;
+	private int fragmentIndex = 0;
+	
+	// Only used with pgoutput
+	private PgOutputDecoder decoder = null;
+	private ChangeJsonWriter changeWriter = null;
+	
+	// Only used with test_decoding
+	private TestDecodingParser textParser = null;
+	
+	// Only used with a record writer
+	private ChangeRecords changeRecords = null;
+	// Last LSN whose transaction has been committed to NiFi, where replication must be resumed from
+	private volatile LogSequenceNumber committedLsn = null;
 	
 	public static final PropertyDescriptor DB_NAME = new PropertyDescriptor.Builder()
 			.name("dbName")
@@ -86,7 +219,11 @@ public class LogicalDecoding extends AbstractProcessor {
 	public static final PropertyDescriptor DB_HOST = new PropertyDescriptor.Builder()
 			.name("hostname")
 			.displayName("Host name")
-			.description("The name/address of the host.")
+			.description("The name/address of the host. Several hosts can be given, separated by commas and optionally with "
+					+ "their own ports (i.e. db1,db2:5433), and then the one accepting writes is used, so that a promoted standby "
+					+ "takes over after a failover. Logical replication slots are not copied to standbys before PostgreSQL 17 "
+					+ "(failover slots), so the slot must exist on the new primary: if it doesn't, the processor fails with an "
+					+ "error instead of creating it again, which would skip the changes made since it was lost.")
 			.defaultValue("db")
 			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
 			.required(true)
@@ -106,7 +243,8 @@ public class LogicalDecoding extends AbstractProcessor {
 	public static final PropertyDescriptor DB_REPLICATION_SLOT = new PropertyDescriptor.Builder()
 			.name("replicationSlot")
 			.displayName("Replication slot")
-			.description("The replication slot to subscribe to.")
+			.description("The replication slot to subscribe to. PostgreSQL allows a single consumer per slot, "
+					+ "so every processor consuming in parallel needs its own slot.")
 			.defaultValue("slot")
 			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
 			.required(true)
@@ -136,7 +274,8 @@ public class LogicalDecoding extends AbstractProcessor {
 	public static final PropertyDescriptor LSN_FILE_NAME = new PropertyDescriptor.Builder()
 			.name("lsnFileName")
 			.displayName("LSN (Log Sequence Number) file name")
-			.description("The file where the last LSN is going to be stored.")
+			.description("Deprecated, the last LSN is kept in the processor state. If set, the file is still written when the processor is stopped "
+					+ "and read when there is no state yet, so that existing flows resume from where they were.")
 			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
 			.required(false)
 			.addValidator(StandardValidators.NON_BLANK_VALIDATOR)
@@ -175,12 +314,231 @@ public class LogicalDecoding extends AbstractProcessor {
 	public static final PropertyDescriptor RESPONSE_TARGET_ATTRIBUTE_NAME = new PropertyDescriptor.Builder()
 			.name("responseTargetAttributeName")
 			.displayName("Response target attribute name")
-			.description("Attribute where the GraphQL services response must be stored.")
+			.description("Deprecated and ignored. Transactions are written to the FlowFile content, one change per line.")
 			.required(false)
-			.defaultValue("transaction")
 			.addValidator(StandardValidators.ATTRIBUTE_KEY_VALIDATOR)
 			.build();
 	
+	public static final PropertyDescriptor OUTPUT_PLUGIN = new PropertyDescriptor.Builder()
+			.name("outputPlugin")
+			.displayName("Output plugin")
+			.description("The logical decoding output plugin of the replication slot.")
+			.defaultValue(OUTPUT_PLUGIN_TEST_DECODING.getValue())
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.allowableValues(OUTPUT_PLUGIN_TEST_DECODING, OUTPUT_PLUGIN_PGOUTPUT)
+			.build();
+	
+	public static final PropertyDescriptor PUBLICATIONS = new PropertyDescriptor.Builder()
+			.name("publications")
+			.displayName("Publications")
+			.description("Publications streamed by pgoutput, separated by commas (i.e. customers,orders). Required with pgoutput.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+			.name("recordWriter")
+			.displayName("Record writer")
+			.description("Writer of the changes as records, instead of text lines. Every record has the fields xid, lsn, commitTime, "
+					+ "op (insert, update, delete or truncate), schema, table, keyColumns, and the before and after column values as maps "
+					+ "of text. With test_decoding, key columns are only known for deletes and updates of the key. Records are written "
+					+ "to the content as they arrive, but the changes of a transaction are kept in memory until its commit, unless "
+					+ "'Max changes per FlowFile' is set. The rows of the initial snapshot are written with it too.")
+			.identifiesControllerService(RecordSetWriterFactory.class)
+			.required(false)
+			.build();
+	
+	public static final PropertyDescriptor INCLUDE_TABLES = new PropertyDescriptor.Builder()
+			.name("includeTables")
+			.displayName("Include tables")
+			.description("Regular expression of the qualified names (schema.table) of the tables whose changes are delivered, "
+					+ "i.e. public\\.(customers|orders). All of them if not set.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor EXCLUDE_TABLES = new PropertyDescriptor.Builder()
+			.name("excludeTables")
+			.displayName("Exclude tables")
+			.description("Regular expression of the qualified names (schema.table) of the tables whose changes are not delivered, "
+					+ "even if they are included.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor OPERATIONS = new PropertyDescriptor.Builder()
+			.name("operations")
+			.displayName("Operations")
+			.description("Operations delivered, separated by commas: insert, update, delete and truncate. All of them if not set.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.createRegexMatchingValidator(OPERATIONS_PATTERN))
+			.build();
+	
+	public static final PropertyDescriptor STATUS_INTERVAL = new PropertyDescriptor.Builder()
+			.name("statusInterval")
+			.displayName("Status interval")
+			.description("How often the LSN of the transactions committed to NiFi is acknowledged to PostgreSQL, "
+					+ "which can then recycle the WAL retained by the replication slot.")
+			.defaultValue("10 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor READER_QUEUE_SIZE = new PropertyDescriptor.Builder()
+			.name("readerQueueSize")
+			.displayName("Reader queue size")
+			.description("Maximum number of WAL messages read ahead of the triggers. When the queue is full, reading pauses "
+					+ "until the processor catches up, so that back pressure reaches PostgreSQL, which retains the WAL meanwhile.")
+			.defaultValue("10000")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor REPLICATION_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("replicationTimeout")
+			.displayName("Replication timeout")
+			.description("How long the replication connection can go without receiving anything, server keepalives included, "
+					+ "before it is considered dead and opened again. It must be longer than half of the wal_sender_timeout of "
+					+ "the server. With 0 sec, dead connections are only detected by the operating system.")
+			.defaultValue("2 min")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RECONNECT_BACKOFF = new PropertyDescriptor.Builder()
+			.name("reconnectBackoff")
+			.displayName("Reconnect backoff")
+			.description("How long to wait before opening the replication connection again after a failure. The wait is "
+					+ "doubled after every consecutive failure, up to 'Max reconnect backoff'. Replication is resumed from "
+					+ "the last transaction committed to NiFi.")
+			.defaultValue("1 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RECONNECT_BACKOFF = new PropertyDescriptor.Builder()
+			.name("maxReconnectBackoff")
+			.displayName("Max reconnect backoff")
+			.description("Maximum wait before opening the replication connection again after consecutive failures.")
+			.defaultValue("1 min")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_MESSAGES_PER_TRIGGER = new PropertyDescriptor.Builder()
+			.name("maxMessagesPerTrigger")
+			.displayName("Max messages per trigger")
+			.description("Maximum number of WAL messages read in a single trigger.")
+			.defaultValue("10000")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_BYTES_PER_TRIGGER = new PropertyDescriptor.Builder()
+			.name("maxBytesPerTrigger")
+			.displayName("Max bytes per trigger")
+			.description("Maximum amount of WAL data read in a single trigger.")
+			.defaultValue("10 MB")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_TIME_PER_TRIGGER = new PropertyDescriptor.Builder()
+			.name("maxTimePerTrigger")
+			.displayName("Max time per trigger")
+			.description("Maximum time spent reading WAL messages in a single trigger.")
+			.defaultValue("1 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor TRANSACTIONS_PER_FLOWFILE = new PropertyDescriptor.Builder()
+			.name("transactionsPerFlowFile")
+			.displayName("Transactions per FlowFile")
+			.description("Maximum number of committed transactions grouped in the same FlowFile.")
+			.defaultValue("1")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor LINGER_TIME = new PropertyDescriptor.Builder()
+			.name("lingerTime")
+			.displayName("Linger time")
+			.description("How long a FlowFile with fewer than 'Transactions per FlowFile' transactions waits for more of them "
+					+ "before being transferred. With 0 sec, it is transferred as soon as there are no more pending messages.")
+			.defaultValue("0 sec")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_CHANGES_PER_FLOWFILE = new PropertyDescriptor.Builder()
+			.name("maxChangesPerFlowFile")
+			.displayName("Max changes per FlowFile")
+			.description("Maximum number of changes in a FlowFile. Larger transactions are split in fragments, transferred before "
+					+ "their commit is received, with the attributes xid, fragment.index and fragment.last (true in the last "
+					+ "one). Fragments of a transaction interrupted by a failure or a stop are sent again from the first one, "
+					+ "and with test_decoding, records of the fragments before the last one have no commit time. "
+					+ "Unlimited if not set.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor INITIAL_SNAPSHOT = new PropertyDescriptor.Builder()
+			.name("initialSnapshot")
+			.displayName("Initial snapshot")
+			.description("Whether to copy the existing rows of the tables before streaming their changes, when there is no LSN "
+					+ "to resume from and the replication slot doesn't exist yet. The slot is then created with an exported snapshot, "
+					+ "the tables (the ones of the publications with pgoutput, filtered and routed as inserts) are copied in "
+					+ "parallel to FlowFiles with the attributes snapshot.schema, snapshot.table, snapshot.chunk and "
+					+ "snapshot.chunk.count, and streaming starts at the snapshot's consistent point. With a record writer, rows "
+					+ "are written as insert records whose lsn is the consistent point, without xid nor commit time, and CSV "
+					+ "with a header line otherwise. The copy runs in the first "
+					+ "trigger, which doesn't return until the whole snapshot is copied, and stopping the processor cancels it. "
+					+ "If the copy fails or is cancelled, the slot is dropped, and chunks already transferred are copied again.")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor SNAPSHOT_THREADS = new PropertyDescriptor.Builder()
+			.name("snapshotThreads")
+			.displayName("Snapshot threads")
+			.description("Number of chunks of the initial snapshot copied in parallel, each one with its own connection.")
+			.defaultValue("4")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor SNAPSHOT_CHUNK_SIZE = new PropertyDescriptor.Builder()
+			.name("snapshotChunkSize")
+			.displayName("Snapshot chunk size")
+			.description("Approximate number of rows per chunk of the initial snapshot. Only tables with a single integer "
+					+ "primary key are split, in key ranges, the others are copied in a single chunk.")
+			.defaultValue("100000")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+			.build();
+	
 	public static final Relationship SUCCESS = new Relationship.Builder().name("SUCCESS")
 			.description("Success relationship").build();
 	
@@ -198,113 +556,779 @@ public class LogicalDecoding extends AbstractProcessor {
 		properties.add(DB_SSL_MODE);
 		properties.add(DB_SSL_ROOT_CERT);
 		properties.add(RESPONSE_TARGET_ATTRIBUTE_NAME);
+		properties.add(OUTPUT_PLUGIN);
+		properties.add(PUBLICATIONS);
+		properties.add(RECORD_WRITER);
+		properties.add(INCLUDE_TABLES);
+		properties.add(EXCLUDE_TABLES);
+		properties.add(OPERATIONS);
+		properties.add(STATUS_INTERVAL);
+		properties.add(READER_QUEUE_SIZE);
+		properties.add(REPLICATION_TIMEOUT);
+		properties.add(RECONNECT_BACKOFF);
+		properties.add(MAX_RECONNECT_BACKOFF);
+		properties.add(MAX_MESSAGES_PER_TRIGGER);
+		properties.add(MAX_BYTES_PER_TRIGGER);
+		properties.add(MAX_TIME_PER_TRIGGER);
+		properties.add(TRANSACTIONS_PER_FLOWFILE);
+		properties.add(LINGER_TIME);
+		properties.add(MAX_CHANGES_PER_FLOWFILE);
+		properties.add(INITIAL_SNAPSHOT);
+		properties.add(SNAPSHOT_THREADS);
+		properties.add(SNAPSHOT_CHUNK_SIZE);
+		properties.add(MetricsEndpoint.PORT);
 		this.properties = Collections.unmodifiableList(properties);
 		
 		Set<Relationship> relationships = new HashSet<>();
 		relationships.add(SUCCESS);
 		this.relationships = Collections.unmodifiableSet(relationships);
+		
+		metrics = new Metrics("LogicalDecoding", context.getIdentifier());
+		messagesMetric = metrics.counter("messages", "WAL messages received.");
+		bytesMetric = metrics.counter("bytes", "Bytes of the WAL messages received.");
+		transactionsMetric = metrics.counter("transactions", "Transactions received, whether they have changes to deliver or not.");
+		changesMetric = metrics.counter("changes", "Changes delivered.");
+		flowFilesMetric = metrics.counter("flowfiles", "FlowFiles transferred.");
+		reconnectionsMetric = metrics.counter("reconnections", "Failures of the replication connection.");
+		waitTimeMetric = metrics.counter("wait_milliseconds", "Time spent waiting for WAL messages from the reader thread.");
+		processingTimeMetric = metrics.counter("processing_milliseconds", "Time spent decoding, writing and transferring changes.");
+		receivedLsnMetric = metrics.gauge("received_lsn", "LSN of the last WAL message processed.");
+		acknowledgedLsnMetric = metrics.gauge("acknowledged_lsn", "LSN of the last transaction committed to NiFi and acknowledged to PostgreSQL.");
+		lagBytesMetric = metrics.gauge("lag_bytes", "WAL processed but not committed to NiFi yet, in bytes.");
+		lagTimeMetric = metrics.gauge("lag_milliseconds", "Time between the commit of the last transaction received and its processing.");
+		queuedMessagesMetric = metrics.gauge("queued_messages", "WAL messages read ahead by the reader thread, waiting to be processed.");
+		commitTimeMetric = metrics.histogram("commit_milliseconds", "Time spent committing the NiFi session of the transferred FlowFiles.",
+				Metrics.LATENCY_BUCKETS);
+	}
+	
+	@OnScheduled
+	public void startMetrics(final ProcessContext context) throws Exception {
+		metricsPort = context.getProperty("metricsPort").asInteger();
+		if (metricsPort != null) {
+			MetricsEndpoint.register(metricsPort, metrics);
+		}
+	}
+	
+	@OnStopped
+	public void stopMetrics() {
+		if (metricsPort != null) {
+			MetricsEndpoint.unregister(metricsPort, metrics);
+			metricsPort = null;
+		}
+	}
+	
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		List<ValidationResult> results = new ArrayList<>();
+		if (context.getProperty(OUTPUT_PLUGIN).getValue().equals(OUTPUT_PLUGIN_PGOUTPUT.getValue())
+				&& !context.getProperty(PUBLICATIONS).isSet()) {
+			results.add(new ValidationResult.Builder().subject(PUBLICATIONS.getDisplayName()).valid(false)
+					.explanation("publications are required with pgoutput").build());
+		}
+		return results;
+	}
+	
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder()
+				.name(propertyDescriptorName)
+				.description("Changes of the tables matching this regular expression (schema.table) are routed to the relationship of the same name.")
+				.dynamic(true)
+				.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+				.required(false)
+				.addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+				.build();
+	}
+	
+	@Override
+	public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+		if (descriptor.isDynamic()) {
+			Set<Relationship> relationships = new HashSet<>(this.relationships);
+			Relationship relationship = new Relationship.Builder().name(descriptor.getName()).build();
+			if (newValue == null) {
+				relationships.remove(relationship);
+			}
+			else {
+				relationships.add(relationship);
+			}
+			this.relationships = Collections.unmodifiableSet(relationships);
+		}
+	}
+	
+	private static ChangeRouter createRouter(final ProcessContext context) {
+		String include = context.getProperty("includeTables").getValue();
+		String exclude = context.getProperty("excludeTables").getValue();
+		String operations = context.getProperty("operations").getValue();
+		
+		Set<String> operationSet = null;
+		if (operations != null) {
+			operationSet = new HashSet<>();
+			for (String operation : operations.split(",")) {
+				operationSet.add(operation.trim().toLowerCase());
+			}
+		}
+		
+		// Routes are checked in the order of their names
+		TreeMap<String, Pattern> sortedRoutes = new TreeMap<>();
+		for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+			if (descriptor.isDynamic()) {
+				sortedRoutes.put(descriptor.getName(), Pattern.compile(context.getProperty(descriptor).getValue()));
+			}
+		}
+		LinkedHashMap<Relationship, Pattern> routes = new LinkedHashMap<>();
+		for (Map.Entry<String, Pattern> route : sortedRoutes.entrySet()) {
+			routes.put(new Relationship.Builder().name(route.getKey()).build(), route.getValue());
+		}
+		
+		return new ChangeRouter(include == null ? null : Pattern.compile(include), exclude == null ? null : Pattern.compile(exclude),
+				operationSet, routes, SUCCESS);
 	}
 	
 	private synchronized PgConnection getConnection(final ProcessContext context) throws Exception {
 		if (connection == null) {
+			connection = createConnection(context, true);
+		}
+		return connection;
+	}
+	
+	/**
+	 * Creates a connection with the database properties of the processor, which are shared by {@link CopyRecord}.
+	 *
+	 * @param replication true for a replication connection, false for a regular one (i.e. to read the snapshot)
+	 */
+	static PgConnection createConnection(final ProcessContext context, boolean replication) throws Exception {
+		String dbName = context.getProperty("dbName").getValue();
+		String hostname = context.getProperty("hostname").getValue();
+		String port = context.getProperty("port").getValue();
+		String username = context.getProperty("username").getValue();
+		String password = context.getProperty("password").getValue();
+		String ssl = context.getProperty("ssl").getValue();
+		String sslMode = context.getProperty("sslMode").getValue();
+		String sslRootCert = context.getProperty("sslRootCert").getValue();
 
-			String dbName = context.getProperty("dbName").getValue();
-			String hostname = context.getProperty("hostname").getValue();
-			String port = context.getProperty("port").getValue();
-			String username = context.getProperty("username").getValue();
-			String password = context.getProperty("password").getValue();
-			String ssl = context.getProperty("ssl").getValue();
-			String sslMode = context.getProperty("sslMode").getValue();
-			String sslRootCert = context.getProperty("sslRootCert").getValue();
-
-			Properties properties = new Properties();
-			PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "10.0");
+		Properties properties = new Properties();
+		PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "10.0");
+		if (replication) {
 			PGProperty.REPLICATION.set(properties, "database");
 			PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
-			PGProperty.USER.set(properties, username);
-			PGProperty.PASSWORD.set(properties, password);
-			
-			if ((Boolean) Boolean.parseBoolean(ssl)) {
-				PGProperty.SSL.set(properties, true);
-				PGProperty.SSL_MODE.set(properties, sslMode);
-				PGProperty.SSL_ROOT_CERT.set(properties, sslRootCert);
+			// The server sends keepalives at least every half of its wal_sender_timeout, so a silent socket is a dead one
+			PGProperty.SOCKET_TIMEOUT.set(properties, context.getProperty("replicationTimeout").asTimePeriod(TimeUnit.SECONDS).intValue());
+		}
+		PGProperty.USER.set(properties, username);
+		PGProperty.PASSWORD.set(properties, password);
+		
+		if ((Boolean) Boolean.parseBoolean(ssl)) {
+			PGProperty.SSL.set(properties, true);
+			PGProperty.SSL_MODE.set(properties, sslMode);
+			PGProperty.SSL_ROOT_CERT.set(properties, sslRootCert);
+		}
+		
+		StringBuilder hosts = new StringBuilder();
+		for (String host : hostname.split(",")) {
+			hosts.append(hosts.length() > 0 ? "," : "").append(host.trim());
+			if (host.indexOf(':') < 0) {
+				hosts.append(':').append(port);
 			}
-			
-			Class.forName("org.postgresql.Driver");
-			connection = (PgConnection) DriverManager.getConnection("jdbc:postgresql://" + hostname + ":" + port + "/" + dbName, properties);
 		}
-		return connection;
+		if (hostname.indexOf(',') >= 0) {
+			// Standbys are skipped, whichever of the hosts is the primary at the moment
+			PGProperty.TARGET_SERVER_TYPE.set(properties, "master");
+		}
+		
+		Class.forName("org.postgresql.Driver");
+		return (PgConnection) DriverManager.getConnection("jdbc:postgresql://" + hosts + "/" + dbName, properties);
 	}
 
-	private synchronized PGReplicationStream getStream(ProcessContext context) throws Exception {
+	private synchronized ReplicationReader getReader(ProcessContext context, ProcessSessionFactory sessionFactory) throws Exception {
 		ComponentLog log = getLogger();
-		if (stream == null) {
+		if (reader == null) {
 			String replicationSlot = context.getProperty("replicationSlot").getValue();
 			String lsnFileName = context.getProperty("lsnFileName").getValue();
 			
-			ChainedLogicalStreamBuilder builder = getConnection(context).getReplicationAPI()
-					.replicationStream()
-					.logical()
-					.withSlotName(replicationSlot);
+			Properties slotOptions = new Properties();
+			router = createRouter(context);
+			if (context.getProperty("outputPlugin").getValue().equals(OUTPUT_PLUGIN_PGOUTPUT.getValue())) {
+				slotOptions.setProperty("proto_version", "1");
+				slotOptions.setProperty("publication_names", context.getProperty("publications").getValue());
+				// Relations are sent once per stream, so the decoder can't outlive it
+				decoder = new PgOutputDecoder();
+				changeWriter = new ChangeJsonWriter(router);
+			}
+			else {
+				decoder = null;
+				changeWriter = null;
+			}
+			// Parses the test_decoding lines into records, and routes them otherwise
+			textParser = decoder == null ? new TestDecodingParser() : null;
+			if (context.getProperty("recordWriter").isSet()) {
+				if (decoder == null) {
+					// Needed for the commit time of the records
+					slotOptions.setProperty("include-timestamp", "true");
+				}
+				changeRecords = new ChangeRecords(router);
+			}
+			else {
+				changeRecords = null;
+			}
+			long statusInterval = context.getProperty("statusInterval").asTimePeriod(TimeUnit.MILLISECONDS);
 			
-			if (lsnFileName != null) {
-				File lsnFile = new File(lsnFileName);
-				if (lsnFile.exists()) {
-					try {
-						BufferedReader br = new BufferedReader(new FileReader(lsnFile));
-						builder.withStartPosition(LogSequenceNumber.valueOf(br.readLine()));
-						br.close();
-					}
-					catch (Exception e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-					}
+			String checkpoint = context.getStateManager().getState(Scope.LOCAL).get(LSN_STATE_KEY);
+			File lsnFile = lsnFileName == null ? null : new File(lsnFileName);
+			startLsn = null;
+			if (committedLsn != null) {
+				startLsn = committedLsn;
+			}
+			else if (checkpoint != null) {
+				startLsn = LogSequenceNumber.valueOf(checkpoint);
+			}
+			else if (lsnFile != null && lsnFile.exists()) {
+				try {
+					BufferedReader br = new BufferedReader(new FileReader(lsnFile));
+					startLsn = LogSequenceNumber.valueOf(br.readLine());
+					br.close();
+				}
+				catch (Exception e) {
+					log.error(e.getMessage(), e);
+					e.printStackTrace();
 				}
 			}
+			else if (context.getProperty("initialSnapshot").asBoolean()) {
+				startLsn = snapshot(context, sessionFactory);
+			}
+			if (startLsn != null && !slotExists(context, replicationSlot)) {
+				// Creating it again would silently skip the changes made since the slot was lost
+				throw new IllegalStateException("Replication slot " + replicationSlot + " doesn't exist on the primary of "
+						+ context.getProperty("hostname").getValue() + ", while replication has to resume from " + startLsn.asString()
+						+ ". Logical replication slots are not copied to standbys before PostgreSQL 17, so it was probably lost in a "
+						+ "failover, along with the changes since. Create the slot again and clear the state of the processor to "
+						+ "resume from the slot position, or restart from an initial snapshot.");
+			}
 			
-			stream = builder.start();
+			stream = startStream(context, slotOptions, startLsn, statusInterval);
+			reader = new ReplicationReader(stream, context.getProperty("readerQueueSize").asInteger(), statusInterval,
+					"LogicalDecoding reader " + replicationSlot);
+			if (committedLsn != null) {
+				reader.acknowledge(committedLsn);
+			}
+			reader.start();
 		}
-		return stream;
+		return reader;
 	}
 	
-    @Override
-	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+	/**
+	 * Starts streaming the replication slot of the processor on its replication connection.
+	 *
+	 * @param startLsn where to resume from, or null to start where the slot is
+	 */
+	PGReplicationStream startStream(final ProcessContext context, Properties slotOptions, LogSequenceNumber startLsn,
+			long statusIntervalMillis) throws Exception {
+		ChainedLogicalStreamBuilder builder = getConnection(context).getReplicationAPI()
+				.replicationStream()
+				.logical()
+				.withSlotName(context.getProperty("replicationSlot").getValue())
+				.withSlotOptions(slotOptions)
+				.withStatusInterval((int) statusIntervalMillis, TimeUnit.MILLISECONDS);
+		if (startLsn != null) {
+			builder.withStartPosition(startLsn);
+		}
+		return builder.start();
+	}
+	
+	/**
+	 * @return true if the replication slot exists on the server of the replication connection
+	 */
+	boolean slotExists(final ProcessContext context, String replicationSlot) throws Exception {
+		try (PreparedStatement statement = getConnection(context).prepareStatement("SELECT 1 FROM pg_replication_slots WHERE slot_name = ?")) {
+			statement.setString(1, replicationSlot);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next();
+			}
+		}
+	}
+	
+	/**
+	 * Creates the replication slot, exporting its snapshot, and copies the tables as they were at its consistent
+	 * point, so that streaming from it continues without gaps nor duplicates.
+	 *
+	 * @return the consistent point, or null if the slot already exists and its snapshot can't be taken anymore
+	 */
+	private LogSequenceNumber snapshot(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws Exception {
 		ComponentLog log = getLogger();
-
+		String replicationSlot = context.getProperty("replicationSlot").getValue();
+		String outputPlugin = context.getProperty("outputPlugin").getValue();
+		String publications = outputPlugin.equals(OUTPUT_PLUGIN_PGOUTPUT.getValue()) ? context.getProperty("publications").getValue() : null;
+		
+		try (Connection regular = createConnection(context, false);
+				PreparedStatement statement = regular.prepareStatement("SELECT 1 FROM pg_replication_slots WHERE slot_name = ?")) {
+			statement.setString(1, replicationSlot);
+			try (ResultSet result = statement.executeQuery()) {
+				if (result.next()) {
+					log.warn("Replication slot {} already exists, so the initial snapshot is skipped", new Object[] { replicationSlot });
+					return null;
+				}
+			}
+		}
+		
+		LogSequenceNumber consistentPoint;
+		String snapshotName;
+		try (Statement statement = getConnection(context).createStatement();
+				ResultSet result = statement.executeQuery("CREATE_REPLICATION_SLOT " + replicationSlot + " LOGICAL " + outputPlugin + " EXPORT_SNAPSHOT")) {
+			result.next();
+			consistentPoint = LogSequenceNumber.valueOf(result.getString("consistent_point"));
+			snapshotName = result.getString("snapshot_name");
+		}
+		
 		try {
-			PGReplicationStream stream = getStream(context);
-			ByteBuffer buffer = stream.readPending();
-			
-			if (buffer == null) {
-				context.yield();
-				return;
+			RecordSetWriterFactory writerFactory = context.getProperty("recordWriter").asControllerService(RecordSetWriterFactory.class);
+			snapshot = new TableSnapshot(() -> createConnection(context, false), snapshotName, consistentPoint, router, writerFactory,
+					publications, context.getProperty("snapshotChunkSize").asLong(), context.getProperty("snapshotThreads").asInteger(), log);
+			long chunks = snapshot.run(sessionFactory);
+			log.info("Initial snapshot of {} copied in {} chunks, streaming from {}",
+					new Object[] { replicationSlot, chunks, consistentPoint.asString() });
+		}
+		catch (Exception e) {
+			// Streaming from the slot would miss the rows not copied yet, so it is created again with a new snapshot
+			try (Statement statement = getConnection(context).createStatement()) {
+				statement.execute("DROP_REPLICATION_SLOT " + replicationSlot);
+			}
+			catch (Exception dropException) {
+				log.error("Failed to drop replication slot {} after a failed snapshot, drop it before restarting", new Object[] { replicationSlot }, dropException);
 			}
+			throw e;
+		}
+		finally {
+			snapshot = null;
+		}
+		
+		committedLsn = consistentPoint;
+		context.getStateManager().setState(Collections.singletonMap(LSN_STATE_KEY, consistentPoint.asString()), Scope.LOCAL);
+		return consistentPoint;
+	}
+	
+	/**
+	 * Takes WAL messages from the reader until there are no more pending ones or the trigger budget is exhausted, waiting
+	 * for the first one if there is nothing else to do, and appending the changes
+	 * that aren't filtered out to the open FlowFile of their relationship. FlowFiles are transferred once they have
+	 * enough transactions, or when they have lingered long enough.
+	 */
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+		ComponentLog log = getLogger();
+		
+		int maxMessages = context.getProperty("maxMessagesPerTrigger").asInteger();
+		long maxBytes = context.getProperty("maxBytesPerTrigger").asDataSize(DataUnit.B).longValue();
+		long deadline = System.nanoTime() + context.getProperty("maxTimePerTrigger").asTimePeriod(TimeUnit.NANOSECONDS);
+		int transactionsPerFlowFile = context.getProperty("transactionsPerFlowFile").asInteger();
+		long lingerNanos = context.getProperty("lingerTime").asTimePeriod(TimeUnit.NANOSECONDS);
+		int maxChanges = context.getProperty("maxChangesPerFlowFile").isSet() ? context.getProperty("maxChangesPerFlowFile").asInteger() : 0;
+		
+		if (reader == null && System.nanoTime() - reconnectTime < 0) {
+			context.yield();
+			return;
+		}
+		
+		long triggerStart = System.nanoTime();
+		long waitNanos = 0;
+		try {
+			ReplicationReader reader = getReader(context, sessionFactory);
+			int messages = 0;
+			long bytes = 0;
 			
-			String line = StandardCharsets.UTF_8.decode(buffer).toString();
-			String responseTargetAttributeName = context.getProperty("responseTargetAttributeName").getValue();
-			if (responseTargetAttributeName != null
-					&& !responseTargetAttributeName.equals("")) {
-				if (transaction == null)
-					transaction = new StringBuffer();
-				transaction.append(line + "\n");
-				if (line != null && line.startsWith("COMMIT")) {
-			    	FlowFile flowFile = session.get();
-			    	if (flowFile == null) {
-			    		flowFile = session.create();
-			    	}
-					session.putAttribute(flowFile, responseTargetAttributeName, transaction.toString());
-					session.transfer(flowFile, SUCCESS);
-					transaction = null;
+			while (messages < maxMessages && bytes < maxBytes && System.nanoTime() - deadline < 0) {
+				// Only the first message is waited for, and not longer than lingering transactions can wait
+				long wait = 0;
+				if (messages == 0) {
+					wait = deadline - System.nanoTime();
+					if (completedTransactions > 0 && !inTransaction) {
+						wait = Math.min(wait, lingerStart + lingerNanos - System.nanoTime());
+					}
+				}
+				long pollStart = System.nanoTime();
+				ReplicationReader.Message message = reader.poll(wait, TimeUnit.NANOSECONDS);
+				waitNanos += System.nanoTime() - pollStart;
+				if (message == null) {
+					break;
+				}
+				ByteBuffer buffer = message.buffer;
+				receivedLsn = message.lsn;
+				messages++;
+				bytes += buffer.remaining();
+				failures = 0;
+				messagesMetric.add(1);
+				bytesMetric.add(buffer.remaining());
+				receivedLsnMetric.set(receivedLsn.asLong());
+				if (committedLsn != null) {
+					lagBytesMetric.set(receivedLsn.asLong() - committedLsn.asLong());
+				}
+				if (decoder != null && isDelivered(buffer)) {
+					continue;
+				}
+				
+				boolean commit;
+				if (changeRecords != null) {
+					changeRecords.lsn = receivedLsn.asString();
+					if (decoder != null) {
+						char type = decoder.decode(buffer, changeRecords);
+						commit = type == PgOutputDecoder.COMMIT;
+						if (type == PgOutputDecoder.BEGIN) {
+							xid = Integer.toUnsignedString(decoder.getXid());
+							observeCommitTime(decoder.getCommitTime() + PgOutputDecoder.POSTGRES_EPOCH_MICROS);
+						}
+					}
+					else {
+						String line = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+						commit = textParser.parse(line, changeRecords);
+						if (line.startsWith("BEGIN")) {
+							xid = line.substring(5).trim();
+						}
+						else if (commit && textParser.getCommitTime() != null) {
+							observeCommitTime(textParser.getCommitTime().getTime() * 1000);
+						}
+					}
+					if (!commit && maxChanges > 0 && pendingChanges + changeRecords.getPendingCount() >= maxChanges) {
+						changeRecords.flush();
+					}
+					collectRecords(context, sessionFactory);
+				}
+				else if (decoder != null) {
+					changeWriter.reset();
+					char type = decoder.decode(buffer, changeWriter);
+					commit = type == PgOutputDecoder.COMMIT;
+					if (type == PgOutputDecoder.BEGIN) {
+						xid = Integer.toUnsignedString(decoder.getXid());
+						observeCommitTime(decoder.getCommitTime() + PgOutputDecoder.POSTGRES_EPOCH_MICROS);
+					}
+					for (Map.Entry<Relationship, JsonBuffer> changes : changeWriter.getBuffers().entrySet()) {
+						if (changes.getValue().size() > 0) {
+							append(sessionFactory, changes.getKey(), changes.getValue().array(), 0, changes.getValue().size(), false);
+							pendingChanges++;
+							changesMetric.add(1);
+						}
+					}
+				}
+				else {
+					// Decoded changes are already UTF-8 text, they are copied to the content as they are
+					byte[] array = buffer.array();
+					int offset = buffer.arrayOffset() + buffer.position();
+					int length = buffer.remaining();
+					commit = startsWith(array, offset, length, COMMIT);
+					if (commit) {
+						boolean written = false;
+						for (Map.Entry<Relationship, Group> group : groups.entrySet()) {
+							if (group.getValue().changed) {
+								append(sessionFactory, group.getKey(), array, offset, length, true);
+								written = true;
+							}
+						}
+						if (!written && fragmentIndex > 0) {
+							// The last fragment is delivered even without changes, it tells the transaction is complete
+							append(sessionFactory, router.getDefaultRelationship(), array, offset, length, true);
+						}
+					}
+					else if (startsWith(array, offset, length, BEGIN)) {
+						// Only written if the transaction has changes to deliver
+						begin = Arrays.copyOfRange(array, offset, offset + length);
+						xid = new String(array, offset + BEGIN.length, length - BEGIN.length, StandardCharsets.UTF_8).trim();
+					}
+					else {
+						Relationship relationship = router.isPassThrough()
+								? router.getDefaultRelationship()
+								: textParser.route(new String(array, offset, length, StandardCharsets.UTF_8), router);
+						if (relationship != null) {
+							append(sessionFactory, relationship, array, offset, length, true);
+							pendingChanges++;
+							changesMetric.add(1);
+						}
+					}
+				}
+				
+				if (commit) {
+					transactionsMetric.add(1);
+					inTransaction = false;
+					begin = null;
+					completedLsn = receivedLsn;
+					if (fragmentIndex > 0) {
+						// The last fragment is delivered even without changes, it tells the transaction is complete
+						Group group = getGroup(sessionFactory, router.getDefaultRelationship());
+						if (group.flowFile == null && changeRecords == null) {
+							group.flowFile = transactionSession.create();
+						}
+						group.changed = true;
+					}
+					boolean delivered = false;
+					for (Group group : groups.values()) {
+						if (group.changed) {
+							group.transactions++;
+							group.changed = false;
+							group.fragment = fragmentIndex > 0;
+							delivered = true;
+						}
+					}
+					if (!delivered) {
+						// Nothing to deliver (i.e. only tables filtered out changed), but the WAL can be released, now or
+						// along with the pending transactions
+						if (completedTransactions == 0) {
+							acknowledge(context, completedLsn);
+						}
+						continue;
+					}
+					if (completedTransactions++ == 0) {
+						lingerStart = System.nanoTime();
+					}
+					if (completedTransactions >= transactionsPerFlowFile || fragmentIndex > 0 || (maxChanges > 0 && pendingChanges >= maxChanges)) {
+						transferTransactions(context, false);
+					}
+				}
+				else {
+					inTransaction = true;
+					if (maxChanges > 0 && pendingChanges >= maxChanges) {
+						transferTransactions(context, true);
+					}
 				}
 			}
+			
+			if (completedTransactions > 0 && !inTransaction && System.nanoTime() - lingerStart >= lingerNanos) {
+				transferTransactions(context, false);
+			}
+			queuedMessagesMetric.set(reader.getQueueSize());
 		}
 		catch (Exception e) {
-			log.error(e.getMessage(), e);
-			e.printStackTrace();
-			session.rollback();
+			long backoff = Math.min(context.getProperty("reconnectBackoff").asTimePeriod(TimeUnit.MILLISECONDS) << Math.min(failures, 20),
+					context.getProperty("maxReconnectBackoff").asTimePeriod(TimeUnit.MILLISECONDS));
+			failures++;
+			reconnectTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+			log.error("Replication failed {} times in a row, reconnecting in {} ms", new Object[] { failures, backoff }, e);
+			reconnectionsMetric.add(1);
+			// Partial transactions are discarded and received again from the last committed one
+			rollbackTransaction();
+			close();
+		}
+		finally {
+			long triggerNanos = System.nanoTime() - triggerStart;
+			waitTimeMetric.add(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+			processingTimeMetric.add(TimeUnit.NANOSECONDS.toMillis(triggerNanos - waitNanos));
+			reportMetrics(sessionFactory);
 		}
 	}
 	
+	private void observeCommitTime(long commitTimeMicros) {
+		lagTimeMetric.set(Math.max(0, System.currentTimeMillis() - commitTimeMicros / 1000));
+	}
+	
+	/**
+	 * Reports the metrics as NiFi counters, at most once per second.
+	 */
+	private void reportMetrics(final ProcessSessionFactory sessionFactory) {
+		long now = System.nanoTime();
+		if (now - metricsReportTime < METRICS_REPORT_NANOS) {
+			return;
+		}
+		metricsReportTime = now;
+		ProcessSession session = sessionFactory.createSession();
+		metrics.report(session);
+		session.commit();
+	}
+	
+	/**
+	 * Tells whether a pgoutput message belongs to a transaction committed before the start of the stream, which the
+	 * server sends again if the acknowledged LSN didn't reach it before a failure. Relation and type messages are never
+	 * skipped, since they are only sent once per stream.
+	 */
+	private boolean isDelivered(ByteBuffer buffer) {
+		char type = (char) buffer.get(buffer.position());
+		if (type == PgOutputDecoder.BEGIN) {
+			// The final LSN is where the commit record starts, which is before the LSN its commit is received at
+			skipping = startLsn != null && Long.compareUnsigned(buffer.getLong(buffer.position() + 1), startLsn.asLong()) < 0;
+			return skipping;
+		}
+		if (type == PgOutputDecoder.COMMIT && skipping) {
+			skipping = false;
+			return true;
+		}
+		return skipping && type != PgOutputDecoder.RELATION && type != PgOutputDecoder.TYPE;
+	}
+	
+	private Group getGroup(final ProcessSessionFactory sessionFactory, Relationship relationship) {
+		if (transactionSession == null) {
+			transactionSession = sessionFactory.createSession();
+		}
+		Group group = groups.get(relationship);
+		if (group == null) {
+			group = new Group();
+			groups.put(relationship, group);
+		}
+		return group;
+	}
+	
+	private void append(final ProcessSessionFactory sessionFactory, Relationship relationship, byte[] bytes, int offset, int length, boolean newLine) {
+		Group group = getGroup(sessionFactory, relationship);
+		if (group.flowFile == null) {
+			group.flowFile = transactionSession.create();
+		}
+		// The BEGIN line goes before the first change of the transaction in every FlowFile
+		byte[] beginLine = group.changed ? null : begin;
+		group.flowFile = transactionSession.append(group.flowFile, out -> {
+			if (beginLine != null) {
+				out.write(beginLine);
+				out.write('\n');
+			}
+			out.write(bytes, offset, length);
+			if (newLine) {
+				out.write('\n');
+			}
+		});
+		group.changed = true;
+	}
+	
+	/**
+	 * Commits the complete transactions of the open FlowFiles and, once they are safe in NiFi, acknowledges their LSN
+	 * so that PostgreSQL can recycle the WAL retained by the slot.
+	 *
+	 * @param partial true if the transaction being received has too many changes, and it is transferred as a fragment
+	 */
+	private void transferTransactions(final ProcessContext context, boolean partial) throws IOException, SchemaNotFoundException {
+		LogSequenceNumber lsn = partial ? receivedLsn : completedLsn;
+		if (changeRecords != null) {
+			finishRecords(context);
+		}
+		for (Map.Entry<Relationship, Group> entry : groups.entrySet()) {
+			Group group = entry.getValue();
+			FlowFile flowFile = group.flowFile;
+			if (changeRecords == null) {
+				flowFile = transactionSession.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), decoder != null ? "application/json" : "text/plain");
+			}
+			flowFile = transactionSession.putAttribute(flowFile, TRANSACTION_COUNT_ATTRIBUTE, String.valueOf(group.transactions));
+			flowFile = transactionSession.putAttribute(flowFile, LSN_ATTRIBUTE, lsn.asString());
+			if (partial ? group.changed : group.fragment) {
+				flowFile = transactionSession.putAttribute(flowFile, XID_ATTRIBUTE, xid);
+				flowFile = transactionSession.putAttribute(flowFile, FRAGMENT_INDEX_ATTRIBUTE, String.valueOf(fragmentIndex));
+				flowFile = transactionSession.putAttribute(flowFile, FRAGMENT_LAST_ATTRIBUTE, String.valueOf(!partial));
+			}
+			transactionSession.transfer(flowFile, entry.getKey());
+		}
+		long commitStart = System.nanoTime();
+		transactionSession.commit();
+		commitTimeMetric.observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - commitStart));
+		flowFilesMetric.add(groups.size());
+		transactionSession = null;
+		groups.clear();
+		pendingChanges = 0;
+		fragmentIndex = partial ? fragmentIndex + 1 : 0;
+		if (completedTransactions > 0) {
+			completedTransactions = 0;
+			acknowledge(context, completedLsn);
+		}
+	}
+	
+	private void collectRecords(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws IOException, SchemaNotFoundException {
+		List<Record> records = changeRecords.getRecords();
+		if (records.isEmpty()) {
+			return;
+		}
+		List<Relationship> recordRelationships = changeRecords.getRelationships();
+		for (int i = 0; i < records.size(); i++) {
+			Group group = getGroup(sessionFactory, recordRelationships.get(i));
+			if (group.writer == null) {
+				openWriter(context, group);
+			}
+			group.writer.write(records.get(i));
+			group.changed = true;
+		}
+		pendingChanges += records.size();
+		changesMetric.add(records.size());
+		changeRecords.clear();
+	}
+	
+	private void openWriter(final ProcessContext context, Group group) throws IOException, SchemaNotFoundException {
+		RecordSetWriterFactory writerFactory = context.getProperty("recordWriter").asControllerService(RecordSetWriterFactory.class);
+		group.flowFile = transactionSession.create();
+		RecordSchema writeSchema = writerFactory.getSchema(group.flowFile.getAttributes(), ChangeRecords.SCHEMA);
+		group.writer = writerFactory.createWriter(getLogger(), writeSchema, transactionSession.write(group.flowFile));
+		group.writer.beginRecordSet();
+	}
+	
+	private void finishRecords(final ProcessContext context) throws IOException, SchemaNotFoundException {
+		for (Group group : groups.values()) {
+			if (group.writer == null) {
+				// The last fragment of a transaction, without changes of its own
+				openWriter(context, group);
+			}
+			Map<String, String> attributes = new HashMap<>();
+			try (RecordSetWriter writer = group.writer) {
+				WriteResult writeResult = writer.finishRecordSet();
+				attributes.putAll(writeResult.getAttributes());
+				attributes.put(GraphQL.RECORD_COUNT_ATTRIBUTE, String.valueOf(writeResult.getRecordCount()));
+				attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+			}
+			group.writer = null;
+			group.flowFile = transactionSession.putAllAttributes(group.flowFile, attributes);
+		}
+	}
+	
+	/**
+	 * Closes the record writers of the open FlowFiles, which are discarded.
+	 */
+	private void closeWriters() {
+		for (Group group : groups.values()) {
+			if (group.writer != null) {
+				try {
+					group.writer.close();
+				}
+				catch (Exception e) {
+					getLogger().debug("Failed to close record writer of a discarded FlowFile", e);
+				}
+				group.writer = null;
+			}
+		}
+	}
+	
+	private void acknowledge(final ProcessContext context, LogSequenceNumber lsn) {
+		ComponentLog log = getLogger();
+		committedLsn = lsn;
+		
+		// Sent to the server with the next status update
+		reader.acknowledge(committedLsn);
+		acknowledgedLsnMetric.set(committedLsn.asLong());
+		lagBytesMetric.set(receivedLsn == null ? 0 : Math.max(0, receivedLsn.asLong() - committedLsn.asLong()));
+		try {
+			context.getStateManager().setState(Collections.singletonMap(LSN_STATE_KEY, committedLsn.asString()), Scope.LOCAL);
+		}
+		catch (IOException e) {
+			// The slot position acknowledged to the server is enough to resume, the state only shortens the replay
+			log.warn("Failed to store LSN {} in the processor state", new Object[] { committedLsn.asString() }, e);
+		}
+	}
+	
+	private static boolean startsWith(byte[] bytes, int offset, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void rollbackTransaction() {
+		closeWriters();
+		if (transactionSession != null) {
+			transactionSession.rollback();
+			transactionSession = null;
+		}
+		groups.clear();
+		if (changeRecords != null) {
+			changeRecords.clear();
+		}
+		begin = null;
+		completedTransactions = 0;
+		pendingChanges = 0;
+		fragmentIndex = 0;
+		inTransaction = false;
+		skipping = false;
+	}
+	
 	@Override
 	public Set<Relationship> getRelationships() {
 		return relationships;
@@ -318,19 +1342,41 @@ public class LogicalDecoding extends AbstractProcessor {
 	@OnStopped
 	public void close() {
 		ComponentLog log = getLogger();
+		rollbackTransaction();
+		boolean readerStopped = true;
 		try {
-			if (stream != null) {
+			if (reader != null) {
+				readerStopped = reader.stop(READER_STOP_MILLIS);
+			}
+			// A reader blocked on the socket still holds the stream, only closing the connection releases it
+			if (stream != null && readerStopped) {
+				if (committedLsn != null && reader != null) {
+					reader.forceUpdateStatus();
+				}
 				stream.close();
-				stream = null;
 			}
+		}
+		catch (Exception e) {
+			// A broken stream can't be reused, closing the connection releases it anyway
+			log.warn(e.getMessage(), e);
+		}
+		finally {
+			stream = null;
+		}
+		try {
 			if (connection != null) {
 				connection.close();
-				connection = null;
+			}
+			if (!readerStopped) {
+				reader.stop(READER_CLOSE_MILLIS);
 			}
 		}
 		catch (Exception e) {
 			log.error(e.getMessage(), e);
-			e.printStackTrace();
+		}
+		finally {
+			connection = null;
+			reader = null;
 		}
 	}
 	
@@ -338,9 +1384,15 @@ public class LogicalDecoding extends AbstractProcessor {
 	public void interruptActiveThreads(ProcessContext context) throws Exception {
 		ComponentLog log = getLogger();
 		String lsnFileName = context.getProperty("lsnFileName").getValue();
-		if (lsnFileName != null) {
+		// The trigger copying the initial snapshot only returns once it fails
+		TableSnapshot snapshot = this.snapshot;
+		if (snapshot != null) {
+			snapshot.cancel();
+		}
+		// Transactions still being received are rolled back when stopped, so only committed ones can be skipped
+		if (lsnFileName != null && committedLsn != null) {
 			PrintWriter pw = new PrintWriter(new File(lsnFileName));
-			pw.println(stream.getLastReceiveLSN().asString());
+			pw.println(committedLsn.asString());
 			pw.close();
 			log.debug("State saved to " + lsnFileName);
 		}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Metrics of a processor, published as NiFi counters (which the REST API, the UI and reporting tasks can read) and,
+ * optionally, in the Prometheus text format by a {@link MetricsEndpoint}.
+ *
+ * Metrics are registered when the processor is initialized, and updated lock-free from any thread. NiFi counters can
+ * only be adjusted, so every value is reported as the difference with the previous report, which leaves gauges at
+ * their current value too. Counter names are the component followed by the metric name (i.e. "LogicalDecoding lag
+ * bytes"), and Prometheus names are prefixed with niledb and the component (i.e. niledb_logicaldecoding_lag_bytes).
+ */
+class Metrics {
+
+	/**
+	 * Latency buckets, in milliseconds.
+	 */
+	static final long[] LATENCY_BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	/**
+	 * Size buckets, in bytes.
+	 */
+	static final long[] SIZE_BUCKETS = { 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216 };
+
+	abstract static class Metric {
+		final String name;
+		final String help;
+
+		Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		abstract String getType();
+
+		/**
+		 * Adds the samples of the metric, as pairs of suffix (with its labels, if any) and value.
+		 */
+		abstract void collect(List<Object[]> samples);
+	}
+
+	static final class Counter extends Metric {
+		private final LongAdder value = new LongAdder();
+
+		Counter(String name, String help) {
+			super(name, help);
+		}
+
+		void add(long delta) {
+			value.add(delta);
+		}
+
+		@Override
+		String getType() {
+			return "counter";
+		}
+
+		@Override
+		void collect(List<Object[]> samples) {
+			samples.add(new Object[] { "", value.sum() });
+		}
+	}
+
+	static final class Gauge extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		Gauge(String name, String help) {
+			super(name, help);
+		}
+
+		void set(long value) {
+			this.value.set(value);
+		}
+
+		void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		@Override
+		String getType() {
+			return "gauge";
+		}
+
+		@Override
+		void collect(List<Object[]> samples) {
+			samples.add(new Object[] { "", value.get() });
+		}
+	}
+
+	static final class Histogram extends Metric {
+		private final long[] bounds;
+		// One more bucket for the values above the last bound
+		private final AtomicLongArray buckets;
+		private final LongAdder sum = new LongAdder();
+
+		Histogram(String name, String help, long[] bounds) {
+			super(name, help);
+			this.bounds = bounds;
+			this.buckets = new AtomicLongArray(bounds.length + 1);
+		}
+
+		void observe(long value) {
+			int bucket = 0;
+			while (bucket < bounds.length && value > bounds[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			sum.add(value);
+		}
+
+		@Override
+		String getType() {
+			return "histogram";
+		}
+
+		@Override
+		void collect(List<Object[]> samples) {
+			long count = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				count += buckets.get(i);
+				samples.add(new Object[] { "_bucket{le=\"" + bounds[i] + "\"}", count });
+			}
+			count += buckets.get(bounds.length);
+			samples.add(new Object[] { "_bucket{le=\"+Inf\"}", count });
+			samples.add(new Object[] { "_sum", sum.sum() });
+			samples.add(new Object[] { "_count", count });
+		}
+	}
+
+	private final String component;
+	private final String id;
+	private final List<Metric> metrics = new ArrayList<>();
+	private final Map<String, Long> reported = new ConcurrentHashMap<>();
+
+	/**
+	 * @param component processor type, used in the names of the metrics
+	 * @param id processor identifier, used as a label to tell instances apart
+	 */
+	Metrics(String component, String id) {
+		this.component = component;
+		this.id = id;
+	}
+
+	Counter counter(String name, String help) {
+		return register(new Counter(name, help));
+	}
+
+	Gauge gauge(String name, String help) {
+		return register(new Gauge(name, help));
+	}
+
+	Histogram histogram(String name, String help, long[] bounds) {
+		return register(new Histogram(name, help, bounds));
+	}
+
+	private <T extends Metric> T register(T metric) {
+		metrics.add(metric);
+		return metric;
+	}
+
+	/**
+	 * Adjusts the NiFi counters to the current values. Histograms are reported by their count and sum only. Counters
+	 * are adjusted immediately, since they measure work done whether the session is committed or not.
+	 */
+	void report(ProcessSession session) {
+		List<Object[]> samples = new ArrayList<>();
+		for (Metric metric : metrics) {
+			samples.clear();
+			metric.collect(samples);
+			for (Object[] sample : samples) {
+				String suffix = (String) sample[0];
+				if (suffix.startsWith("_bucket")) {
+					continue;
+				}
+				String counterName = component + " " + (metric.name + suffix).replace('_', ' ');
+				long value = (Long) sample[1];
+				Long previous = reported.put(counterName, value);
+				long delta = value - (previous == null ? 0 : previous);
+				if (delta != 0) {
+					session.adjustCounter(counterName, delta, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the samples of every metric to the text of its family, by Prometheus name, so that instances of the same
+	 * processor share the HELP and TYPE lines.
+	 */
+	void render(Map<String, StringBuilder> families) {
+		List<Object[]> samples = new ArrayList<>();
+		String prefix = "niledb_" + component.toLowerCase() + "_";
+		for (Metric metric : metrics) {
+			String name = prefix + metric.name + (metric instanceof Counter ? "_total" : "");
+			StringBuilder family = families.get(name);
+			if (family == null) {
+				family = new StringBuilder();
+				family.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+				family.append("# TYPE ").append(name).append(' ').append(metric.getType()).append('\n');
+				families.put(name, family);
+			}
+			samples.clear();
+			metric.collect(samples);
+			for (Object[] sample : samples) {
+				String suffix = (String) sample[0];
+				String label = "id=\"" + id + "\"";
+				if (suffix.endsWith("}")) {
+					int brace = suffix.indexOf('{');
+					family.append(name).append(suffix, 0, brace + 1).append(label).append(',').append(suffix, brace + 1, suffix.length());
+				}
+				else {
+					family.append(name).append(suffix).append('{').append(label).append('}');
+				}
+				family.append(' ').append(sample[1]).append('\n');
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpServer;
+
+/**
+ * Serves the metrics of the processors registered on a port, in the Prometheus text format, at /metrics.
+ *
+ * Processors configured with the same port share the endpoint, which is started with the first one and stopped with
+ * the last one.
+ */
+final class MetricsEndpoint {
+
+	/**
+	 * Property of the processors serving their metrics, shared by all of them.
+	 */
+	static final PropertyDescriptor PORT = new PropertyDescriptor.Builder()
+			.name("metricsPort")
+			.displayName("Metrics port")
+			.description("Port of a local HTTP endpoint serving the metrics of the processor at /metrics, in the Prometheus text "
+					+ "format. Processors with the same port share it. Metrics are published as NiFi counters anyway.")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(false)
+			.addValidator(StandardValidators.PORT_VALIDATOR)
+			.build();
+
+	private static final Map<Integer, MetricsEndpoint> ENDPOINTS = new HashMap<>();
+
+	private static final long START_TIMEOUT_MILLIS = 10000;
+	private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+	private final Vertx vertx;
+	private final Set<Metrics> metrics = new CopyOnWriteArraySet<>();
+
+	private MetricsEndpoint(int port) throws Exception {
+		vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1).setWorkerPoolSize(1));
+		CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+		vertx.createHttpServer()
+				.requestHandler(request -> {
+					if (!request.path().equals("/metrics")) {
+						request.response().setStatusCode(404).end();
+						return;
+					}
+					request.response()
+							.putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+							.end(render());
+				})
+				.listen(port, result -> {
+					if (result.succeeded()) {
+						listening.complete(result.result());
+					}
+					else {
+						listening.completeExceptionally(result.cause());
+					}
+				});
+		try {
+			listening.get(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		catch (Exception e) {
+			vertx.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops the server and waits for the port to be released, so that a processor restarted right away can listen on it.
+	 */
+	private void close() {
+		CompletableFuture<Void> closed = new CompletableFuture<>();
+		vertx.close(result -> closed.complete(null));
+		try {
+			closed.get(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		catch (Exception e) {
+			// The port is released once the event loop terminates anyway
+		}
+	}
+
+	private String render() {
+		Map<String, StringBuilder> families = new TreeMap<>();
+		for (Metrics processorMetrics : metrics) {
+			processorMetrics.render(families);
+		}
+		StringBuilder text = new StringBuilder();
+		for (StringBuilder family : families.values()) {
+			text.append(family);
+		}
+		return text.toString();
+	}
+
+	static synchronized void register(int port, Metrics processorMetrics) throws Exception {
+		MetricsEndpoint endpoint = ENDPOINTS.get(port);
+		if (endpoint == null) {
+			endpoint = new MetricsEndpoint(port);
+			ENDPOINTS.put(port, endpoint);
+		}
+		endpoint.metrics.add(processorMetrics);
+	}
+
+	static synchronized void unregister(int port, Metrics processorMetrics) {
+		MetricsEndpoint endpoint = ENDPOINTS.get(port);
+		if (endpoint != null && endpoint.metrics.remove(processorMetrics) && endpoint.metrics.isEmpty()) {
+			ENDPOINTS.remove(port);
+			endpoint.close();
+		}
+	}
+}
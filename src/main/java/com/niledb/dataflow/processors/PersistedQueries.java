@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Automatic persisted queries, as implemented by Apollo: operations carry the SHA-256 hash of their query in the
+ * "persistedQuery" extension instead of its text. When the GraphQL service doesn't know a hash yet, it answers with
+ * a PersistedQueryNotFound error and the request is sent again with both the hash and the text, which registers the
+ * query for the following requests. If the service doesn't support them at all, queries are sent as text from then on.
+ *
+ * Hashes are computed once per query, so that a static query costs nothing per request.
+ */
+class PersistedQueries {
+
+	static final int NONE = 0;
+	static final int NOT_FOUND = 1;
+	static final int NOT_SUPPORTED = 2;
+
+	/**
+	 * Rejections are short error responses, this is how much of a response is looked at to find them.
+	 */
+	static final int MAX_REJECTION_LENGTH = 1024;
+
+	private static final int MAX_QUERIES = 1024;
+
+	private static final byte[] MEMBER_PREFIX = "\"extensions\":{\"persistedQuery\":{\"version\":1,\"sha256Hash\":\""
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final int HASH_LENGTH = 64;
+	private static final int MEMBER_LENGTH = MEMBER_PREFIX.length + HASH_LENGTH + 3;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	// Extension members by query, and queries by hash, to send their text when the service asks for it
+	private final ConcurrentMap<String, byte[]> members = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, String> queries = new ConcurrentHashMap<>();
+	private volatile boolean supported = true;
+
+	/**
+	 * @return the hexadecimal SHA-256 hash of the query
+	 */
+	static String hash(String query) {
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		byte[] hash = digest.digest(query.getBytes(StandardCharsets.UTF_8));
+		StringBuilder hex = new StringBuilder(HASH_LENGTH);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return false once the GraphQL service has answered that it doesn't support persisted queries
+	 */
+	boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * Writes the query member of an operation: the persisted query extension with the hash of the query, or the query
+	 * text if the service doesn't support them.
+	 */
+	void writeMember(JsonBuffer out, String query) {
+		if (!supported) {
+			out.writeRaw("\"query\":").writeString(query);
+			return;
+		}
+		byte[] member = members.get(query);
+		if (member == null) {
+			if (members.size() >= MAX_QUERIES) {
+				// Queries evaluated from attributes may not repeat at all, they are only kept for a while
+				members.clear();
+				queries.clear();
+			}
+			String hash = hash(query);
+			JsonBuffer buffer = new JsonBuffer(MEMBER_LENGTH);
+			buffer.write(MEMBER_PREFIX);
+			buffer.writeRaw(hash).writeRaw("\"}}");
+			member = buffer.toByteArray();
+			queries.put(hash, query);
+			members.put(query, member);
+		}
+		out.write(member);
+	}
+
+	/**
+	 * Tells whether a response is the rejection of a persisted query, looking at its beginning only. Any response
+	 * mentioning the errors is taken as one, at worst the request is sent again with its query text.
+	 *
+	 * @return {@link #NOT_FOUND}, {@link #NOT_SUPPORTED} or {@link #NONE}
+	 */
+	static int rejection(String response) {
+		String start = response.length() > MAX_REJECTION_LENGTH ? response.substring(0, MAX_REJECTION_LENGTH) : response;
+		if (start.contains("PersistedQueryNotSupported") || start.contains("PERSISTED_QUERY_NOT_SUPPORTED")) {
+			return NOT_SUPPORTED;
+		}
+		if (start.contains("PersistedQueryNotFound") || start.contains("PERSISTED_QUERY_NOT_FOUND")) {
+			return NOT_FOUND;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Writes a request again after a rejection, with the text of its queries: along with their hashes, so that the
+	 * service registers them, or instead of them if the service doesn't support persisted queries, which disables
+	 * them from then on.
+	 */
+	void expand(JsonBuffer request, JsonBuffer out, int rejection) {
+		if (rejection == NOT_SUPPORTED) {
+			supported = false;
+		}
+		out.reset();
+		byte[] bytes = request.array();
+		int size = request.size();
+		int copied = 0;
+		for (int i = indexOfMember(bytes, 0, size); i >= 0; i = indexOfMember(bytes, i + MEMBER_LENGTH, size)) {
+			String query = queries.get(new String(bytes, i + MEMBER_PREFIX.length, HASH_LENGTH, StandardCharsets.US_ASCII));
+			if (query == null) {
+				// Forgotten, or not written by this class at all
+				continue;
+			}
+			if (rejection == NOT_SUPPORTED) {
+				out.write(bytes, copied, i - copied);
+				out.writeRaw("\"query\":").writeString(query);
+			}
+			else {
+				out.write(bytes, copied, i + MEMBER_LENGTH - copied);
+				out.writeRaw(",\"query\":").writeString(query);
+			}
+			copied = i + MEMBER_LENGTH;
+		}
+		out.write(bytes, copied, size - copied);
+	}
+
+	/**
+	 * @return the position of the next extension member written by {@link #writeMember(JsonBuffer, String)}, or -1.
+	 *         String values can't contain it, their quotes are escaped.
+	 */
+	private static int indexOfMember(byte[] bytes, int from, int size) {
+		search:
+		for (int i = from; i <= size - MEMBER_LENGTH; i++) {
+			for (int j = 0; j < MEMBER_PREFIX.length; j++) {
+				if (bytes[i + j] != MEMBER_PREFIX[j]) {
+					continue search;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+
+import io.vertx.core.json.Json;
+
+/**
+ * Encodes rows for COPY ... FROM STDIN, in binary format when every column has a binary encoding here, or in CSV
+ * format otherwise (i.e. numeric or array columns), which lets PostgreSQL parse the values.
+ *
+ * Values are converted from their record types to the column types, so that i.e. a string field can be copied to a
+ * timestamp column.
+ */
+class PgCopyEncoder {
+
+	private static final Set<String> BINARY_TYPES = new HashSet<>(Arrays.asList(
+			"smallint", "integer", "bigint", "real", "double precision", "boolean",
+			"text", "character varying", "character", "name", "json", "jsonb", "bytea", "uuid",
+			"date", "timestamp without time zone", "timestamp with time zone"));
+
+	private static final byte[] BINARY_HEADER = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static final LocalDate POSTGRES_EPOCH_DATE = LocalDate.of(2000, 1, 1);
+
+	private final String[] names;
+	private final String[] types;
+	private final boolean binary;
+
+	/**
+	 * @param names the column names, also used as field names in conversion errors
+	 * @param types the column types, as formatted by regtype (i.e. timestamp with time zone)
+	 */
+	PgCopyEncoder(List<String> names, List<String> types) {
+		this.names = names.toArray(new String[names.size()]);
+		this.types = types.toArray(new String[types.size()]);
+		this.binary = BINARY_TYPES.containsAll(types);
+	}
+
+	boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @return the options of the COPY statement
+	 */
+	String getOptions() {
+		return binary ? "(FORMAT binary)" : "(FORMAT csv)";
+	}
+
+	void writeHeader(DataOutputStream out) throws IOException {
+		if (binary) {
+			out.write(BINARY_HEADER);
+		}
+	}
+
+	void writeTrailer(DataOutputStream out) throws IOException {
+		if (binary) {
+			out.writeShort(-1);
+		}
+	}
+
+	void writeRow(DataOutputStream out, Object[] values) throws IOException {
+		if (binary) {
+			out.writeShort(values.length);
+			for (int i = 0; i < values.length; i++) {
+				writeBinary(out, i, values[i]);
+			}
+		}
+		else {
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				writeCsv(out, values[i]);
+			}
+			out.write('\n');
+		}
+	}
+
+	private void writeBinary(DataOutputStream out, int column, Object value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		String name = names[column];
+		switch (types[column]) {
+		case "smallint":
+			out.writeInt(2);
+			out.writeShort(DataTypeUtils.toShort(value, name));
+			break;
+		case "integer":
+			out.writeInt(4);
+			out.writeInt(DataTypeUtils.toInteger(value, name));
+			break;
+		case "bigint":
+			out.writeInt(8);
+			out.writeLong(DataTypeUtils.toLong(value, name));
+			break;
+		case "real":
+			out.writeInt(4);
+			out.writeFloat(DataTypeUtils.toFloat(value, name));
+			break;
+		case "double precision":
+			out.writeInt(8);
+			out.writeDouble(DataTypeUtils.toDouble(value, name));
+			break;
+		case "boolean":
+			out.writeInt(1);
+			out.writeByte(DataTypeUtils.toBoolean(value, name) ? 1 : 0);
+			break;
+		case "bytea": {
+			byte[] bytes = toBytes(value);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			break;
+		}
+		case "uuid": {
+			UUID uuid = value instanceof UUID ? (UUID) value : UUID.fromString(value.toString());
+			out.writeInt(16);
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+			break;
+		}
+		case "date":
+			out.writeInt(4);
+			out.writeInt((int) (DataTypeUtils.toDate(value, null, name).toLocalDate().toEpochDay() - POSTGRES_EPOCH_DATE.toEpochDay()));
+			break;
+		case "timestamp without time zone": {
+			// Wall-clock time, as it would be printed in the JVM's time zone
+			LocalDateTime time = DataTypeUtils.toTimestamp(value, null, name).toLocalDateTime();
+			out.writeInt(8);
+			out.writeLong(time.toEpochSecond(ZoneOffset.UTC) * 1000000L + time.getNano() / 1000 - PgOutputDecoder.POSTGRES_EPOCH_MICROS);
+			break;
+		}
+		case "timestamp with time zone": {
+			Timestamp time = DataTypeUtils.toTimestamp(value, null, name);
+			out.writeInt(8);
+			out.writeLong(Math.floorDiv(time.getTime(), 1000L) * 1000000L + time.getNanos() / 1000 - PgOutputDecoder.POSTGRES_EPOCH_MICROS);
+			break;
+		}
+		case "jsonb": {
+			byte[] bytes = toText(value).getBytes(StandardCharsets.UTF_8);
+			// Version of the jsonb binary format
+			out.writeInt(bytes.length + 1);
+			out.writeByte(1);
+			out.write(bytes);
+			break;
+		}
+		default: {
+			// Text types, sent as UTF-8 like the client encoding
+			byte[] bytes = toText(value).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		}
+	}
+
+	private static void writeCsv(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			// Unquoted empty values are nulls, quoted ones are empty strings
+			return;
+		}
+		String text = value instanceof byte[] || value instanceof Byte[] ? toHex(toBytes(value)) : toText(value);
+		out.write('"');
+		out.write(text.replace("\"", "\"\"").getBytes(StandardCharsets.UTF_8));
+		out.write('"');
+	}
+
+	/**
+	 * @return the value as PostgreSQL text input, with maps and records as JSON, and arrays as array literals
+	 */
+	private static String toText(Object value) {
+		if (value instanceof String) {
+			return (String) value;
+		}
+		if (value instanceof Record || value instanceof Map) {
+			return Json.encode(DataTypeUtils.toMap(value, null));
+		}
+		if (value instanceof Object[]) {
+			StringBuilder text = new StringBuilder("{");
+			for (Object element : (Object[]) value) {
+				if (text.length() > 1) {
+					text.append(',');
+				}
+				if (element == null) {
+					text.append("NULL");
+				}
+				else {
+					text.append('"').append(toText(element).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+				}
+			}
+			return text.append('}').toString();
+		}
+		return value.toString();
+	}
+
+	private static byte[] toBytes(Object value) {
+		if (value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		if (value instanceof Object[]) {
+			Object[] elements = (Object[]) value;
+			byte[] bytes = new byte[elements.length];
+			for (int i = 0; i < elements.length; i++) {
+				bytes[i] = ((Number) elements[i]).byteValue();
+			}
+			return bytes;
+		}
+		return value.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2 + 2];
+		hex[0] = '\\';
+		hex[1] = 'x';
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2 + 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			hex[i * 2 + 3] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder of the binary protocol of PostgreSQL's built-in pgoutput plugin (protocol version 1).
+ *
+ * Messages are parsed straight from the buffer returned by the replication stream. Column values are not copied
+ * nor decoded: tuples only keep their offsets in the buffer, so they are valid until the next message. Relation
+ * metadata is sent by the server before the first change of every relation (and again when it changes), and it is
+ * cached by OID for the lifetime of the decoder, which must be the lifetime of the replication stream.
+ */
+class PgOutputDecoder {
+
+	static final char BEGIN = 'B';
+	static final char COMMIT = 'C';
+	static final char ORIGIN = 'O';
+	static final char RELATION = 'R';
+	static final char TYPE = 'Y';
+	static final char INSERT = 'I';
+	static final char UPDATE = 'U';
+	static final char DELETE = 'D';
+	static final char TRUNCATE = 'T';
+
+	static final byte NULL = 'n';
+	static final byte UNCHANGED_TOAST = 'u';
+	static final byte TEXT = 't';
+
+	// Microseconds between 1970-01-01 and 2000-01-01, the epoch of PostgreSQL
+	static final long POSTGRES_EPOCH_MICROS = 946684800000000L;
+
+	static final class Relation {
+		final int oid;
+		final String namespace;
+		final String name;
+		final byte replicaIdentity;
+		final String[] columnNames;
+		final int[] columnTypes;
+		final boolean[] keyColumns;
+
+		Relation(int oid, String namespace, String name, byte replicaIdentity, String[] columnNames, int[] columnTypes, boolean[] keyColumns) {
+			this.oid = oid;
+			this.namespace = namespace;
+			this.name = name;
+			this.replicaIdentity = replicaIdentity;
+			this.columnNames = columnNames;
+			this.columnTypes = columnTypes;
+			this.keyColumns = keyColumns;
+		}
+	}
+
+	/**
+	 * Column values of a row, as text, referencing the message buffer.
+	 */
+	static final class Tuple {
+		int columnCount;
+		byte[] kinds = new byte[16];
+		int[] offsets = new int[16];
+		int[] lengths = new int[16];
+		ByteBuffer buffer;
+
+		boolean isNull(int column) {
+			return kinds[column] == NULL;
+		}
+
+		boolean isUnchangedToast(int column) {
+			return kinds[column] == UNCHANGED_TOAST;
+		}
+
+		String getString(int column) {
+			if (kinds[column] != TEXT) {
+				return null;
+			}
+			if (buffer.hasArray()) {
+				return new String(buffer.array(), buffer.arrayOffset() + offsets[column], lengths[column], StandardCharsets.UTF_8);
+			}
+			byte[] bytes = new byte[lengths[column]];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(offsets[column] + i);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private void ensureCapacity(int count) {
+			if (kinds.length < count) {
+				kinds = new byte[count];
+				offsets = new int[count];
+				lengths = new int[count];
+			}
+		}
+	}
+
+	/**
+	 * Receives the decoded messages. Tuples are only valid during the call.
+	 */
+	interface Listener {
+		void begin(long finalLsn, long commitTime, int xid);
+
+		void insert(Relation relation, Tuple newTuple);
+
+		/**
+		 * @param oldTuple the replica identity key or the old row, depending on the table's replica identity, or null
+		 */
+		void update(Relation relation, Tuple oldTuple, Tuple newTuple);
+
+		void delete(Relation relation, Tuple oldTuple);
+
+		void truncate(List<Relation> relations);
+
+		void commit(long commitLsn, long endLsn, long commitTime);
+	}
+
+	private final Map<Integer, Relation> relations = new HashMap<>();
+	private final Tuple oldTuple = new Tuple();
+	private final Tuple newTuple = new Tuple();
+	private int xid;
+	private long commitTime;
+
+	/**
+	 * @return the id of the last transaction begun
+	 */
+	int getXid() {
+		return xid;
+	}
+
+	/**
+	 * @return the commit time of the last transaction begun, in microseconds since 2000-01-01
+	 */
+	long getCommitTime() {
+		return commitTime;
+	}
+
+	/**
+	 * Decodes a message, from the buffer position to its limit, without moving the position.
+	 *
+	 * @return the message type
+	 */
+	char decode(ByteBuffer buffer, Listener listener) {
+		int position = buffer.position();
+		char type = (char) buffer.get(position++);
+		switch (type) {
+		case BEGIN:
+			xid = buffer.getInt(position + 16);
+			commitTime = buffer.getLong(position + 8);
+			listener.begin(buffer.getLong(position), commitTime, xid);
+			break;
+		case COMMIT:
+			// Flags byte, unused
+			listener.commit(buffer.getLong(position + 1), buffer.getLong(position + 9), buffer.getLong(position + 17));
+			break;
+		case RELATION:
+			decodeRelation(buffer, position);
+			break;
+		case INSERT: {
+			Relation relation = getRelation(buffer.getInt(position));
+			// 'N' marker
+			readTuple(buffer, position + 5, newTuple);
+			listener.insert(relation, newTuple);
+			break;
+		}
+		case UPDATE: {
+			Relation relation = getRelation(buffer.getInt(position));
+			position += 4;
+			Tuple old = null;
+			byte marker = buffer.get(position);
+			if (marker == 'K' || marker == 'O') {
+				position = readTuple(buffer, position + 1, oldTuple);
+				old = oldTuple;
+			}
+			readTuple(buffer, position + 1, newTuple);
+			listener.update(relation, old, newTuple);
+			break;
+		}
+		case DELETE: {
+			Relation relation = getRelation(buffer.getInt(position));
+			// 'K' or 'O' marker
+			readTuple(buffer, position + 5, oldTuple);
+			listener.delete(relation, oldTuple);
+			break;
+		}
+		case TRUNCATE: {
+			int count = buffer.getInt(position);
+			// Options byte (cascade, restart identity), unused
+			position += 5;
+			List<Relation> truncated = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				truncated.add(getRelation(buffer.getInt(position)));
+				position += 4;
+			}
+			listener.truncate(truncated);
+			break;
+		}
+		case ORIGIN:
+		case TYPE:
+			// Replication origins and custom type names are not needed, values are sent as text
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown pgoutput message type '" + type + "'");
+		}
+		return type;
+	}
+
+	Relation getRelation(int oid) {
+		Relation relation = relations.get(oid);
+		if (relation == null) {
+			throw new IllegalStateException("Change of relation " + oid + " received before its metadata");
+		}
+		return relation;
+	}
+
+	private void decodeRelation(ByteBuffer buffer, int position) {
+		int oid = buffer.getInt(position);
+		position += 4;
+		int end = indexOfNull(buffer, position);
+		String namespace = readString(buffer, position, end);
+		position = end + 1;
+		end = indexOfNull(buffer, position);
+		String name = readString(buffer, position, end);
+		position = end + 1;
+		byte replicaIdentity = buffer.get(position++);
+		int columnCount = buffer.getShort(position) & 0xFFFF;
+		position += 2;
+
+		String[] columnNames = new String[columnCount];
+		int[] columnTypes = new int[columnCount];
+		boolean[] keyColumns = new boolean[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			keyColumns[i] = (buffer.get(position++) & 1) != 0;
+			end = indexOfNull(buffer, position);
+			columnNames[i] = readString(buffer, position, end);
+			position = end + 1;
+			columnTypes[i] = buffer.getInt(position);
+			// Type modifier, unused
+			position += 8;
+		}
+		relations.put(oid, new Relation(oid, namespace.isEmpty() ? "pg_catalog" : namespace, name, replicaIdentity, columnNames, columnTypes, keyColumns));
+	}
+
+	/**
+	 * @return the position after the tuple
+	 */
+	private static int readTuple(ByteBuffer buffer, int position, Tuple tuple) {
+		int columnCount = buffer.getShort(position) & 0xFFFF;
+		position += 2;
+		tuple.ensureCapacity(columnCount);
+		tuple.columnCount = columnCount;
+		tuple.buffer = buffer;
+		for (int i = 0; i < columnCount; i++) {
+			byte kind = buffer.get(position++);
+			tuple.kinds[i] = kind;
+			if (kind == TEXT) {
+				int length = buffer.getInt(position);
+				tuple.offsets[i] = position + 4;
+				tuple.lengths[i] = length;
+				position += 4 + length;
+			}
+			else {
+				tuple.offsets[i] = position;
+				tuple.lengths[i] = 0;
+			}
+		}
+		return position;
+	}
+
+	private static int indexOfNull(ByteBuffer buffer, int position) {
+		while (buffer.get(position) != 0) {
+			position++;
+		}
+		return position;
+	}
+
+	private static String readString(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
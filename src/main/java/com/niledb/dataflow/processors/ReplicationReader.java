@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * Reads a replication stream in its own thread, with blocking reads, into a bounded queue.
+ *
+ * The thread owns the stream, since the connection can't be used by several threads at once: acknowledged LSNs are
+ * handed over to it, and it reports them with the status updates that the driver sends while reading. Reading pauses
+ * while the queue is full, and the status is then sent every status interval, so that the server doesn't time out the
+ * connection while NiFi applies back pressure.
+ */
+class ReplicationReader implements Runnable {
+
+	/**
+	 * WAL message, with the LSN it was received at.
+	 */
+	static final class Message {
+		final ByteBuffer buffer;
+		final LogSequenceNumber lsn;
+
+		Message(ByteBuffer buffer, LogSequenceNumber lsn) {
+			this.buffer = buffer;
+			this.lsn = lsn;
+		}
+	}
+
+	private final PGReplicationStream stream;
+	private final BlockingQueue<Message> queue;
+	private final long statusIntervalMillis;
+	private final Thread thread;
+	private volatile LogSequenceNumber acknowledgedLsn = null;
+	private LogSequenceNumber reportedLsn = null;
+	private volatile Exception failure = null;
+	private volatile boolean stopped = false;
+
+	ReplicationReader(PGReplicationStream stream, int capacity, long statusIntervalMillis, String name) {
+		this.stream = stream;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.statusIntervalMillis = statusIntervalMillis;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * @return the next message, waiting up to the timeout, or null if there is none
+	 * @throws Exception the failure that stopped the reader, once its messages have been taken
+	 */
+	Message poll(long timeout, TimeUnit unit) throws Exception {
+		Message message = timeout > 0 ? queue.poll(timeout, unit) : queue.poll();
+		if (message == null && failure != null) {
+			throw failure;
+		}
+		return message;
+	}
+
+	/**
+	 * @return the number of messages read ahead
+	 */
+	int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Reports the LSN as flushed and applied with the next status update.
+	 */
+	void acknowledge(LogSequenceNumber lsn) {
+		acknowledgedLsn = lsn;
+	}
+
+	/**
+	 * Stops reading. A reader blocked on the socket only stops once the connection is closed.
+	 *
+	 * @return true if the reader has stopped within the timeout, so the stream can be used by the caller
+	 */
+	boolean stop(long timeoutMillis) throws InterruptedException {
+		stopped = true;
+		thread.interrupt();
+		thread.join(timeoutMillis);
+		return !thread.isAlive();
+	}
+
+	/**
+	 * Sends the status with the last acknowledged LSN, only once the reader has stopped.
+	 */
+	void forceUpdateStatus() throws SQLException {
+		updateLsn();
+		stream.forceUpdateStatus();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				updateLsn();
+				ByteBuffer buffer = stream.read();
+				if (buffer == null) {
+					throw new SQLException("Replication stream closed by the server");
+				}
+				Message message = new Message(buffer, stream.getLastReceiveLSN());
+				while (!queue.offer(message, statusIntervalMillis, TimeUnit.MILLISECONDS)) {
+					// Nothing is read while the queue is full, so the server wouldn't hear from us otherwise
+					updateLsn();
+					stream.forceUpdateStatus();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// Stopped while waiting for room in the queue
+		}
+		catch (Exception e) {
+			if (!stopped) {
+				failure = e;
+			}
+		}
+	}
+
+	private void updateLsn() {
+		LogSequenceNumber lsn = acknowledgedLsn;
+		if (lsn != null && lsn != reportedLsn) {
+			stream.setAppliedLSN(lsn);
+			stream.setFlushedLSN(lsn);
+			reportedLsn = lsn;
+		}
+	}
+}
@@ -0,0 +1,436 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.replication.LogSequenceNumber;
+
+/**
+ * Copies the tables of a replication slot as they were at its consistent point, using the snapshot exported when the
+ * slot was created.
+ *
+ * Tables with a single integer primary key and more rows than the chunk size are split in key ranges, and chunks are
+ * copied in parallel, each one to its own FlowFile, by connections that import the same snapshot. Chunks are written
+ * through the record writer, if any, as insert records of {@link ChangeRecords#SCHEMA} at the consistent point, without
+ * xid nor commit time, like the changes streamed after them. Otherwise they are copied as CSV. The snapshot
+ * is only valid while the replication connection that exported it stays idle, so streaming must not start until
+ * {@link #run(ProcessSessionFactory)} returns. The copy can be cancelled from another thread with {@link #cancel()}.
+ */
+class TableSnapshot {
+
+	static final String SCHEMA_ATTRIBUTE = "snapshot.schema";
+	static final String TABLE_ATTRIBUTE = "snapshot.table";
+	static final String CHUNK_ATTRIBUTE = "snapshot.chunk";
+	static final String CHUNK_COUNT_ATTRIBUTE = "snapshot.chunk.count";
+
+	// Rows fetched at a time when they are written as records, so that chunks aren't loaded in memory
+	private static final int FETCH_SIZE = 1000;
+
+	interface ConnectionFactory {
+		Connection create() throws Exception;
+	}
+
+	private static final class Chunk {
+		String schema;
+		String table;
+		Relationship relationship;
+		String condition;
+		int index;
+		int count;
+	}
+
+	private final ConnectionFactory connections;
+	private final String snapshotName;
+	private final LogSequenceNumber consistentPoint;
+	private final ChangeRouter router;
+	private final RecordSetWriterFactory writerFactory;
+	private final String publications;
+	private final long chunkSize;
+	private final int threads;
+	private final ComponentLog log;
+	// Connections of the copy, whose queries are cancelled along with it
+	private final Set<Connection> openConnections = ConcurrentHashMap.newKeySet();
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param writerFactory writer of the rows as records, or null to copy them as CSV
+	 * @param publications publications whose tables are copied, separated by commas, or null for all the tables
+	 */
+	TableSnapshot(ConnectionFactory connections, String snapshotName, LogSequenceNumber consistentPoint, ChangeRouter router,
+			RecordSetWriterFactory writerFactory, String publications, long chunkSize, int threads, ComponentLog log) {
+		this.connections = connections;
+		this.snapshotName = snapshotName;
+		this.consistentPoint = consistentPoint;
+		this.router = router;
+		this.writerFactory = writerFactory;
+		this.publications = publications;
+		this.chunkSize = chunkSize;
+		this.threads = threads;
+		this.log = log;
+	}
+
+	/**
+	 * Copies the tables, committing every chunk in its own session.
+	 *
+	 * @return the number of chunks copied
+	 */
+	long run(ProcessSessionFactory sessionFactory) throws Exception {
+		checkCancelled();
+		ConcurrentLinkedQueue<Chunk> chunks;
+		try (Connection connection = begin()) {
+			chunks = new ConcurrentLinkedQueue<>(plan(connection));
+			connection.commit();
+		}
+		log.info("Copying {} chunks of the snapshot {} with {} threads", new Object[] { chunks.size(), snapshotName, threads });
+
+		AtomicLong copied = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> workers = new ArrayList<>(threads);
+			for (int i = 0; i < threads; i++) {
+				workers.add(executor.submit(() -> {
+					try (Connection connection = begin()) {
+						CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+						Chunk chunk;
+						while ((chunk = chunks.poll()) != null) {
+							checkCancelled();
+							if (writerFactory == null) {
+								copy(copyManager, chunk, sessionFactory);
+							}
+							else {
+								copyRecords(connection, chunk, sessionFactory);
+							}
+							copied.incrementAndGet();
+						}
+						connection.commit();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> worker : workers) {
+				try {
+					worker.get();
+				}
+				catch (ExecutionException e) {
+					// The other workers stop as soon as the queue is drained
+					chunks.clear();
+					checkCancelled();
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		checkCancelled();
+		return copied.get();
+	}
+
+	/**
+	 * Cancels the copy, from any thread: the queries being run are cancelled, and {@link #run(ProcessSessionFactory)}
+	 * fails without copying more chunks.
+	 */
+	void cancel() {
+		cancelled = true;
+		for (Connection connection : openConnections) {
+			try {
+				connection.unwrap(BaseConnection.class).cancelQuery();
+			}
+			catch (SQLException e) {
+				// Already closed, or the query finished meanwhile
+				log.debug("Failed to cancel a query of snapshot {}", new Object[] { snapshotName }, e);
+			}
+		}
+	}
+
+	private void checkCancelled() throws IOException {
+		if (cancelled) {
+			throw new IOException("Copy of snapshot " + snapshotName + " cancelled");
+		}
+	}
+
+	/**
+	 * @return a connection in a transaction that sees the exported snapshot
+	 */
+	private Connection begin() throws Exception {
+		Connection connection = connections.create();
+		openConnections.add(connection);
+		try {
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("SET TRANSACTION SNAPSHOT '" + snapshotName.replace("'", "''") + "'");
+			}
+			return connection;
+		}
+		catch (Exception e) {
+			openConnections.remove(connection);
+			connection.close();
+			throw e;
+		}
+	}
+
+	private List<Chunk> plan(Connection connection) throws SQLException {
+		List<String[]> tables = new ArrayList<>();
+		if (publications != null) {
+			try (PreparedStatement statement = connection.prepareStatement(
+					"SELECT DISTINCT schemaname, tablename FROM pg_publication_tables WHERE pubname = ANY (?) ORDER BY 1, 2")) {
+				List<String> names = new ArrayList<>();
+				for (String publication : publications.split(",")) {
+					names.add(publication.trim());
+				}
+				statement.setArray(1, connection.createArrayOf("text", names.toArray()));
+				readTables(statement, tables);
+			}
+		}
+		else {
+			try (PreparedStatement statement = connection.prepareStatement(
+					"SELECT n.nspname, c.relname FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+					+ "WHERE c.relkind = 'r' AND NOT c.relispartition AND n.nspname NOT IN ('pg_catalog', 'information_schema') "
+					+ "AND n.nspname NOT LIKE 'pg\\_toast%' AND n.nspname NOT LIKE 'pg\\_temp%' ORDER BY 1, 2")) {
+				readTables(statement, tables);
+			}
+		}
+
+		List<Chunk> chunks = new ArrayList<>();
+		try (PreparedStatement keys = connection.prepareStatement(
+				"SELECT a.attname, c.reltuples FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+				+ "LEFT JOIN pg_index i ON i.indrelid = c.oid AND i.indisprimary AND i.indnatts = 1 "
+				+ "LEFT JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum = i.indkey[0] "
+				+ "AND a.atttypid IN ('int2'::regtype, 'int4'::regtype, 'int8'::regtype) "
+				+ "WHERE n.nspname = ? AND c.relname = ?")) {
+			for (String[] table : tables) {
+				// Snapshot rows are inserts as far as filters and routes are concerned
+				Relationship relationship = router.route("insert", table[0], table[1]);
+				if (relationship == null) {
+					continue;
+				}
+				String key = null;
+				double rows = 0;
+				keys.setString(1, table[0]);
+				keys.setString(2, table[1]);
+				try (ResultSet result = keys.executeQuery()) {
+					if (result.next()) {
+						key = result.getString(1);
+						rows = result.getDouble(2);
+					}
+				}
+				List<String> conditions = new ArrayList<>();
+				if (key != null && rows > chunkSize) {
+					conditions = split(connection, table, key, (long) Math.ceil(rows / chunkSize));
+				}
+				if (conditions.isEmpty()) {
+					conditions.add(null);
+				}
+				for (int i = 0; i < conditions.size(); i++) {
+					Chunk chunk = new Chunk();
+					chunk.schema = table[0];
+					chunk.table = table[1];
+					chunk.relationship = relationship;
+					chunk.condition = conditions.get(i);
+					chunk.index = i;
+					chunk.count = conditions.size();
+					chunks.add(chunk);
+				}
+			}
+		}
+		return chunks;
+	}
+
+	private static void readTables(PreparedStatement statement, List<String[]> tables) throws SQLException {
+		try (ResultSet result = statement.executeQuery()) {
+			while (result.next()) {
+				tables.add(new String[] { result.getString(1), result.getString(2) });
+			}
+		}
+	}
+
+	/**
+	 * @return the conditions of key ranges of the same width, from the minimum to the maximum key of the snapshot
+	 */
+	private static List<String> split(Connection connection, String[] table, String key, long count) throws SQLException {
+		String column = quote(key);
+		try (Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery("SELECT min(" + column + "), max(" + column + ") FROM " + quote(table[0]) + "." + quote(table[1]))) {
+			result.next();
+			long min = result.getLong(1);
+			if (result.wasNull()) {
+				return new ArrayList<>();
+			}
+			return ranges(column, min, result.getLong(2), count);
+		}
+	}
+
+	/**
+	 * @return the conditions of at most count key ranges of the same width covering the keys from min to max, or none
+	 *         if the keys can't be split. The first and last ranges are open, so that no row is left out.
+	 */
+	static List<String> ranges(String column, long min, long max, long count) {
+		List<String> conditions = new ArrayList<>();
+		if (count < 2 || max <= min) {
+			return conditions;
+		}
+		// Offsets from the minimum are unsigned, so that the widest key ranges don't overflow
+		long span = max - min;
+		long width = Long.divideUnsigned(span, count) + 1;
+		for (long offset = 0; ; offset += width) {
+			long start = min + offset;
+			boolean last = Long.compareUnsigned(span - offset, width) < 0;
+			String lower = offset == 0 ? null : column + " >= " + start;
+			String upper = last ? null : column + " < " + (start + width);
+			if (lower == null) {
+				conditions.add(upper);
+			}
+			else {
+				conditions.add(upper == null ? lower : lower + " AND " + upper);
+			}
+			if (last) {
+				return conditions;
+			}
+		}
+	}
+
+	private void copy(CopyManager copyManager, Chunk chunk, ProcessSessionFactory sessionFactory) throws Exception {
+		String table = quote(chunk.schema) + "." + quote(chunk.table);
+		String sql = chunk.condition == null
+				? "COPY " + table + " TO STDOUT WITH (FORMAT csv, HEADER)"
+				: "COPY (SELECT * FROM " + table + " WHERE " + chunk.condition + ") TO STDOUT WITH (FORMAT csv, HEADER)";
+
+		ProcessSession session = sessionFactory.createSession();
+		try {
+			FlowFile flowFile = session.create();
+			flowFile = session.write(flowFile, out -> {
+				try {
+					copyManager.copyOut(sql, out);
+				}
+				catch (SQLException e) {
+					throw new IOException(e);
+				}
+			});
+			Map<String, String> attributes = new HashMap<>();
+			attributes.put(CoreAttributes.MIME_TYPE.key(), "text/csv");
+			transfer(session, flowFile, chunk, attributes);
+		}
+		catch (Exception e) {
+			session.rollback();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the rows of a chunk as insert records, fetched a few at a time.
+	 */
+	private void copyRecords(Connection connection, Chunk chunk, ProcessSessionFactory sessionFactory) throws Exception {
+		String sql = "SELECT * FROM " + quote(chunk.schema) + "." + quote(chunk.table)
+				+ (chunk.condition == null ? "" : " WHERE " + chunk.condition);
+		ChangeRecords records = new ChangeRecords(router);
+		records.lsn = consistentPoint.asString();
+		Map<String, String> attributes = new HashMap<>();
+
+		ProcessSession session = sessionFactory.createSession();
+		try {
+			FlowFile flowFile = session.create();
+			RecordSchema writeSchema = writerFactory.getSchema(flowFile.getAttributes(), ChangeRecords.SCHEMA);
+			flowFile = session.write(flowFile, out -> {
+				try (Statement statement = connection.createStatement();
+						RecordSetWriter writer = writerFactory.createWriter(log, writeSchema, out)) {
+					statement.setFetchSize(FETCH_SIZE);
+					writer.beginRecordSet();
+					try (ResultSet result = statement.executeQuery(sql)) {
+						ResultSetMetaData metaData = result.getMetaData();
+						int columnCount = metaData.getColumnCount();
+						while (result.next()) {
+							// Values are the text representation of PostgreSQL, as in the changes
+							Map<String, Object> after = new LinkedHashMap<>(columnCount * 4 / 3 + 1);
+							for (int i = 1; i <= columnCount; i++) {
+								after.put(metaData.getColumnName(i), result.getString(i));
+							}
+							records.begin(null, null);
+							records.change("insert", chunk.schema, chunk.table, null, null, after);
+							records.flush();
+							for (Record record : records.getRecords()) {
+								writer.write(record);
+							}
+							records.clear();
+						}
+					}
+					WriteResult writeResult = writer.finishRecordSet();
+					attributes.putAll(writeResult.getAttributes());
+					attributes.put(GraphQL.RECORD_COUNT_ATTRIBUTE, String.valueOf(writeResult.getRecordCount()));
+					attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+				}
+				catch (SQLException | SchemaNotFoundException e) {
+					throw new IOException(e);
+				}
+			});
+			transfer(session, flowFile, chunk, attributes);
+		}
+		catch (Exception e) {
+			session.rollback();
+			throw e;
+		}
+	}
+
+	private void transfer(ProcessSession session, FlowFile flowFile, Chunk chunk, Map<String, String> attributes) {
+		attributes.put(SCHEMA_ATTRIBUTE, chunk.schema);
+		attributes.put(TABLE_ATTRIBUTE, chunk.table);
+		attributes.put(CHUNK_ATTRIBUTE, String.valueOf(chunk.index));
+		attributes.put(CHUNK_COUNT_ATTRIBUTE, String.valueOf(chunk.count));
+		attributes.put(LogicalDecoding.LSN_ATTRIBUTE, consistentPoint.asString());
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		session.transfer(flowFile, chunk.relationship);
+		session.commit();
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+}
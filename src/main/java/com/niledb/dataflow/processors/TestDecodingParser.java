@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.processor.Relationship;
+
+/**
+ * Parser of the text lines of PostgreSQL's test_decoding plugin, i.e.
+ *
+ * BEGIN 571
+ * table public.customers: UPDATE: old-key: id[integer]:1 new-tuple: id[integer]:2 name[text]:'Ann'
+ * COMMIT 571 (at 2018-09-20 12:34:56.789012+02)
+ *
+ * The plugin doesn't tell the key columns of a table, so they are only known for deletes and key updates, whose old
+ * values are the replica identity. Commit times are only sent with the include-timestamp slot option.
+ */
+class TestDecodingParser {
+
+	private static final DateTimeFormatter COMMIT_TIME = new DateTimeFormatterBuilder()
+			.appendPattern("yyyy-MM-dd HH:mm:ss")
+			.optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+			.appendPattern("[XXX][X]")
+			.toFormatter();
+
+	private static final Object[] NO_KEY_COLUMNS = new Object[0];
+
+	// Compared by reference, so that a quoted value with the same text isn't taken for the marker
+	private static final String UNCHANGED_TOAST = "unchanged-toast-datum";
+
+	private String line;
+	private int position;
+	private Timestamp commitTime;
+
+	/**
+	 * @return the commit time of the last commit parsed, or null if it wasn't sent
+	 */
+	Timestamp getCommitTime() {
+		return commitTime;
+	}
+
+	/**
+	 * @return true if the line is the commit of a transaction
+	 */
+	boolean parse(String line, ChangeRecords records) {
+		this.line = line;
+		this.position = 0;
+		if (line.startsWith("BEGIN")) {
+			position = 5;
+			skipSpaces();
+			records.begin(readLong(), null);
+			return false;
+		}
+		if (line.startsWith("COMMIT")) {
+			int at = line.indexOf("(at ");
+			commitTime = at < 0 ? null : parseCommitTime(line.substring(at + 4, line.lastIndexOf(')')));
+			records.commit(commitTime);
+			return true;
+		}
+		if (!line.startsWith("table ")) {
+			throw new IllegalArgumentException("Unexpected test_decoding line: " + line);
+		}
+		List<String[]> tables = new ArrayList<>(1);
+		String op = parseHeader(tables);
+
+		if (op.equals("truncate")) {
+			for (String[] table : tables) {
+				records.change(op, table[0], table[1], null, null, null);
+			}
+			return false;
+		}
+
+		String[] table = tables.get(0);
+		skipSpaces();
+		if (op.equals("insert")) {
+			records.change(op, table[0], table[1], null, null, readTuple());
+		}
+		else if (op.equals("update")) {
+			if (line.startsWith("old-key:", position)) {
+				position += 8;
+				Map<String, Object> before = readTuple();
+				skipSpaces();
+				if (!line.startsWith("new-tuple:", position)) {
+					throw new IllegalArgumentException("Expected new-tuple in test_decoding line: " + line);
+				}
+				position += 10;
+				records.change(op, table[0], table[1], before == null ? null : before.keySet().toArray(), before, readTuple());
+			}
+			else {
+				records.change(op, table[0], table[1], null, null, readTuple());
+			}
+		}
+		else if (op.equals("delete")) {
+			Map<String, Object> before = readTuple();
+			records.change(op, table[0], table[1], before == null ? NO_KEY_COLUMNS : before.keySet().toArray(), before, null);
+		}
+		else {
+			throw new IllegalArgumentException("Unexpected test_decoding operation '" + op + "'");
+		}
+		return false;
+	}
+
+	/**
+	 * Routes a line without parsing its values. BEGIN and COMMIT lines aren't changes, so they go nowhere.
+	 *
+	 * @return the relationship of the change, or null if it is filtered out. Truncates of several tables are routed as
+	 *         the first one that isn't filtered out.
+	 */
+	Relationship route(String line, ChangeRouter router) {
+		this.line = line;
+		this.position = 0;
+		if (!line.startsWith("table ")) {
+			return null;
+		}
+		List<String[]> tables = new ArrayList<>(1);
+		String op = parseHeader(tables);
+		for (String[] table : tables) {
+			Relationship relationship = router.route(op, table[0], table[1]);
+			if (relationship != null) {
+				return relationship;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses "table public.customers: INSERT:", where several tables are truncated in the same line, separated by commas.
+	 *
+	 * @return the operation, in lower case
+	 */
+	private String parseHeader(List<String[]> tables) {
+		position = 6;
+		do {
+			skipSpaces();
+			String schema = readIdentifier();
+			expect('.');
+			tables.add(new String[] {schema, readIdentifier()});
+		} while (consume(','));
+		expect(':');
+		skipSpaces();
+		int end = line.indexOf(':', position);
+		if (end < 0) {
+			throw new IllegalArgumentException("Operation not terminated in test_decoding line: " + line);
+		}
+		String op = line.substring(position, end).toLowerCase();
+		position = end + 1;
+		return op;
+	}
+
+	/**
+	 * @return the column values, or null with (no-tuple-data)
+	 */
+	private Map<String, Object> readTuple() {
+		skipSpaces();
+		if (line.startsWith("(no-tuple-data)", position)) {
+			position += 15;
+			return null;
+		}
+		Map<String, Object> values = new LinkedHashMap<>();
+		while (position < line.length() && !line.startsWith("new-tuple:", position)) {
+			String name = readIdentifier();
+			expect('[');
+			// Type names may have brackets, i.e. integer[]
+			int end = line.indexOf("]:", position);
+			if (end < 0) {
+				throw new IllegalArgumentException("Column type not terminated in test_decoding line: " + line);
+			}
+			position = end + 2;
+			String value = readValue();
+			if (value != UNCHANGED_TOAST) {
+				values.put(name, value);
+			}
+			skipSpaces();
+		}
+		return values;
+	}
+
+	private String readValue() {
+		if (line.charAt(position) == '\'') {
+			return readQuoted('\'');
+		}
+		if (line.startsWith("B'", position)) {
+			position++;
+			return readQuoted('\'');
+		}
+		int start = position;
+		while (position < line.length() && line.charAt(position) != ' ') {
+			position++;
+		}
+		String token = line.substring(start, position);
+		if (token.equals("null")) {
+			return null;
+		}
+		if (token.equals(UNCHANGED_TOAST)) {
+			return UNCHANGED_TOAST;
+		}
+		return token;
+	}
+
+	private String readIdentifier() {
+		if (line.charAt(position) == '"') {
+			return readQuoted('"');
+		}
+		int start = position;
+		while (position < line.length()) {
+			char c = line.charAt(position);
+			if (c == '.' || c == ':' || c == '[' || c == ',') {
+				break;
+			}
+			position++;
+		}
+		return line.substring(start, position);
+	}
+
+	/**
+	 * Reads a quoted text, where quotes are escaped by doubling them.
+	 */
+	private String readQuoted(char quote) {
+		StringBuilder text = new StringBuilder();
+		position++;
+		while (true) {
+			int end = line.indexOf(quote, position);
+			if (end < 0) {
+				throw new IllegalArgumentException("Unterminated quoted text in test_decoding line: " + line);
+			}
+			text.append(line, position, end);
+			position = end + 1;
+			if (position < line.length() && line.charAt(position) == quote) {
+				text.append(quote);
+				position++;
+			}
+			else {
+				return text.toString();
+			}
+		}
+	}
+
+	private long readLong() {
+		int start = position;
+		while (position < line.length() && Character.isDigit(line.charAt(position))) {
+			position++;
+		}
+		return Long.parseLong(line.substring(start, position));
+	}
+
+	private void skipSpaces() {
+		while (position < line.length() && line.charAt(position) == ' ') {
+			position++;
+		}
+	}
+
+	private boolean consume(char c) {
+		if (position < line.length() && line.charAt(position) == c) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!consume(c)) {
+			throw new IllegalArgumentException("Expected '" + c + "' at " + position + " in test_decoding line: " + line);
+		}
+	}
+
+	private static Timestamp parseCommitTime(String text) {
+		try {
+			return Timestamp.from(OffsetDateTime.parse(text, COMMIT_TIME).toInstant());
+		}
+		catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.services;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+@Tags({ "GraphQL", "HTTP", "Client", "Connection Pool", "NileDB", "niledb.com" })
+@CapabilityDescription("Provides a pooled, keep-alive HTTP client that can be shared by several GraphQL processors.")
+public interface GraphQLClientService extends ControllerService {
+
+	/**
+	 * Returns the shared HTTP client. Callers must close the responses they obtain, but never the client itself.
+	 */
+	CloseableHttpClient getHttpClient();
+
+	/**
+	 * Returns the connect timeout of the client, in milliseconds, so that processors configure their other clients alike.
+	 */
+	long getConnectTimeout();
+
+	/**
+	 * Returns the socket timeout of the client, in milliseconds.
+	 */
+	long getSocketTimeout();
+
+	/**
+	 * Returns how long idle connections are kept in the pool, in milliseconds.
+	 */
+	long getIdleTimeout();
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "GraphQL", "HTTP", "Client", "Connection Pool", "NileDB", "niledb.com" })
+@CapabilityDescription("Pooled, keep-alive HTTP client for NileDB's GraphQL services. "
+		+ "Connections are reused across FlowFiles and across every GraphQL processor referencing this service.")
+public class StandardGraphQLClientService extends AbstractControllerService implements GraphQLClientService {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+	public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+	public static final long DEFAULT_SOCKET_TIMEOUT = 30000;
+	public static final long DEFAULT_CONNECTION_REQUEST_TIMEOUT = 5000;
+	public static final long DEFAULT_KEEP_ALIVE = 60000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	private static final List<PropertyDescriptor> PROPERTIES;
+
+	private volatile CloseableHttpClient httpClient;
+	private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile long socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor.Builder()
+			.name("maxConnections")
+			.displayName("Max connections")
+			.description("Maximum number of pooled connections, across all endpoints.")
+			.defaultValue(String.valueOf(DEFAULT_MAX_CONNECTIONS))
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor MAX_CONNECTIONS_PER_ROUTE = new PropertyDescriptor.Builder()
+			.name("maxConnectionsPerRoute")
+			.displayName("Max connections per route")
+			.description("Maximum number of pooled connections to a single endpoint (host and port).")
+			.defaultValue(String.valueOf(DEFAULT_MAX_CONNECTIONS_PER_ROUTE))
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("connectTimeout")
+			.displayName("Connect timeout")
+			.description("Maximum time to wait for a connection (including TLS handshake) to be established.")
+			.defaultValue(DEFAULT_CONNECT_TIMEOUT + " millis")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor SOCKET_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("socketTimeout")
+			.displayName("Socket timeout")
+			.description("Maximum time of inactivity while waiting for the GraphQL service response.")
+			.defaultValue(DEFAULT_SOCKET_TIMEOUT + " millis")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor CONNECTION_REQUEST_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("connectionRequestTimeout")
+			.displayName("Connection request timeout")
+			.description("Maximum time to wait for a free connection from the pool.")
+			.defaultValue(DEFAULT_CONNECTION_REQUEST_TIMEOUT + " millis")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor KEEP_ALIVE = new PropertyDescriptor.Builder()
+			.name("keepAlive")
+			.displayName("Keep-alive")
+			.description("How long an idle connection is kept alive when the server does not send a Keep-Alive header.")
+			.defaultValue(DEFAULT_KEEP_ALIVE + " millis")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("idleTimeout")
+			.displayName("Idle timeout")
+			.description("Connections idle for longer than this are evicted from the pool by a background thread.")
+			.defaultValue(DEFAULT_IDLE_TIMEOUT + " millis")
+			.expressionLanguageSupported(ExpressionLanguageScope.NONE)
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	static {
+		List<PropertyDescriptor> properties = new ArrayList<>();
+		properties.add(MAX_CONNECTIONS);
+		properties.add(MAX_CONNECTIONS_PER_ROUTE);
+		properties.add(CONNECT_TIMEOUT);
+		properties.add(SOCKET_TIMEOUT);
+		properties.add(CONNECTION_REQUEST_TIMEOUT);
+		properties.add(KEEP_ALIVE);
+		properties.add(IDLE_TIMEOUT);
+		PROPERTIES = Collections.unmodifiableList(properties);
+	}
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return PROPERTIES;
+	}
+
+	@OnEnabled
+	public void onEnabled(final ConfigurationContext context) {
+		connectTimeout = context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		socketTimeout = context.getProperty(SOCKET_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		idleTimeout = context.getProperty(IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		httpClient = createHttpClient(
+				context.getProperty(MAX_CONNECTIONS).asInteger(),
+				context.getProperty(MAX_CONNECTIONS_PER_ROUTE).asInteger(),
+				connectTimeout,
+				socketTimeout,
+				context.getProperty(CONNECTION_REQUEST_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+				context.getProperty(KEEP_ALIVE).asTimePeriod(TimeUnit.MILLISECONDS),
+				idleTimeout);
+	}
+
+	@OnDisabled
+	public void onDisabled() {
+		ComponentLog log = getLogger();
+		try {
+			if (httpClient != null) {
+				httpClient.close();
+			}
+		}
+		catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+		finally {
+			httpClient = null;
+		}
+	}
+
+	@Override
+	public CloseableHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	@Override
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	@Override
+	public long getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	@Override
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Builds a pooled client. Also used by processors that are not bound to a service, so that they get the same
+	 * behaviour with the default settings.
+	 */
+	public static CloseableHttpClient createHttpClient(int maxConnections, int maxConnectionsPerRoute,
+			long connectTimeout, long socketTimeout, long connectionRequestTimeout, long keepAlive, long idleTimeout) {
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout((int) connectTimeout)
+				.setSocketTimeout((int) socketTimeout)
+				.setConnectionRequestTimeout((int) connectionRequestTimeout)
+				.build();
+
+		return HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy((response, context) -> {
+					long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+					return duration > 0 ? duration : keepAlive;
+				})
+				.evictExpiredConnections()
+				.evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	public static CloseableHttpClient createDefaultHttpClient() {
+		return createHttpClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+				DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_CONNECTION_REQUEST_TIMEOUT,
+				DEFAULT_KEEP_ALIVE, DEFAULT_IDLE_TIMEOUT);
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+public class ConsumeGraphQLSubscriptionTest {
+	
+	/**
+	 * Starts a local stand-in for NileDB Core speaking graphql-ws. Every subscription gets "events" events, numbered
+	 * from the number of events pushed before. The first connection is dropped after pushing them, the following
+	 * ones are kept open. The messages received from the processor are logged, as they are.
+	 */
+	private static int startSubscriptionServer(Vertx vertx, int events, List<String> log) throws Exception {
+		AtomicInteger connections = new AtomicInteger();
+		AtomicInteger pushed = new AtomicInteger();
+		CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+		vertx.createHttpServer(new HttpServerOptions().setWebsocketSubProtocols(ConsumeGraphQLSubscription.SUB_PROTOCOL))
+				.websocketHandler(webSocket -> {
+					int connection = connections.incrementAndGet();
+					webSocket.textMessageHandler(text -> {
+						JsonObject message = new JsonObject(text);
+						log.add(text);
+						if (message.getString("type").equals("connection_init")) {
+							webSocket.writeTextMessage(new JsonObject().put("type", "connection_ack").encode());
+							webSocket.writeTextMessage(new JsonObject().put("type", "ka").encode());
+						}
+						else if (message.getString("type").equals("start")) {
+							for (int i = 0; i < events; i++) {
+								JsonObject data = new JsonObject().put("orderCreated", new JsonObject().put("id", pushed.getAndIncrement()));
+								webSocket.writeTextMessage(new JsonObject().put("id", message.getString("id")).put("type", "data")
+										.put("payload", new JsonObject().put("data", data)).encode());
+							}
+							if (connection == 1) {
+								webSocket.close();
+							}
+						}
+					});
+				})
+				.listen(0, result -> listening.complete(result.result()));
+		return listening.get().actualPort();
+	}
+	
+	/**
+	 * Test of a subscription against a local stand-in for NileDB Core, which drops the first connection, so that the
+	 * processor subscribes again.
+	 */
+	@org.junit.Test
+	public void testSubscription() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			List<String> log = new CopyOnWriteArrayList<>();
+			TestRunner runner = TestRunners.newTestRunner(new ConsumeGraphQLSubscription());
+			runner.setProperty(ConsumeGraphQLSubscription.ENDPOINT, "ws://localhost:" + startSubscriptionServer(vertx, 3, log) + "/graphql");
+			runner.setProperty(ConsumeGraphQLSubscription.QUERY, "subscription ($status: String) { orderCreated(status: $status) { id } }");
+			runner.setProperty(ConsumeGraphQLSubscription.VARIABLES, "{\"status\": \"paid\"}");
+			runner.setProperty(ConsumeGraphQLSubscription.CONNECTION_PARAMS, "{\"token\": \"secret\"}");
+			runner.setProperty(ConsumeGraphQLSubscription.RECONNECT_BACKOFF, "10 ms");
+			runner.setProperty(ConsumeGraphQLSubscription.BATCH_SIZE, "2");
+			runner.assertValid();
+			
+			runner.run(1, false, true);
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (countEvents(runner) < 6 && System.nanoTime() - deadline < 0) {
+				runner.run(1, false, false);
+			}
+			runner.run(1, true, false);
+			
+			assertEquals(6, countEvents(runner));
+			StringBuilder content = new StringBuilder();
+			for (MockFlowFile result : runner.getFlowFilesForRelationship(ConsumeGraphQLSubscription.SUCCESS)) {
+				assertTrue(Integer.parseInt(result.getAttribute(ConsumeGraphQLSubscription.EVENT_COUNT_ATTRIBUTE)) <= 2);
+				content.append(new String(result.toByteArray(), "UTF-8")).append('\n');
+			}
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 6; i++) {
+				expected.append("{\"data\":{\"orderCreated\":{\"id\":").append(i).append("}}}\n");
+			}
+			assertEquals(expected.toString(), content.toString());
+			
+			assertEquals(1, runner.getCounterValue("ConsumeGraphQLSubscription reconnections").longValue());
+			assertEquals(6, runner.getCounterValue("ConsumeGraphQLSubscription events").longValue());
+			
+			// Subscribed twice, and stopped politely. The last messages may still be on their way
+			deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (log.size() < 6 && System.nanoTime() - deadline < 0) {
+				Thread.sleep(10);
+			}
+			List<String> types = new ArrayList<>();
+			for (String text : log) {
+				JsonObject message = new JsonObject(text);
+				types.add(message.getString("type"));
+				if (message.getString("type").equals("connection_init")) {
+					assertEquals("secret", message.getJsonObject("payload").getString("token"));
+				}
+				else if (message.getString("type").equals("start")) {
+					JsonObject payload = message.getJsonObject("payload");
+					assertEquals("subscription ($status: String) { orderCreated(status: $status) { id } }", payload.getString("query"));
+					assertEquals("paid", payload.getJsonObject("variables").getString("status"));
+				}
+			}
+			assertEquals(Arrays.asList("connection_init", "start", "connection_init", "start", "stop", "connection_terminate"), types);
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	private static int countEvents(TestRunner runner) {
+		int events = 0;
+		for (MockFlowFile result : runner.getFlowFilesForRelationship(ConsumeGraphQLSubscription.SUCCESS)) {
+			events += Integer.parseInt(result.getAttribute(ConsumeGraphQLSubscription.EVENT_COUNT_ATTRIBUTE));
+		}
+		return events;
+	}
+	
+	/**
+	 * Test of the validation of the JSON properties.
+	 */
+	@org.junit.Test
+	public void testValidation() {
+		TestRunner runner = TestRunners.newTestRunner(new ConsumeGraphQLSubscription());
+		runner.setProperty(ConsumeGraphQLSubscription.QUERY, "subscription { orderCreated { id } }");
+		runner.assertValid();
+		runner.setProperty(ConsumeGraphQLSubscription.VARIABLES, "[1, 2]");
+		runner.assertNotValid();
+		runner.setProperty(ConsumeGraphQLSubscription.VARIABLES, "{\"status\": \"paid\"}");
+		runner.assertValid();
+		runner.setProperty(ConsumeGraphQLSubscription.CONNECTION_PARAMS, "token");
+		runner.assertNotValid();
+	}
+}
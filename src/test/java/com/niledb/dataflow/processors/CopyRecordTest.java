@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import static org.junit.Assert.*;
+
+public class CopyRecordTest {
+
+	private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("name", RecordFieldType.STRING.getDataType()),
+			new RecordField("age", RecordFieldType.INT.getDataType())));
+
+	/**
+	 * Reads the records given to the factory, whatever the content is.
+	 */
+	private static class ListRecordReader extends AbstractControllerService implements RecordReaderFactory {
+		final List<Record> records = new ArrayList<>();
+
+		@Override
+		public RecordReader createRecordReader(Map<String, String> variables, InputStream in, ComponentLog logger) {
+			Iterator<Record> iterator = records.iterator();
+			return new RecordReader() {
+				@Override
+				public Record nextRecord(boolean coerceTypes, boolean dropUnknownFields) {
+					return iterator.hasNext() ? iterator.next() : null;
+				}
+
+				@Override
+				public RecordSchema getSchema() {
+					return SCHEMA;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * Test of the binary COPY format, with a null value and a string converted to an integer column.
+	 */
+	@org.junit.Test
+	public void testBinaryEncoding() throws Exception {
+		PgCopyEncoder encoder = new PgCopyEncoder(Arrays.asList("name", "age"), Arrays.asList("text", "integer"));
+		assertTrue(encoder.isBinary());
+		assertEquals("(FORMAT binary)", encoder.getOptions());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		encoder.writeHeader(out);
+		encoder.writeRow(out, new Object[] { "ana", "42" });
+		encoder.writeRow(out, new Object[] { null, 7 });
+		encoder.writeTrailer(out);
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		byte[] signature = new byte[11];
+		buffer.get(signature);
+		assertArrayEquals(new byte[] { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 }, signature);
+		assertEquals(0, buffer.getInt());
+		assertEquals(0, buffer.getInt());
+
+		assertEquals(2, buffer.getShort());
+		assertEquals(3, buffer.getInt());
+		byte[] name = new byte[3];
+		buffer.get(name);
+		assertEquals("ana", new String(name, StandardCharsets.UTF_8));
+		assertEquals(4, buffer.getInt());
+		assertEquals(42, buffer.getInt());
+
+		assertEquals(2, buffer.getShort());
+		assertEquals(-1, buffer.getInt());
+		assertEquals(4, buffer.getInt());
+		assertEquals(7, buffer.getInt());
+
+		assertEquals(-1, buffer.getShort());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	/**
+	 * Test of the CSV fallback for column types without a binary encoding, with nulls, empty strings and quotes.
+	 */
+	@org.junit.Test
+	public void testCsvEncoding() throws Exception {
+		PgCopyEncoder encoder = new PgCopyEncoder(Arrays.asList("name", "price", "tags"), Arrays.asList("text", "numeric", "text[]"));
+		assertFalse(encoder.isBinary());
+		assertEquals("(FORMAT csv)", encoder.getOptions());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		encoder.writeHeader(out);
+		encoder.writeRow(out, new Object[] { "say \"hi\"", 9.5, new Object[] { "a", null } });
+		encoder.writeRow(out, new Object[] { "", null, null });
+		encoder.writeTrailer(out);
+
+		assertEquals("\"say \"\"hi\"\"\",\"9.5\",\"{\"\"a\"\",NULL}\"\n\"\",,\n", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test of a database that can't be reached, which keeps the FlowFiles in the queue, penalized, instead of failing them.
+	 */
+	@org.junit.Test
+	public void testFailure() throws Exception {
+		TestRunner runner = TestRunners.newTestRunner(new CopyRecord());
+
+		ListRecordReader reader = new ListRecordReader();
+		HashMap<String, Object> values = new HashMap<>();
+		values.put("name", "customer");
+		values.put("age", 20);
+		reader.records.add(new MapRecord(SCHEMA, values));
+		runner.addControllerService("reader", reader);
+		runner.enableControllerService(reader);
+
+		runner.setProperty(LogicalDecoding.DB_HOST, "localhost");
+		runner.setProperty(LogicalDecoding.DB_PORT, "1");
+		runner.setProperty(LogicalDecoding.DB_USERNAME, "postgres");
+		runner.setProperty(LogicalDecoding.DB_PASSWORD, "postgres");
+		runner.setProperty(GraphQLRecord.RECORD_READER, "reader");
+		runner.setProperty(CopyRecord.TABLE_NAME, "customers");
+
+		runner.enqueue("");
+		runner.run();
+
+		runner.assertTransferCount(CopyRecord.FAILURE, 0);
+		runner.assertTransferCount(CopyRecord.SUCCESS, 0);
+		assertEquals(1, runner.getQueueSize().getObjectCount());
+	}
+
+	/**
+	 * Test of the failures taken for the loss of the connection, wrapped or not, and of the ones of the records.
+	 */
+	@org.junit.Test
+	public void testConnectionFailure() {
+		assertTrue(CopyRecord.isConnectionFailure(new SQLException("Connection refused", "08001")));
+		assertTrue(CopyRecord.isConnectionFailure(new ProcessException(new IOException(new SQLException("I/O error", "08006")))));
+		assertTrue(CopyRecord.isConnectionFailure(new SQLException("terminating connection due to administrator command", "57P01")));
+		assertFalse(CopyRecord.isConnectionFailure(new SQLException("null value in column \"name\"", "23502")));
+		assertFalse(CopyRecord.isConnectionFailure(new IOException(new SQLException("No state"))));
+		assertFalse(CopyRecord.isConnectionFailure(new IllegalArgumentException("Bad record")));
+	}
+}
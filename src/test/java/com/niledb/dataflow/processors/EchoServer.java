@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Local stand-in for NileDB Core, shared by the tests and benchmarks of the GraphQL processors. It echoes the "name"
+ * variable of every operation of single, array and aliased requests, whose operations are told by the prefix of
+ * their variables.
+ */
+final class EchoServer {
+
+	private EchoServer() {
+	}
+
+	/**
+	 * @return the port the server listens to
+	 */
+	static int start(Vertx vertx) throws Exception {
+		return start(vertx, new AtomicInteger());
+	}
+
+	/**
+	 * @param requestCount incremented for every request received
+	 * @return the port the server listens to
+	 */
+	static int start(Vertx vertx, AtomicInteger requestCount) throws Exception {
+		CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+		vertx.createHttpServer()
+				.requestHandler(request -> request.bodyHandler(body -> {
+					requestCount.incrementAndGet();
+					String response;
+					if (body.getByte(0) == '[') {
+						JsonArray responses = new JsonArray();
+						for (Object single : body.toJsonArray()) {
+							responses.add(echo((JsonObject) single));
+						}
+						response = responses.encode();
+					}
+					else {
+						response = echo(body.toJsonObject()).encode();
+					}
+					request.response()
+							.putHeader("Content-Type", "application/json")
+							.end(response);
+				}))
+				.listen(0, result -> listening.complete(result.result()));
+		return listening.get().actualPort();
+	}
+
+	/**
+	 * @return the response to a single request, with an "echo" field per operation
+	 */
+	static JsonObject echo(JsonObject request) {
+		JsonObject data = new JsonObject();
+		for (Map.Entry<String, Object> variable : request.getJsonObject("variables")) {
+			if (variable.getKey().endsWith("name")) {
+				String prefix = variable.getKey().substring(0, variable.getKey().length() - "name".length());
+				data.put(prefix + "echo", variable.getValue());
+			}
+		}
+		return new JsonObject().put("data", data);
+	}
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.processors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+public class GraphQLRecordTest {
+
+	private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("name", RecordFieldType.STRING.getDataType()),
+			new RecordField("age", RecordFieldType.INT.getDataType())));
+
+	/**
+	 * Reads the records given to the factory, whatever the content is.
+	 */
+	private static class ListRecordReader extends AbstractControllerService implements RecordReaderFactory {
+		final List<Record> records = new ArrayList<>();
+
+		@Override
+		public RecordReader createRecordReader(Map<String, String> variables, InputStream in, ComponentLog logger) {
+			Iterator<Record> iterator = records.iterator();
+			return new RecordReader() {
+				@Override
+				public Record nextRecord(boolean coerceTypes, boolean dropUnknownFields) {
+					return iterator.hasNext() ? iterator.next() : null;
+				}
+
+				@Override
+				public RecordSchema getSchema() {
+					return SCHEMA;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * Writes every record as a JSON line.
+	 */
+	private static class JsonLinesRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+		@Override
+		public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+			return readSchema;
+		}
+
+		@Override
+		public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out) {
+			return new RecordSetWriter() {
+				int count = 0;
+
+				@Override
+				public WriteResult write(Record record) throws IOException {
+					JsonObject line = new JsonObject();
+					for (String fieldName : schema.getFieldNames()) {
+						line.put(fieldName, record.getValue(fieldName));
+					}
+					out.write((line.encode() + "\n").getBytes(StandardCharsets.UTF_8));
+					count++;
+					return WriteResult.of(1, new HashMap<>());
+				}
+
+				@Override
+				public WriteResult write(RecordSet recordSet) throws IOException {
+					Record record;
+					while ((record = recordSet.next()) != null) {
+						write(record);
+					}
+					return WriteResult.of(count, new HashMap<>());
+				}
+
+				@Override
+				public void beginRecordSet() {
+				}
+
+				@Override
+				public WriteResult finishRecordSet() {
+					return WriteResult.of(count, new HashMap<>());
+				}
+
+				@Override
+				public String getMimeType() {
+					return "application/json";
+				}
+
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	private static TestRunner createRunner(Vertx vertx, int records) throws Exception {
+		TestRunner runner = TestRunners.newTestRunner(new GraphQLRecord());
+
+		ListRecordReader reader = new ListRecordReader();
+		for (int i = 0; i < records; i++) {
+			HashMap<String, Object> values = new HashMap<>();
+			values.put("name", "customer" + i);
+			values.put("age", 20 + i);
+			reader.records.add(new MapRecord(SCHEMA, values));
+		}
+		runner.addControllerService("reader", reader);
+		runner.enableControllerService(reader);
+		JsonLinesRecordWriter writer = new JsonLinesRecordWriter();
+		runner.addControllerService("writer", writer);
+		runner.enableControllerService(writer);
+
+		runner.setProperty(GraphQLRecord.RECORD_READER, "reader");
+		runner.setProperty(GraphQLRecord.RECORD_WRITER, "writer");
+		runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + EchoServer.start(vertx) + "/graphql");
+		runner.setProperty(GraphQL.QUERY, "query ($name: String, $age: Int) { echo(name: $name, age: $age) }");
+		return runner;
+	}
+
+	/**
+	 * Test of records sent in aliased batches, with a last batch smaller than the batch size.
+	 */
+	@org.junit.Test
+	public void testAliasedBatches() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = createRunner(vertx, 5);
+			runner.setProperty(GraphQLRecord.BATCH_SIZE, "2");
+			runner.enqueue("");
+			runner.run();
+
+			runner.assertTransferCount(GraphQLRecord.SUCCESS, 1);
+			runner.assertTransferCount(GraphQLRecord.ORIGINAL, 1);
+			MockFlowFile result = runner.getFlowFilesForRelationship(GraphQLRecord.SUCCESS).get(0);
+			result.assertAttributeEquals(GraphQL.RECORD_COUNT_ATTRIBUTE, "5");
+			result.assertAttributeEquals(GraphQLRecord.ERROR_COUNT_ATTRIBUTE, "0");
+
+			String[] lines = new String(result.toByteArray(), StandardCharsets.UTF_8).split("\n");
+			assertEquals(5, lines.length);
+			for (int i = 0; i < lines.length; i++) {
+				JsonObject line = new JsonObject(lines[i]);
+				assertEquals("customer" + i, line.getString("name"));
+				assertEquals(20 + i, line.getInteger("age").intValue());
+				assertEquals("customer" + i, new JsonObject(line.getString("response")).getJsonObject("data").getString("echo"));
+			}
+		}
+		finally {
+			vertx.close();
+		}
+	}
+
+	/**
+	 * Test of records sent in array batches, with a subset of the fields as variables.
+	 */
+	@org.junit.Test
+	public void testArrayBatches() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = createRunner(vertx, 3);
+			runner.setProperty(GraphQLRecord.BATCH_SIZE, "2");
+			runner.setProperty(GraphQL.BATCH_MODE, GraphQL.BATCH_MODE_ARRAY.getValue());
+			runner.setProperty(GraphQLRecord.FIELD_NAMES, "name");
+			runner.setProperty(GraphQLRecord.RESPONSE_FIELD_NAME, "graphql");
+			runner.enqueue("");
+			runner.run();
+
+			runner.assertTransferCount(GraphQLRecord.SUCCESS, 1);
+			MockFlowFile result = runner.getFlowFilesForRelationship(GraphQLRecord.SUCCESS).get(0);
+			String[] lines = new String(result.toByteArray(), StandardCharsets.UTF_8).split("\n");
+			assertEquals(3, lines.length);
+			assertEquals("{\"data\":{\"echo\":\"customer2\"}}", new JsonObject(lines[2]).getString("graphql"));
+		}
+		finally {
+			vertx.close();
+		}
+	}
+
+	/**
+	 * Test of a GraphQL service that can't be reached, which is a transient failure.
+	 */
+	@org.junit.Test
+	public void testFailure() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = createRunner(vertx, 1);
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:1/graphql");
+			runner.enqueue("");
+			runner.run();
+
+			runner.assertAllFlowFilesTransferred(GraphQLRecord.RETRY, 1);
+			assertTrue(runner.getFlowFilesForRelationship(GraphQLRecord.RETRY).get(0).isPenalized());
+		}
+		finally {
+			vertx.close();
+		}
+	}
+
+	/**
+	 * Local stand-in for NileDB Core answering the n-th request with the n-th reply: "echo" echoes it, a number is
+	 * an HTTP status without body, and anything else is an HTML page with status 200. Further requests are echoed.
+	 */
+	private static int startScriptedServer(Vertx vertx, String... replies) throws Exception {
+		AtomicInteger requests = new AtomicInteger();
+		CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+		vertx.createHttpServer()
+				.requestHandler(request -> request.bodyHandler(body -> {
+					int index = requests.getAndIncrement();
+					String reply = index < replies.length ? replies[index] : "echo";
+					if (reply.equals("echo")) {
+						request.response().putHeader("Content-Type", "application/json").end(EchoServer.echo(body.toJsonObject()).encode());
+					}
+					else if (Character.isDigit(reply.charAt(0))) {
+						request.response().setStatusCode(Integer.parseInt(reply)).end();
+					}
+					else {
+						request.response().putHeader("Content-Type", "text/html").end(reply);
+					}
+				}))
+				.listen(0, result -> listening.complete(result.result()));
+		return listening.get().actualPort();
+	}
+
+	/**
+	 * Test of the HTTP status of the responses: throttling after a first batch routes the FlowFile to RETRY, while
+	 * rejected requests and responses that aren't JSON route it to FAILURE.
+	 */
+	@org.junit.Test
+	public void testStatus() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = createRunner(vertx, 3);
+			runner.setProperty(GraphQLRecord.BATCH_SIZE, "2");
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + startScriptedServer(vertx, "echo", "503") + "/graphql");
+			runner.enqueue("");
+			runner.run();
+
+			runner.assertAllFlowFilesTransferred(GraphQLRecord.RETRY, 1);
+			MockFlowFile retry = runner.getFlowFilesForRelationship(GraphQLRecord.RETRY).get(0);
+			retry.assertAttributeEquals(GraphQL.STATUS_CODE_ATTRIBUTE, "503");
+			assertTrue(retry.isPenalized());
+
+			for (String reply : Arrays.asList("400", "<html><body>Bad gateway</body></html>")) {
+				runner = createRunner(vertx, 1);
+				runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + startScriptedServer(vertx, reply) + "/graphql");
+				runner.enqueue("");
+				runner.run();
+
+				runner.assertAllFlowFilesTransferred(GraphQLRecord.FAILURE, 1);
+				assertNotNull(runner.getFlowFilesForRelationship(GraphQLRecord.FAILURE).get(0).getAttribute(GraphQL.ERROR_ATTRIBUTE));
+			}
+		}
+		finally {
+			vertx.close();
+		}
+	}
+}
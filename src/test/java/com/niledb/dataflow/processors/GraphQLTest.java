@@ -15,16 +15,40 @@
  */
 package com.niledb.dataflow.processors;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-//import java.util.List;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
-//import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 
-//import static org.junit.Assert.*;
+import com.niledb.dataflow.services.StandardGraphQLClientService;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.*;
 
 public class GraphQLTest {
 	
@@ -76,4 +100,556 @@ public class GraphQLTest {
 		assertEquals(result.getAttribute("result"), "{\"data\":{\"addressList\":[{\"addressLine1\":\"Calle Montmartre, 123\"}]}}");
 		*/
 	}
+	
+	/**
+	 * Test of aliased batching, merging two mutations and splitting the response back.
+	 */
+	@org.junit.Test
+	public void testAliasedBatch() {
+		List<String> queries = Arrays.asList(
+				"mutation create($name: String!) { Products_CategoryCreate(entity: { name: $name url: \"a {b}\" }) { id } }",
+				"mutation { category: Products_CategoryCreate(entity: { name: \"Música\" url: \"\" }) { id } }");
+		assertEquals("mutation ($b0_name: String! ) {\n"
+				+ " b0_Products_CategoryCreate: Products_CategoryCreate(entity: { name: $b0_name url: \"a {b}\" }) { id } \n"
+				+ " b1_category: Products_CategoryCreate(entity: { name: \"Música\" url: \"\" }) { id } \n"
+				+ "}", GraphQLBatch.mergeQuery(queries));
+		
+		// Copies of the same query, with their variables renamed as the template writes them
+		GraphQLRequestTemplate template = GraphQLRequestTemplate.compile("name", queries.get(0));
+		assertEquals("mutation ($b0_name: String! $b1_name: String! ) {\n"
+				+ " b0_Products_CategoryCreate: Products_CategoryCreate(entity: { name: $b0_name url: \"a {b}\" }) { id } \n"
+				+ " b1_Products_CategoryCreate: Products_CategoryCreate(entity: { name: $b1_name url: \"a {b}\" }) { id } \n"
+				+ "}", template.getMergedQuery(2));
+		MockFlowFile flowFile = new MockFlowFile(1);
+		flowFile.putAttributes(Collections.singletonMap("name", "Books"));
+		JsonBuffer variables = new JsonBuffer(16);
+		template.writeVariables(variables, GraphQLBatch.prefix(1), flowFile);
+		assertEquals("\"b1_name\":\"Books\"", new String(variables.toByteArray(), StandardCharsets.UTF_8));
+		
+		JsonObject response = new JsonObject("{\"data\":{\"b0_Products_CategoryCreate\":{\"id\":1},\"b1_category\":null},"
+				+ "\"errors\":[{\"message\":\"Duplicated\",\"path\":[\"b1_category\"]}]}");
+		List<JsonObject> responses = GraphQLBatch.split(response, 2);
+		assertEquals("{\"data\":{\"Products_CategoryCreate\":{\"id\":1}}}", responses.get(0).encode());
+		assertEquals("{\"data\":{\"category\":null},\"errors\":[{\"message\":\"Duplicated\",\"path\":[\"category\"]}]}", responses.get(1).encode());
+	}
+	
+	/**
+	 * Test of the compiled request template, with typed variables.
+	 */
+	@org.junit.Test
+	public void testRequestTemplate() {
+		GraphQLRequestTemplate template = GraphQLRequestTemplate.compile("name, age:number, active:boolean, address:json, missing", "mutation { x }");
+		MockFlowFile flowFile = new MockFlowFile(1);
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		attributes.put("name", "Jos\u00e9 \"Pepe\"\n");
+		attributes.put("age", "-1.5e3");
+		attributes.put("active", "TRUE");
+		attributes.put("address", "{\"city\":\"Madrid\"}");
+		flowFile.putAttributes(attributes);
+		
+		JsonBuffer buffer = new JsonBuffer(8);
+		template.writeRequest(buffer, null, flowFile);
+		String encoded = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+		JsonObject request = new JsonObject(encoded);
+		assertEquals("mutation { x }", request.getString("query"));
+		assertEquals("{\"name\":\"Jos\u00e9 \\\"Pepe\\\"\\n\",\"age\":-1.5e3,\"active\":true,\"address\":{\"city\":\"Madrid\"},\"missing\":null}",
+				encoded.substring("{\"query\":\"mutation { x }\",\"variables\":".length(), encoded.length() - 1));
+		assertEquals(-1500.0, request.getJsonObject("variables").getDouble("age"), 0.0);
+		
+		// JSON values are copied through a parser, so they can't break the request nor add members to it
+		attributes.put("address", " {\"city\": [\"Madrid\", null]} ");
+		flowFile.putAttributes(attributes);
+		buffer.reset();
+		template.writeRequest(buffer, null, flowFile);
+		assertEquals("{\"city\":[\"Madrid\",null]}", new JsonObject(new String(buffer.toByteArray(), StandardCharsets.UTF_8))
+				.getJsonObject("variables").getJsonObject("address").encode());
+		for (String invalid : Arrays.asList("{}},\"query\":\"mutation { y }\",\"x\":{", "{\"city\":", "Madrid", "")) {
+			attributes.put("address", invalid);
+			flowFile.putAttributes(attributes);
+			try {
+				template.writeRequest(buffer, null, flowFile);
+				fail("Invalid JSON accepted: " + invalid);
+			}
+			catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage().startsWith("Variable address is not"));
+			}
+		}
+		
+		assertFalse(GraphQLRequestTemplate.isNumber("01"));
+		assertFalse(GraphQLRequestTemplate.isNumber("1."));
+		assertNotNull(GraphQLRequestTemplate.validate("age:integer"));
+	}
+	
+	/**
+	 * Starts a stand-in for an overloaded NileDB Core: "bad" names are rejected with HTTP 400, "busy" ones are always
+	 * throttled with HTTP 503, and the others are throttled with HTTP 429 once before being echoed.
+	 */
+	private static int startUnreliableServer(Vertx vertx, Map<String, AtomicInteger> attempts) throws Exception {
+		CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+		vertx.createHttpServer()
+				.requestHandler(request -> request.bodyHandler(body -> {
+					JsonObject single = body.toJsonObject();
+					String name = single.getJsonObject("variables").getString("name");
+					int attempt = attempts.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+					if (name.startsWith("bad")) {
+						request.response().setStatusCode(400).end("{\"errors\":[{\"message\":\"Bad request\"}]}");
+					}
+					else if (name.startsWith("busy") || attempt == 1) {
+						request.response()
+								.setStatusCode(name.startsWith("busy") ? 503 : 429)
+								.putHeader("Retry-After", "0")
+								.end();
+					}
+					else {
+						request.response()
+								.putHeader("Content-Type", "application/json")
+								.end(EchoServer.echo(single).encode());
+					}
+				}))
+				.listen(0, result -> listening.complete(result.result()));
+		return listening.get().actualPort();
+	}
+	
+	/**
+	 * Starts a stand-in for NileDB Core with automatic persisted queries: operations with an unknown hash are rejected,
+	 * and those with their text are registered. Requests are logged as "hash" or "query", followed by their content
+	 * encoding and by whether they accept gzipped responses, which are always gzipped.
+	 */
+	private static int startPersistedQueryServer(Vertx vertx, List<String> log) throws Exception {
+		Set<String> registered = ConcurrentHashMap.newKeySet();
+		CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+		vertx.createHttpServer(new HttpServerOptions().setCompressionSupported(true))
+				.requestHandler(request -> request.bodyHandler(body -> {
+					String contentEncoding = request.getHeader("Content-Encoding");
+					String acceptEncoding = request.getHeader("Accept-Encoding");
+					if ("gzip".equals(contentEncoding)) {
+						try (Scanner scanner = new Scanner(new GZIPInputStream(new ByteArrayInputStream(body.getBytes())), "UTF-8")) {
+							body = Buffer.buffer(scanner.useDelimiter("\\A").next());
+						}
+						catch (IOException e) {
+							request.response().setStatusCode(400).end();
+							return;
+						}
+					}
+					JsonObject single = body.toJsonObject();
+					String query = single.getString("query");
+					String hash = single.getJsonObject("extensions").getJsonObject("persistedQuery").getString("sha256Hash");
+					log.add((query == null ? "hash" : "query") + " " + contentEncoding + " " + (acceptEncoding != null && acceptEncoding.contains("gzip")));
+					String response;
+					if (query != null && !PersistedQueries.hash(query).equals(hash)) {
+						request.response().setStatusCode(400).end("{\"errors\":[{\"message\":\"provided sha does not match query\"}]}");
+						return;
+					}
+					else if (query != null) {
+						registered.add(hash);
+						response = EchoServer.echo(single).encode();
+					}
+					else if (registered.contains(hash)) {
+						response = EchoServer.echo(single).encode();
+					}
+					else {
+						response = "{\"errors\":[{\"message\":\"PersistedQueryNotFound\",\"extensions\":{\"code\":\"PERSISTED_QUERY_NOT_FOUND\"}}]}";
+					}
+					request.response()
+							.putHeader("Content-Type", "application/json")
+							.end(response);
+				}))
+				.listen(0, result -> listening.complete(result.result()));
+		return listening.get().actualPort();
+	}
+	
+	/**
+	 * Test of asynchronous mode against a local stand-in for NileDB Core.
+	 */
+	@org.junit.Test
+	public void testAsynchronous() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + EchoServer.start(vertx) + "/graphql");
+			runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+			runner.setProperty(GraphQL.EXECUTION_MODE, GraphQL.EXECUTION_MODE_ASYNCHRONOUS.getValue());
+			runner.setProperty(GraphQL.MAX_IN_FLIGHT_REQUESTS, "4");
+			
+			for (int i = 0; i < 50; i++) {
+				HashMap<String, String> attributes = new HashMap<String, String>();
+				attributes.put("name", "customer" + i);
+				runner.enqueue("{}", attributes);
+			}
+			runner.run();
+			
+			runner.assertQueueEmpty();
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 50);
+			for (MockFlowFile result : runner.getFlowFilesForRelationship(GraphQL.SUCCESS)) {
+				assertEquals("{\"data\":{\"echo\":\"" + result.getAttribute("name") + "\"}}", result.getAttribute("response"));
+			}
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of asynchronous mode following the timeouts of the HTTP client service, against a server that never answers.
+	 */
+	@org.junit.Test
+	public void testAsynchronousClientServiceTimeout() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+			vertx.createHttpServer()
+					.requestHandler(request -> { })
+					.listen(0, result -> listening.complete(result.result()));
+			
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			StandardGraphQLClientService clientService = new StandardGraphQLClientService();
+			runner.addControllerService("client", clientService);
+			runner.setProperty(clientService, StandardGraphQLClientService.SOCKET_TIMEOUT, "300 millis");
+			runner.enableControllerService(clientService);
+			runner.setProperty(GraphQL.HTTP_CLIENT_SERVICE, "client");
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + listening.get().actualPort() + "/graphql");
+			runner.setProperty(GraphQL.QUERY, "{ __typename }");
+			runner.setProperty(GraphQL.EXECUTION_MODE, GraphQL.EXECUTION_MODE_ASYNCHRONOUS.getValue());
+			runner.setProperty(GraphQL.MAX_RETRIES, "0");
+			
+			runner.enqueue("{}");
+			long start = System.nanoTime();
+			runner.run();
+			
+			// Instead of the default socket timeout, 30 seconds
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+			runner.assertAllFlowFilesTransferred(GraphQL.RETRY, 1);
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of streaming the response into the content, extracting a single value into an attribute.
+	 */
+	@org.junit.Test
+	public void testResponseToContent() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + EchoServer.start(vertx) + "/graphql");
+			runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+			runner.setProperty(GraphQL.RESPONSE_DESTINATION, GraphQL.RESPONSE_DESTINATION_CONTENT.getValue());
+			runner.setProperty("echoed", "$.data.echo");
+			
+			HashMap<String, String> attributes = new HashMap<String, String>();
+			attributes.put("name", "Gucci");
+			runner.enqueue("{}", attributes);
+			runner.run();
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 1);
+			MockFlowFile result = runner.getFlowFilesForRelationship(GraphQL.SUCCESS).get(0);
+			result.assertContentEquals("{\"data\":{\"echo\":\"Gucci\"}}");
+			result.assertAttributeEquals("echoed", "Gucci");
+			result.assertAttributeNotExists("response");
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of variables read from newline delimited JSON content, sent in array batches.
+	 */
+	@org.junit.Test
+	public void testContentVariables() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + EchoServer.start(vertx) + "/graphql");
+			runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.VARIABLES_SOURCE, GraphQL.VARIABLES_SOURCE_CONTENT.getValue());
+			runner.setProperty(GraphQL.RESPONSE_DESTINATION, GraphQL.RESPONSE_DESTINATION_CONTENT.getValue());
+			runner.setProperty(GraphQL.BATCH_SIZE, "2");
+			runner.setProperty(GraphQL.BATCH_MODE, GraphQL.BATCH_MODE_ARRAY.getValue());
+			
+			runner.enqueue("{\"name\":\"Gucci\"}\n{\"name\":\"Prada\"}\n{\"name\":\"Armani\"}\n");
+			runner.enqueue("{\"name\":\"Gucci\"}");
+			runner.run(2);
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 2);
+			List<MockFlowFile> results = runner.getFlowFilesForRelationship(GraphQL.SUCCESS);
+			results.get(0).assertContentEquals("[{\"data\":{\"echo\":\"Gucci\"}},{\"data\":{\"echo\":\"Prada\"}},{\"data\":{\"echo\":\"Armani\"}}]");
+			results.get(0).assertAttributeEquals(GraphQL.RECORD_COUNT_ATTRIBUTE, "3");
+			results.get(1).assertContentEquals("{\"data\":{\"echo\":\"Gucci\"}}");
+			results.get(1).assertAttributeEquals(GraphQL.RECORD_COUNT_ATTRIBUTE, "1");
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of the response cache: repeated queries are answered from the cache, mutations always reach the service.
+	 */
+	@org.junit.Test
+	public void testResponseCache() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			AtomicInteger requestCount = new AtomicInteger();
+			String endpoint = "http://localhost:" + EchoServer.start(vertx, requestCount) + "/graphql";
+			
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, endpoint);
+			runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+			runner.setProperty(GraphQL.CACHE_SIZE, "10");
+			
+			for (String name : Arrays.asList("Gucci", "Prada", "Gucci", "Gucci")) {
+				HashMap<String, String> attributes = new HashMap<String, String>();
+				attributes.put("name", name);
+				runner.enqueue("{}", attributes);
+			}
+			runner.run(4);
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 4);
+			runner.getFlowFilesForRelationship(GraphQL.SUCCESS).get(3).assertAttributeEquals("response", "{\"data\":{\"echo\":\"Gucci\"}}");
+			assertEquals(2, requestCount.get());
+			assertEquals(2, runner.getCounterValue("GraphQL cache hits").longValue());
+			assertEquals(2, runner.getCounterValue("GraphQL cache misses").longValue());
+			
+			runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, endpoint);
+			runner.setProperty(GraphQL.QUERY, "mutation ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+			runner.setProperty(GraphQL.CACHE_SIZE, "10");
+			
+			for (int i = 0; i < 2; i++) {
+				HashMap<String, String> attributes = new HashMap<String, String>();
+				attributes.put("name", "Gucci");
+				runner.enqueue("{}", attributes);
+			}
+			runner.run(2);
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 2);
+			assertEquals(4, requestCount.get());
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of the request metrics, as NiFi counters and from the Prometheus endpoint.
+	 */
+	@org.junit.Test
+	public void testMetrics() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			int metricsPort;
+			try (ServerSocket socket = new ServerSocket(0)) {
+				metricsPort = socket.getLocalPort();
+			}
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + EchoServer.start(vertx) + "/graphql");
+			runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+			runner.setProperty(MetricsEndpoint.PORT, String.valueOf(metricsPort));
+			
+			for (int i = 0; i < 3; i++) {
+				HashMap<String, String> attributes = new HashMap<String, String>();
+				attributes.put("name", "customer" + i);
+				runner.enqueue("{}", attributes);
+			}
+			runner.run(3, false);
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 3);
+			assertEquals(3, runner.getCounterValue("GraphQL requests").longValue());
+			assertEquals(3, runner.getCounterValue("GraphQL request milliseconds count").longValue());
+			assertNull(runner.getCounterValue("GraphQL errors"));
+			
+			String metrics;
+			try (Scanner scanner = new Scanner(new URL("http://localhost:" + metricsPort + "/metrics").openStream(), StandardCharsets.UTF_8.name())) {
+				metrics = scanner.useDelimiter("\\A").next();
+			}
+			assertTrue(metrics.contains("# TYPE niledb_graphql_requests_total counter\n"));
+			assertTrue(metrics.contains("niledb_graphql_request_milliseconds_bucket{id=\"" + runner.getProcessor().getIdentifier() + "\",le=\"+Inf\"} 3\n"));
+			assertTrue(metrics.contains("niledb_graphql_in_flight_requests{id=\"" + runner.getProcessor().getIdentifier() + "\"} 0\n"));
+			
+			// Stopping the processor stops the endpoint
+			runner.run(1, true, false);
+			try {
+				new URL("http://localhost:" + metricsPort + "/metrics").openStream().close();
+				fail("Metrics endpoint still running");
+			}
+			catch (IOException e) {
+				// Expected
+			}
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of retries and of the FAILURE and RETRY relationships, in both execution modes: asynchronous requests are
+	 * retried in flight, synchronous ones are routed to RETRY at once.
+	 */
+	@org.junit.Test
+	public void testRetry() throws Exception {
+		assertEquals(120000, GraphQL.parseRetryAfter("120"));
+		assertEquals(-1, GraphQL.parseRetryAfter("soon"));
+		assertEquals(-1, GraphQL.parseRetryAfter(null));
+		
+		Vertx vertx = Vertx.vertx();
+		try {
+			for (AllowableValue executionMode : Arrays.asList(GraphQL.EXECUTION_MODE_SYNCHRONOUS, GraphQL.EXECUTION_MODE_ASYNCHRONOUS)) {
+				Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+				TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+				runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + startUnreliableServer(vertx, attempts) + "/graphql");
+				runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+				runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+				runner.setProperty(GraphQL.EXECUTION_MODE, executionMode.getValue());
+				runner.setProperty(GraphQL.MAX_RETRIES, "2");
+				runner.setProperty(GraphQL.RETRY_BACKOFF, "1 ms");
+				
+				for (String name : Arrays.asList("Gucci", "bad", "busy")) {
+					HashMap<String, String> attributes = new HashMap<String, String>();
+					attributes.put("name", name);
+					runner.enqueue("{}", attributes);
+				}
+				runner.run(3);
+				
+				runner.assertQueueEmpty();
+				boolean asynchronous = executionMode == GraphQL.EXECUTION_MODE_ASYNCHRONOUS;
+				runner.assertTransferCount(GraphQL.SUCCESS, asynchronous ? 1 : 0);
+				if (asynchronous) {
+					runner.getFlowFilesForRelationship(GraphQL.SUCCESS).get(0).assertAttributeEquals("response", "{\"data\":{\"echo\":\"Gucci\"}}");
+				}
+				
+				runner.assertTransferCount(GraphQL.FAILURE, 1);
+				MockFlowFile failure = runner.getFlowFilesForRelationship(GraphQL.FAILURE).get(0);
+				failure.assertAttributeEquals(GraphQL.STATUS_CODE_ATTRIBUTE, "400");
+				assertTrue(failure.getAttribute(GraphQL.ERROR_ATTRIBUTE).startsWith("GraphQL service returned HTTP 400"));
+				
+				runner.assertTransferCount(GraphQL.RETRY, asynchronous ? 1 : 2);
+				List<MockFlowFile> retries = runner.getFlowFilesForRelationship(GraphQL.RETRY);
+				MockFlowFile retry = retries.get(retries.size() - 1);
+				retry.assertAttributeEquals(GraphQL.STATUS_CODE_ATTRIBUTE, "503");
+				assertTrue(retry.isPenalized());
+				if (!asynchronous) {
+					retries.get(0).assertAttributeEquals(GraphQL.STATUS_CODE_ATTRIBUTE, "429");
+					assertTrue(retries.get(0).isPenalized());
+				}
+				
+				assertEquals(asynchronous ? 2 : 1, attempts.get("Gucci").get());
+				assertEquals(1, attempts.get("bad").get());
+				assertEquals(asynchronous ? 3 : 1, attempts.get("busy").get());
+				if (asynchronous) {
+					assertEquals(3, runner.getCounterValue("GraphQL retries").longValue());
+				}
+				assertEquals(asynchronous ? 2 : 3, runner.getCounterValue("GraphQL errors").longValue());
+			}
+			
+			// The failure of a request sent while streaming the content is wrapped by the session
+			Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + startUnreliableServer(vertx, attempts) + "/graphql");
+			runner.setProperty(GraphQL.QUERY, "query ($name: String) { echo(name: $name) }");
+			runner.setProperty(GraphQL.VARIABLES_SOURCE, GraphQL.VARIABLES_SOURCE_CONTENT.getValue());
+			runner.setProperty(GraphQL.RESPONSE_DESTINATION, GraphQL.RESPONSE_DESTINATION_CONTENT.getValue());
+			runner.enqueue("{\"name\":\"busy\"}");
+			runner.run();
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.RETRY, 1);
+			MockFlowFile retry = runner.getFlowFilesForRelationship(GraphQL.RETRY).get(0);
+			retry.assertAttributeEquals(GraphQL.STATUS_CODE_ATTRIBUTE, "503");
+			assertTrue(retry.getAttribute(GraphQL.ERROR_ATTRIBUTE).startsWith("GraphQL service returned HTTP 503"));
+			assertTrue(retry.isPenalized());
+			assertEquals(1, attempts.get("busy").get());
+		}
+		finally {
+			vertx.close();
+		}
+	}
+	
+	/**
+	 * Test of automatic persisted queries and compression, in both execution modes and streaming the response into
+	 * the content.
+	 */
+	@org.junit.Test
+	public void testPersistedQueries() throws Exception {
+		assertEquals("7f56e67dd21ab3f30d1ff8b7bed08893f0a0db86449836189b361dd1e56ddb4b", PersistedQueries.hash("{ __typename }"));
+		
+		PersistedQueries persistedQueries = new PersistedQueries();
+		GraphQLRequestTemplate template = GraphQLRequestTemplate.compile("name", "{ __typename }", persistedQueries);
+		MockFlowFile flowFile = new MockFlowFile(1);
+		flowFile.putAttributes(Collections.singletonMap("name", "Gucci"));
+		JsonBuffer hashed = new JsonBuffer();
+		template.writeRequest(hashed, null, flowFile);
+		assertEquals("{\"extensions\":{\"persistedQuery\":{\"version\":1,\"sha256Hash\":\"7f56e67dd21ab3f30d1ff8b7bed08893f0a0db86449836189b361dd1e56ddb4b\"}},"
+				+ "\"variables\":{\"name\":\"Gucci\"}}", new String(hashed.toByteArray(), StandardCharsets.UTF_8));
+		JsonBuffer expanded = new JsonBuffer();
+		persistedQueries.expand(hashed, expanded, PersistedQueries.NOT_FOUND);
+		JsonObject registering = new JsonObject(new String(expanded.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals("{ __typename }", registering.getString("query"));
+		assertNotNull(registering.getJsonObject("extensions"));
+		persistedQueries.expand(hashed, expanded, PersistedQueries.NOT_SUPPORTED);
+		assertEquals("{\"query\":\"{ __typename }\",\"variables\":{\"name\":\"Gucci\"}}", new String(expanded.toByteArray(), StandardCharsets.UTF_8));
+		assertFalse(persistedQueries.isSupported());
+		
+		// Long enough to be compressed when its text is sent
+		StringBuilder query = new StringBuilder("query ($name: String) { echo(name: $name) }\n");
+		for (int i = 0; i < 20; i++) {
+			query.append("# Padding comment, as long as the mutations copied from GraphiQL\n");
+		}
+		
+		Vertx vertx = Vertx.vertx();
+		try {
+			for (AllowableValue executionMode : Arrays.asList(GraphQL.EXECUTION_MODE_SYNCHRONOUS, GraphQL.EXECUTION_MODE_ASYNCHRONOUS)) {
+				List<String> log = new CopyOnWriteArrayList<>();
+				TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+				runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + startPersistedQueryServer(vertx, log) + "/graphql");
+				runner.setProperty(GraphQL.QUERY, query.toString());
+				runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+				runner.setProperty(GraphQL.EXECUTION_MODE, executionMode.getValue());
+				runner.setProperty(GraphQL.PERSISTED_QUERIES, "true");
+				runner.setProperty(GraphQL.COMPRESS_REQUESTS, "true");
+				
+				for (String name : Arrays.asList("Gucci", "Prada", "Armani")) {
+					HashMap<String, String> attributes = new HashMap<String, String>();
+					attributes.put("name", name);
+					runner.enqueue("{}", attributes);
+					runner.run();
+				}
+				
+				runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 3);
+				for (MockFlowFile result : runner.getFlowFilesForRelationship(GraphQL.SUCCESS)) {
+					assertEquals("{\"data\":{\"echo\":\"" + result.getAttribute("name") + "\"}}", result.getAttribute("response"));
+				}
+				// Only the text is big enough to be compressed
+				assertEquals(Arrays.asList("hash null true", "query gzip true", "hash null true", "hash null true"), log);
+				assertEquals(1, runner.getCounterValue("GraphQL persisted query misses").longValue());
+			}
+			
+			List<String> log = new CopyOnWriteArrayList<>();
+			TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+			runner.setProperty(GraphQL.ENDPOINT, "http://localhost:" + startPersistedQueryServer(vertx, log) + "/graphql");
+			runner.setProperty(GraphQL.QUERY, query.toString());
+			runner.setProperty(GraphQL.ATTRIBUTE_NAMES, "name");
+			runner.setProperty(GraphQL.RESPONSE_DESTINATION, GraphQL.RESPONSE_DESTINATION_CONTENT.getValue());
+			runner.setProperty(GraphQL.PERSISTED_QUERIES, "true");
+			runner.setProperty(GraphQL.COMPRESS_RESPONSES, "false");
+			
+			HashMap<String, String> attributes = new HashMap<String, String>();
+			attributes.put("name", "Gucci");
+			runner.enqueue("{}", attributes);
+			runner.run();
+			
+			runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 1);
+			runner.getFlowFilesForRelationship(GraphQL.SUCCESS).get(0).assertContentEquals("{\"data\":{\"echo\":\"Gucci\"}}");
+			assertEquals(Arrays.asList("hash null false", "query null false"), log);
+		}
+		finally {
+			vertx.close();
+		}
+	}
 }
@@ -15,18 +15,1134 @@
  */
 package com.niledb.dataflow.processors;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-//import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
-//import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
 
-//import static org.junit.Assert.*;
+import static org.junit.Assert.*;
 
 public class LogicalDecodingTest {
 	
+	/**
+	 * Replication stream fed by the test instead of PostgreSQL. A message without buffer stands for a failure of the
+	 * connection.
+	 */
+	static class FakeReplicationStream implements PGReplicationStream {
+		
+		private static final class Message {
+			final ByteBuffer buffer;
+			final LogSequenceNumber lsn;
+			
+			Message(ByteBuffer buffer, LogSequenceNumber lsn) {
+				this.buffer = buffer;
+				this.lsn = lsn;
+			}
+		}
+		
+		private final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+		private volatile LogSequenceNumber lastReceiveLsn = LogSequenceNumber.INVALID_LSN;
+		volatile LogSequenceNumber flushedLsn = LogSequenceNumber.INVALID_LSN;
+		volatile LogSequenceNumber appliedLsn = LogSequenceNumber.INVALID_LSN;
+		final AtomicInteger statusUpdates = new AtomicInteger();
+		volatile boolean closed = false;
+		
+		FakeReplicationStream add(long lsn, String text) {
+			return add(lsn, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+		}
+		
+		FakeReplicationStream add(long lsn, ByteBuffer buffer) {
+			messages.add(new Message(buffer, LogSequenceNumber.valueOf(lsn)));
+			return this;
+		}
+		
+		FakeReplicationStream fail() {
+			messages.add(new Message(null, null));
+			return this;
+		}
+		
+		@Override
+		public ByteBuffer read() throws SQLException {
+			Message message;
+			try {
+				message = messages.take();
+			}
+			catch (InterruptedException e) {
+				throw new SQLException("Interrupted", e);
+			}
+			if (message.buffer == null) {
+				throw new SQLException("Connection reset");
+			}
+			lastReceiveLsn = message.lsn;
+			return message.buffer;
+		}
+		
+		@Override
+		public ByteBuffer readPending() throws SQLException {
+			Message message = messages.poll();
+			if (message == null) {
+				return null;
+			}
+			if (message.buffer == null) {
+				throw new SQLException("Connection reset");
+			}
+			lastReceiveLsn = message.lsn;
+			return message.buffer;
+		}
+		
+		@Override
+		public LogSequenceNumber getLastReceiveLSN() {
+			return lastReceiveLsn;
+		}
+		
+		@Override
+		public LogSequenceNumber getLastFlushedLSN() {
+			return flushedLsn;
+		}
+		
+		@Override
+		public LogSequenceNumber getLastAppliedLSN() {
+			return appliedLsn;
+		}
+		
+		@Override
+		public void setFlushedLSN(LogSequenceNumber lsn) {
+			flushedLsn = lsn;
+		}
+		
+		@Override
+		public void setAppliedLSN(LogSequenceNumber lsn) {
+			appliedLsn = lsn;
+		}
+		
+		@Override
+		public void forceUpdateStatus() throws SQLException {
+			statusUpdates.incrementAndGet();
+		}
+		
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+		
+		@Override
+		public void close() throws SQLException {
+			closed = true;
+		}
+	}
+	
+	/**
+	 * LogicalDecoding reading the fake streams given by the test, in order, instead of connecting to PostgreSQL. Once
+	 * they are exhausted, starting a stream fails.
+	 */
+	static class OfflineLogicalDecoding extends LogicalDecoding {
+		final Queue<FakeReplicationStream> streams = new ConcurrentLinkedQueue<>();
+		final List<LogSequenceNumber> startLsns = new ArrayList<>();
+		final List<Properties> slotOptions = new ArrayList<>();
+		volatile boolean slotExists = true;
+		
+		@Override
+		boolean slotExists(final ProcessContext context, String replicationSlot) {
+			return slotExists;
+		}
+		
+		@Override
+		PGReplicationStream startStream(final ProcessContext context, Properties slotOptions, LogSequenceNumber startLsn,
+				long statusIntervalMillis) throws Exception {
+			startLsns.add(startLsn);
+			this.slotOptions.add(slotOptions);
+			FakeReplicationStream stream = streams.poll();
+			if (stream == null) {
+				throw new SQLException("Connection refused");
+			}
+			return stream;
+		}
+	}
+	
+	private static TestRunner newOfflineRunner(OfflineLogicalDecoding processor) {
+		TestRunner runner = TestRunners.newTestRunner(processor);
+		runner.setProperty(LogicalDecoding.MAX_TIME_PER_TRIGGER, "100 ms");
+		runner.setProperty(LogicalDecoding.RECONNECT_BACKOFF, "10 ms");
+		return runner;
+	}
+	
+	/**
+	 * Triggers the processor until the relationship has the given number of FlowFiles, for 10 seconds at most.
+	 */
+	private static void runUntil(TestRunner runner, Relationship relationship, int flowFiles) {
+		runner.run(1, false, true);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (runner.getFlowFilesForRelationship(relationship).size() < flowFiles && System.nanoTime() - deadline < 0) {
+			runner.run(1, false, false);
+		}
+	}
+	
+	private static String content(MockFlowFile flowFile) {
+		return new String(flowFile.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Test of the test_decoding transactions written to the content, one line per change between their BEGIN and
+	 * COMMIT lines, without the transactions that have no changes.
+	 */
+	@org.junit.Test
+	public void testTransactionContent() {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(new FakeReplicationStream()
+				.add(0x100, "BEGIN 500")
+				.add(0x110, "table public.customers: INSERT: id[integer]:1 name[text]:'Ann'")
+				.add(0x120, "COMMIT 500")
+				.add(0x200, "BEGIN 501")
+				.add(0x210, "COMMIT 501")
+				.add(0x300, "BEGIN 502")
+				.add(0x310, "table public.orders: DELETE: id[integer]:7")
+				.add(0x320, "table public.orders: DELETE: id[integer]:8")
+				.add(0x330, "COMMIT 502"));
+		TestRunner runner = newOfflineRunner(processor);
+		runner.assertValid();
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 2);
+		runner.run(1, true, false);
+		
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(2, results.size());
+		assertEquals("BEGIN 500\ntable public.customers: INSERT: id[integer]:1 name[text]:'Ann'\nCOMMIT 500\n", content(results.get(0)));
+		results.get(0).assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), "text/plain");
+		results.get(0).assertAttributeEquals(LogicalDecoding.TRANSACTION_COUNT_ATTRIBUTE, "1");
+		results.get(0).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/120");
+		assertEquals("BEGIN 502\ntable public.orders: DELETE: id[integer]:7\ntable public.orders: DELETE: id[integer]:8\nCOMMIT 502\n",
+				content(results.get(1)));
+		results.get(1).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/330");
+		assertNull(processor.startLsns.get(0));
+		assertTrue(processor.slotOptions.get(0).isEmpty());
+	}
+	
+	private static FakeReplicationStream transactions(int count) {
+		FakeReplicationStream stream = new FakeReplicationStream();
+		for (int i = 1; i <= count; i++) {
+			stream.add(i * 0x100, "BEGIN " + i)
+					.add(i * 0x100 + 0x10, "table public.orders: INSERT: id[integer]:" + i)
+					.add(i * 0x100 + 0x20, "COMMIT " + i);
+		}
+		return stream;
+	}
+	
+	/**
+	 * Test of the transactions grouped in a FlowFile, of the last group transferred once there are no more messages, and
+	 * of the messages read per trigger.
+	 */
+	@org.junit.Test
+	public void testTransactionGrouping() {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(transactions(3));
+		TestRunner runner = newOfflineRunner(processor);
+		runner.setProperty(LogicalDecoding.TRANSACTIONS_PER_FLOWFILE, "2");
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 2);
+		runner.run(1, true, false);
+		
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(2, results.size());
+		assertEquals("BEGIN 1\ntable public.orders: INSERT: id[integer]:1\nCOMMIT 1\n"
+				+ "BEGIN 2\ntable public.orders: INSERT: id[integer]:2\nCOMMIT 2\n", content(results.get(0)));
+		results.get(0).assertAttributeEquals(LogicalDecoding.TRANSACTION_COUNT_ATTRIBUTE, "2");
+		results.get(0).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/220");
+		assertEquals("BEGIN 3\ntable public.orders: INSERT: id[integer]:3\nCOMMIT 3\n", content(results.get(1)));
+		results.get(1).assertAttributeEquals(LogicalDecoding.TRANSACTION_COUNT_ATTRIBUTE, "1");
+		
+		// A trigger can't reach the commit of the first transaction
+		processor = new OfflineLogicalDecoding();
+		processor.streams.add(transactions(1));
+		runner = newOfflineRunner(processor);
+		runner.setProperty(LogicalDecoding.MAX_MESSAGES_PER_TRIGGER, "2");
+		runner.run(1, false, true);
+		assertEquals(0, runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS).size());
+		runUntil(runner, LogicalDecoding.SUCCESS, 1);
+		runner.run(1, true, false);
+		runner.assertTransferCount(LogicalDecoding.SUCCESS, 1);
+	}
+	
+	/**
+	 * Test of the LSN of the transactions committed to NiFi, kept in the state and acknowledged to the server, including
+	 * the transactions without changes to deliver, and of replication resumed from it.
+	 */
+	@org.junit.Test
+	public void testAcknowledgement() throws Exception {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		FakeReplicationStream stream = transactions(2)
+				.add(0x300, "BEGIN 3")
+				.add(0x320, "COMMIT 3");
+		processor.streams.add(stream);
+		TestRunner runner = newOfflineRunner(processor);
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 2);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!"0/320".equals(runner.getStateManager().getState(Scope.LOCAL).get(LogicalDecoding.LSN_STATE_KEY))
+				&& System.nanoTime() - deadline < 0) {
+			runner.run(1, false, false);
+		}
+		runner.getStateManager().assertStateEquals(LogicalDecoding.LSN_STATE_KEY, "0/320", Scope.LOCAL);
+		runner.run(1, true, false);
+		
+		// Reported with a last status update when stopped
+		assertEquals(LogSequenceNumber.valueOf("0/320"), stream.flushedLsn);
+		assertEquals(LogSequenceNumber.valueOf("0/320"), stream.appliedLsn);
+		assertTrue(stream.statusUpdates.get() > 0);
+		assertTrue(stream.closed);
+		
+		// Restarted from the committed LSN, and from the state by a new instance
+		processor.streams.add(new FakeReplicationStream());
+		runner.run(1, true, true);
+		assertEquals(LogSequenceNumber.valueOf("0/320"), processor.startLsns.get(1));
+		
+		OfflineLogicalDecoding restarted = new OfflineLogicalDecoding();
+		restarted.streams.add(new FakeReplicationStream());
+		TestRunner restartedRunner = newOfflineRunner(restarted);
+		restartedRunner.getStateManager().setState(Collections.singletonMap(LogicalDecoding.LSN_STATE_KEY, "0/220"), Scope.LOCAL);
+		restartedRunner.run(1, true, true);
+		assertEquals(LogSequenceNumber.valueOf("0/220"), restarted.startLsns.get(0));
+	}
+	
+	/**
+	 * Test of two processors consuming in parallel, each one with its own stream, which stopping the other one doesn't
+	 * close.
+	 */
+	@org.junit.Test
+	public void testProcessorInstances() {
+		OfflineLogicalDecoding customers = new OfflineLogicalDecoding();
+		FakeReplicationStream customersStream = new FakeReplicationStream()
+				.add(0x100, "BEGIN 1")
+				.add(0x110, "table public.customers: INSERT: id[integer]:1")
+				.add(0x120, "COMMIT 1");
+		customers.streams.add(customersStream);
+		TestRunner customersRunner = newOfflineRunner(customers);
+		OfflineLogicalDecoding orders = new OfflineLogicalDecoding();
+		FakeReplicationStream ordersStream = transactions(1);
+		orders.streams.add(ordersStream);
+		TestRunner ordersRunner = newOfflineRunner(orders);
+		
+		runUntil(customersRunner, LogicalDecoding.SUCCESS, 1);
+		runUntil(ordersRunner, LogicalDecoding.SUCCESS, 1);
+		customersRunner.run(1, true, false);
+		assertTrue(customersStream.closed);
+		assertFalse(ordersStream.closed);
+		
+		ordersStream.add(0x200, "BEGIN 2")
+				.add(0x210, "table public.orders: INSERT: id[integer]:2")
+				.add(0x220, "COMMIT 2");
+		runUntil(ordersRunner, LogicalDecoding.SUCCESS, 2);
+		ordersRunner.run(1, true, false);
+		assertTrue(ordersStream.closed);
+		
+		assertTrue(content(customersRunner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS).get(0)).contains("public.customers"));
+		List<MockFlowFile> results = ordersRunner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(2, results.size());
+		assertTrue(content(results.get(1)).contains("id[integer]:2"));
+		assertEquals(1, customers.startLsns.size());
+		assertEquals(1, orders.startLsns.size());
+	}
+	
+	// Stands for an unchanged TOASTed value in the tuples of the pgoutput messages
+	private static final String UNCHANGED_TOAST = "\u0000unchanged";
+	
+	private interface MessageWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+	
+	/**
+	 * @return a pgoutput message (protocol version 1) of the given type
+	 */
+	private static ByteBuffer pgoutput(char type, MessageWriter writer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(type);
+			writer.write(out);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+	
+	private static ByteBuffer begin(long finalLsn, long commitTime, int xid) {
+		return pgoutput(PgOutputDecoder.BEGIN, out -> {
+			out.writeLong(finalLsn);
+			out.writeLong(commitTime);
+			out.writeInt(xid);
+		});
+	}
+	
+	private static ByteBuffer commit(long commitLsn, long commitTime) {
+		return pgoutput(PgOutputDecoder.COMMIT, out -> {
+			out.writeByte(0);
+			out.writeLong(commitLsn);
+			out.writeLong(commitLsn + 0x30);
+			out.writeLong(commitTime);
+		});
+	}
+	
+	/**
+	 * @param columns column names, the ones of the key prefixed with '*'
+	 */
+	private static ByteBuffer relation(int oid, String namespace, String name, String... columns) {
+		return pgoutput(PgOutputDecoder.RELATION, out -> {
+			out.writeInt(oid);
+			writeCString(out, namespace);
+			writeCString(out, name);
+			out.writeByte('d');
+			out.writeShort(columns.length);
+			for (String column : columns) {
+				out.writeByte(column.startsWith("*") ? 1 : 0);
+				writeCString(out, column.startsWith("*") ? column.substring(1) : column);
+				// Type OID (text) and modifier
+				out.writeInt(25);
+				out.writeInt(-1);
+			}
+		});
+	}
+	
+	private static ByteBuffer insert(int oid, String... values) {
+		return pgoutput(PgOutputDecoder.INSERT, out -> {
+			out.writeInt(oid);
+			out.writeByte('N');
+			writeTuple(out, values);
+		});
+	}
+	
+	/**
+	 * @param key values of the replica identity key, or null if it didn't change
+	 */
+	private static ByteBuffer update(int oid, String[] key, String... values) {
+		return pgoutput(PgOutputDecoder.UPDATE, out -> {
+			out.writeInt(oid);
+			if (key != null) {
+				out.writeByte('K');
+				writeTuple(out, key);
+			}
+			out.writeByte('N');
+			writeTuple(out, values);
+		});
+	}
+	
+	private static ByteBuffer delete(int oid, String... key) {
+		return pgoutput(PgOutputDecoder.DELETE, out -> {
+			out.writeInt(oid);
+			out.writeByte('K');
+			writeTuple(out, key);
+		});
+	}
+	
+	private static ByteBuffer truncate(int... oids) {
+		return pgoutput(PgOutputDecoder.TRUNCATE, out -> {
+			out.writeInt(oids.length);
+			out.writeByte(0);
+			for (int oid : oids) {
+				out.writeInt(oid);
+			}
+		});
+	}
+	
+	private static void writeCString(DataOutputStream out, String value) throws IOException {
+		out.write(value.getBytes(StandardCharsets.UTF_8));
+		out.writeByte(0);
+	}
+	
+	private static void writeTuple(DataOutputStream out, String... values) throws IOException {
+		out.writeShort(values.length);
+		for (String value : values) {
+			if (value == null) {
+				out.writeByte(PgOutputDecoder.NULL);
+			}
+			else if (value.equals(UNCHANGED_TOAST)) {
+				out.writeByte(PgOutputDecoder.UNCHANGED_TOAST);
+			}
+			else {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				out.writeByte(PgOutputDecoder.TEXT);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+	
+	/**
+	 * @return the message at a position other than 0 of a larger buffer, as returned by the driver
+	 */
+	private static ByteBuffer offset(ByteBuffer message) {
+		ByteBuffer buffer = ByteBuffer.allocate(message.remaining() + 7);
+		buffer.position(3);
+		buffer.put(message);
+		buffer.position(3);
+		buffer.limit(buffer.capacity() - 4);
+		return buffer;
+	}
+	
+	private static ChangeRouter passThrough() {
+		return new ChangeRouter(null, null, null, new LinkedHashMap<>(), LogicalDecoding.SUCCESS);
+	}
+	
+	private static String decodeJson(PgOutputDecoder decoder, ChangeJsonWriter writer, ByteBuffer message) {
+		writer.reset();
+		decoder.decode(message, writer);
+		StringBuilder json = new StringBuilder();
+		for (JsonBuffer buffer : writer.getBuffers().values()) {
+			json.append(new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8));
+		}
+		return json.toString();
+	}
+	
+	/**
+	 * Test of the pgoutput decoder, writing the changes as JSON lines: inserts with null and escaped values, updates with
+	 * and without the old key and with unchanged TOASTed values, deletes, truncates and relations sent again once altered.
+	 */
+	@org.junit.Test
+	public void testPgOutputDecoder() {
+		PgOutputDecoder decoder = new PgOutputDecoder();
+		ChangeJsonWriter writer = new ChangeJsonWriter(passThrough());
+		
+		assertEquals("", decodeJson(decoder, writer, relation(16384, "public", "customers", "*id", "name", "notes")));
+		assertEquals("", decodeJson(decoder, writer, relation(16390, "", "orders", "*id")));
+		assertEquals("", decodeJson(decoder, writer, begin(0x1000, 86400000000L, 0xFFFFFFFE)));
+		assertEquals(0xFFFFFFFE, decoder.getXid());
+		assertEquals(86400000000L, decoder.getCommitTime());
+		assertEquals(PgOutputDecoder.INSERT, decoder.decode(offset(insert(16384, "1", "Ann \"A\"", null)), writer));
+		assertEquals("{\"xid\":4294967294,\"op\":\"insert\",\"schema\":\"public\",\"table\":\"customers\","
+				+ "\"after\":{\"id\":\"1\",\"name\":\"Ann \\\"A\\\"\",\"notes\":null}}\n",
+				decodeJson(decoder, writer, offset(insert(16384, "1", "Ann \"A\"", null))));
+		assertEquals("{\"xid\":4294967294,\"op\":\"update\",\"schema\":\"public\",\"table\":\"customers\","
+				+ "\"after\":{\"id\":\"1\",\"name\":\"Ann\"}}\n",
+				decodeJson(decoder, writer, update(16384, null, "1", "Ann", UNCHANGED_TOAST)));
+		assertEquals("{\"xid\":4294967294,\"op\":\"update\",\"schema\":\"public\",\"table\":\"customers\","
+				+ "\"before\":{\"id\":\"1\",\"name\":null,\"notes\":null},\"after\":{\"id\":\"2\",\"name\":\"Ann\",\"notes\":\"\"}}\n",
+				decodeJson(decoder, writer, update(16384, new String[] { "1", null, null }, "2", "Ann", "")));
+		assertEquals("{\"xid\":4294967294,\"op\":\"delete\",\"schema\":\"pg_catalog\",\"table\":\"orders\","
+				+ "\"before\":{\"id\":\"7\"}}\n",
+				decodeJson(decoder, writer, delete(16390, "7")));
+		assertEquals("{\"xid\":4294967294,\"op\":\"truncate\",\"schema\":\"public\",\"table\":\"customers\"}\n"
+				+ "{\"xid\":4294967294,\"op\":\"truncate\",\"schema\":\"pg_catalog\",\"table\":\"orders\"}\n",
+				decodeJson(decoder, writer, truncate(16384, 16390)));
+		
+		// Altered, with a new column
+		decodeJson(decoder, writer, relation(16384, "public", "customers", "*id", "name", "notes", "email"));
+		assertEquals("{\"xid\":4294967294,\"op\":\"insert\",\"schema\":\"public\",\"table\":\"customers\","
+				+ "\"after\":{\"id\":\"3\",\"name\":\"Zoë\",\"notes\":null,\"email\":\"zoe@example.com\"}}\n",
+				decodeJson(decoder, writer, insert(16384, "3", "Zoë", null, "zoe@example.com")));
+		assertEquals(PgOutputDecoder.COMMIT, decoder.decode(commit(0x1000, 86400000000L), writer));
+		
+		try {
+			decoder.decode(insert(1, "1"), writer);
+			fail("Change of an unknown relation");
+		}
+		catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("relation 1"));
+		}
+		try {
+			decoder.decode(pgoutput('X', out -> {}), writer);
+			fail("Unknown message type");
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("'X'"));
+		}
+	}
+	
+	/**
+	 * Test of pgoutput streamed by the processor: the slot options, the JSON lines of the changes, and the transactions
+	 * committed before the start LSN, which are skipped when the server sends them again.
+	 */
+	@org.junit.Test
+	public void testPgOutput() throws Exception {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(new FakeReplicationStream()
+				.add(0x100, relation(16384, "public", "customers", "*id", "name"))
+				.add(0x100, begin(0x150, 0, 1))
+				.add(0x120, insert(16384, "1", "Ann"))
+				.add(0x160, commit(0x150, 0))
+				.add(0x200, begin(0x250, 0, 2))
+				.add(0x220, insert(16384, "2", "Zoë"))
+				.add(0x260, commit(0x250, 0)));
+		TestRunner runner = newOfflineRunner(processor);
+		runner.setProperty(LogicalDecoding.OUTPUT_PLUGIN, LogicalDecoding.OUTPUT_PLUGIN_PGOUTPUT.getValue());
+		runner.assertNotValid();
+		runner.setProperty(LogicalDecoding.PUBLICATIONS, "customers,orders");
+		runner.assertValid();
+		runner.getStateManager().setState(Collections.singletonMap(LogicalDecoding.LSN_STATE_KEY, "0/160"), Scope.LOCAL);
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 1);
+		runner.run(1, true, false);
+		
+		assertEquals("1", processor.slotOptions.get(0).getProperty("proto_version"));
+		assertEquals("customers,orders", processor.slotOptions.get(0).getProperty("publication_names"));
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(1, results.size());
+		assertEquals("{\"xid\":2,\"op\":\"insert\",\"schema\":\"public\",\"table\":\"customers\",\"after\":{\"id\":\"2\",\"name\":\"Zoë\"}}\n",
+				content(results.get(0)));
+		results.get(0).assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), "application/json");
+		results.get(0).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/260");
+	}
+	
+	/**
+	 * Writes a line per record with its operation and table, and keeps the records for the test to check them.
+	 */
+	private static class ChangeLinesRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+		final List<Record> written = new CopyOnWriteArrayList<>();
+		
+		@Override
+		public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+			return readSchema;
+		}
+		
+		@Override
+		public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out) {
+			return new RecordSetWriter() {
+				int count = 0;
+				
+				@Override
+				public WriteResult write(Record record) throws IOException {
+					out.write((record.getValue("op") + " " + record.getValue("schema") + "." + record.getValue("table") + "\n")
+							.getBytes(StandardCharsets.UTF_8));
+					written.add(record);
+					count++;
+					return WriteResult.of(1, new HashMap<>());
+				}
+				
+				@Override
+				public WriteResult write(RecordSet recordSet) throws IOException {
+					Record record;
+					while ((record = recordSet.next()) != null) {
+						write(record);
+					}
+					return WriteResult.of(count, new HashMap<>());
+				}
+				
+				@Override
+				public void beginRecordSet() {
+				}
+				
+				@Override
+				public WriteResult finishRecordSet() {
+					return WriteResult.of(count, new HashMap<>());
+				}
+				
+				@Override
+				public String getMimeType() {
+					return "text/x-changes";
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+			};
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getMap(Record record, String name) {
+		return (Map<String, Object>) record.getValue(name);
+	}
+	
+	/**
+	 * Test of the test_decoding parser, collecting the changes as records: quoted values and identifiers, null and
+	 * unchanged TOASTed values, key updates, truncates of several tables and the commit time given to every record.
+	 */
+	@org.junit.Test
+	public void testTestDecodingParser() {
+		TestDecodingParser parser = new TestDecodingParser();
+		ChangeRecords records = new ChangeRecords(passThrough());
+		records.lsn = "0/100";
+		
+		assertFalse(parser.parse("BEGIN 571", records));
+		assertFalse(parser.parse("table public.customers: INSERT: id[integer]:1 name[character varying]:'O''Donnell, Ann' "
+				+ "notes[text]:null tags[text[]]:'{a,\"b c\"}' memo[text]:'unchanged-toast-datum'", records));
+		assertFalse(parser.parse("table public.customers: UPDATE: old-key: id[integer]:1 new-tuple: id[integer]:2 "
+				+ "name[text]:'Ann' memo[text]:unchanged-toast-datum", records));
+		assertFalse(parser.parse("table public.customers: UPDATE: id[integer]:2 name[text]:'Ann '' new-tuple: x'", records));
+		assertFalse(parser.parse("table \"My Schema\".\"Order\": DELETE: \"Id\"[integer]:7", records));
+		assertFalse(parser.parse("table public.orders: DELETE: (no-tuple-data)", records));
+		assertFalse(parser.parse("table public.orders, public.items: TRUNCATE: (no-flags)", records));
+		assertEquals(7, records.getPendingCount());
+		assertTrue(records.getRecords().isEmpty());
+		assertTrue(parser.parse("COMMIT 571 (at 2018-09-20 12:34:56.789012+02)", records));
+		assertEquals(Timestamp.from(Instant.parse("2018-09-20T10:34:56.789012Z")), parser.getCommitTime());
+		
+		List<Record> changes = records.getRecords();
+		assertEquals(7, changes.size());
+		for (Record change : changes) {
+			assertEquals(571L, change.getValue("xid"));
+			assertEquals("0/100", change.getValue("lsn"));
+			assertEquals(parser.getCommitTime(), change.getValue("commitTime"));
+		}
+		Map<String, Object> after = getMap(changes.get(0), "after");
+		assertEquals(Arrays.asList("id", "name", "notes", "tags", "memo"), new ArrayList<>(after.keySet()));
+		assertEquals("O'Donnell, Ann", after.get("name"));
+		assertNull(after.get("notes"));
+		assertEquals("{a,\"b c\"}", after.get("tags"));
+		assertEquals("unchanged-toast-datum", after.get("memo"));
+		assertNull(changes.get(0).getValue("before"));
+		
+		assertEquals("update", changes.get(1).getValue("op"));
+		assertArrayEquals(new Object[] { "id" }, (Object[]) changes.get(1).getValue("keyColumns"));
+		assertEquals("1", getMap(changes.get(1), "before").get("id"));
+		assertEquals(Arrays.asList("id", "name"), new ArrayList<>(getMap(changes.get(1), "after").keySet()));
+		assertNull(changes.get(2).getValue("keyColumns"));
+		assertEquals("Ann ' new-tuple: x", getMap(changes.get(2), "after").get("name"));
+		
+		assertEquals("My Schema", changes.get(3).getValue("schema"));
+		assertEquals("Order", changes.get(3).getValue("table"));
+		assertArrayEquals(new Object[] { "Id" }, (Object[]) changes.get(3).getValue("keyColumns"));
+		assertNull(changes.get(4).getValue("before"));
+		assertEquals("truncate", changes.get(5).getValue("op"));
+		assertEquals("orders", changes.get(5).getValue("table"));
+		assertEquals("items", changes.get(6).getValue("table"));
+		
+		// Without include-timestamp
+		records.clear();
+		parser.parse("BEGIN 572", records);
+		parser.parse("table public.orders: INSERT: id[integer]:1", records);
+		assertTrue(parser.parse("COMMIT 572", records));
+		assertNull(parser.getCommitTime());
+		assertNull(records.getRecords().get(0).getValue("commitTime"));
+		
+		try {
+			parser.parse("table public.orders: INSERT: id[integer]:'1", records);
+			fail("Unterminated value");
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("Unterminated"));
+		}
+		try {
+			parser.parse("message: transactional: 1", records);
+			fail("Unexpected line");
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("Unexpected"));
+		}
+	}
+	
+	/**
+	 * Test of the pgoutput changes collected as records, with their key columns and the commit time sent at the
+	 * beginning of the transaction, which lets them be flushed before its commit, and the rows of the initial snapshot.
+	 */
+	@org.junit.Test
+	public void testChangeRecords() {
+		PgOutputDecoder decoder = new PgOutputDecoder();
+		ChangeRecords records = new ChangeRecords(passThrough());
+		
+		decoder.decode(relation(16384, "public", "customers", "*id", "name", "notes"), records);
+		decoder.decode(begin(0x1000, 1000001L, 9), records);
+		records.lsn = "0/1010";
+		decoder.decode(insert(16384, "1", "Ann", UNCHANGED_TOAST), records);
+		records.flush();
+		assertEquals(1, records.getRecords().size());
+		assertEquals(0, records.getPendingCount());
+		records.lsn = "0/1020";
+		decoder.decode(delete(16384, "1", null, null), records);
+		assertEquals(1, records.getPendingCount());
+		decoder.decode(commit(0x1000, 1000001L), records);
+		
+		List<Record> changes = records.getRecords();
+		assertEquals(2, changes.size());
+		assertEquals(LogicalDecoding.SUCCESS, records.getRelationships().get(1));
+		Timestamp commitTime = Timestamp.from(Instant.parse("2000-01-01T00:00:01.000001Z"));
+		assertEquals(commitTime, changes.get(0).getValue("commitTime"));
+		assertEquals(commitTime, changes.get(1).getValue("commitTime"));
+		assertEquals(9L, changes.get(0).getValue("xid"));
+		assertEquals("0/1010", changes.get(0).getValue("lsn"));
+		assertArrayEquals(new Object[] { "id" }, (Object[]) changes.get(0).getValue("keyColumns"));
+		assertEquals(Arrays.asList("id", "name"), new ArrayList<>(getMap(changes.get(0), "after").keySet()));
+		assertEquals("delete", changes.get(1).getValue("op"));
+		assertEquals("1", getMap(changes.get(1), "before").get("id"));
+		assertNull(changes.get(1).getValue("after"));
+		
+		// Key columns follow the relation once altered
+		decoder.decode(relation(16384, "public", "customers", "id", "*name", "notes"), records);
+		decoder.decode(insert(16384, "2", "Zoë", null), records);
+		records.flush();
+		assertArrayEquals(new Object[] { "name" }, (Object[]) records.getRecords().get(2).getValue("keyColumns"));
+		
+		// Rows of the initial snapshot are inserts outside of any transaction
+		records.clear();
+		records.lsn = "0/100";
+		records.begin(null, null);
+		records.change("insert", "public", "customers", null, null, Collections.singletonMap("id", "3"));
+		records.flush();
+		Record row = records.getRecords().get(0);
+		assertNull(row.getValue("xid"));
+		assertNull(row.getValue("commitTime"));
+		assertEquals("0/100", row.getValue("lsn"));
+		assertEquals("3", getMap(row, "after").get("id"));
+	}
+	
+	/**
+	 * Test of the changes written through a record writer, as they arrive, with test_decoding and the include-timestamp
+	 * slot option. Records of a stopped transaction are discarded.
+	 */
+	@org.junit.Test
+	public void testRecordWriter() throws Exception {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(transactions(2)
+				.add(0x300, "BEGIN 3")
+				.add(0x310, "table public.orders: INSERT: id[integer]:3"));
+		TestRunner runner = newOfflineRunner(processor);
+		ChangeLinesRecordWriter writer = new ChangeLinesRecordWriter();
+		runner.addControllerService("writer", writer);
+		runner.enableControllerService(writer);
+		runner.setProperty(LogicalDecoding.RECORD_WRITER, "writer");
+		runner.setProperty(LogicalDecoding.TRANSACTIONS_PER_FLOWFILE, "2");
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 1);
+		runner.run(1, true, false);
+		
+		assertEquals("true", processor.slotOptions.get(0).getProperty("include-timestamp"));
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(1, results.size());
+		assertEquals("insert public.orders\ninsert public.orders\n", content(results.get(0)));
+		results.get(0).assertAttributeEquals(GraphQL.RECORD_COUNT_ATTRIBUTE, "2");
+		results.get(0).assertAttributeEquals(LogicalDecoding.TRANSACTION_COUNT_ATTRIBUTE, "2");
+		results.get(0).assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), "text/x-changes");
+		results.get(0).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/220");
+		assertEquals("1", getMap(writer.written.get(0), "after").get("id"));
+		assertEquals("0/210", writer.written.get(1).getValue("lsn"));
+	}
+	
+	/**
+	 * Test of the router: included and excluded tables, operations, and routes checked in order, before the default
+	 * relationship.
+	 */
+	@org.junit.Test
+	public void testChangeRouter() {
+		assertTrue(passThrough().isPassThrough());
+		
+		Relationship customers = new Relationship.Builder().name("customers").build();
+		Relationship sales = new Relationship.Builder().name("sales").build();
+		LinkedHashMap<Relationship, Pattern> routes = new LinkedHashMap<>();
+		routes.put(customers, Pattern.compile("public\\.customers"));
+		routes.put(sales, Pattern.compile("public\\.(customers|orders)"));
+		ChangeRouter router = new ChangeRouter(Pattern.compile("public\\..*"), Pattern.compile(".*_audit"),
+				new HashSet<>(Arrays.asList("insert", "update", "truncate")), routes, LogicalDecoding.SUCCESS);
+		assertFalse(router.isPassThrough());
+		
+		assertEquals(customers, router.route("insert", "public", "customers"));
+		assertEquals(sales, router.route("update", "public", "orders"));
+		assertEquals(LogicalDecoding.SUCCESS, router.route("truncate", "public", "items"));
+		assertNull(router.route("delete", "public", "customers"));
+		assertNull(router.route("insert", "public", "orders_audit"));
+		assertNull(router.route("insert", "private", "orders"));
+		// Decisions are cached by table, whatever the operation
+		assertEquals(LogicalDecoding.SUCCESS, router.route("insert", "public", "items"));
+		assertNull(router.route("update", "public", "orders_audit"));
+		
+		assertFalse(new ChangeRouter(null, null, new HashSet<>(Arrays.asList("delete")), new LinkedHashMap<>(), LogicalDecoding.SUCCESS)
+				.isPassThrough());
+		
+		TestDecodingParser parser = new TestDecodingParser();
+		assertEquals(customers, parser.route("table public.customers: INSERT: id[integer]:1", router));
+		assertNull(parser.route("table public.customers: DELETE: id[integer]:1", router));
+		assertEquals(sales, parser.route("table public.orders_audit, public.orders: TRUNCATE: (no-flags)", router));
+		assertNull(parser.route("BEGIN 1", router));
+	}
+	
+	/**
+	 * Test of the test_decoding changes filtered and routed without a record writer, which are written as they are to the
+	 * FlowFile of their relationship, between the BEGIN and COMMIT lines of their transaction.
+	 */
+	@org.junit.Test
+	public void testRouting() {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(new FakeReplicationStream()
+				.add(0x100, "BEGIN 1")
+				.add(0x110, "table public.customers: INSERT: id[integer]:1")
+				.add(0x120, "table public.orders: INSERT: id[integer]:1")
+				.add(0x130, "table public.orders: DELETE: id[integer]:1")
+				.add(0x140, "table audit.log: INSERT: id[integer]:1")
+				.add(0x150, "COMMIT 1")
+				.add(0x200, "BEGIN 2")
+				.add(0x210, "table audit.log: INSERT: id[integer]:2")
+				.add(0x220, "COMMIT 2")
+				.add(0x300, "BEGIN 3")
+				.add(0x310, "table public.orders: INSERT: id[integer]:3")
+				.add(0x320, "COMMIT 3"));
+		TestRunner runner = newOfflineRunner(processor);
+		runner.setProperty(LogicalDecoding.INCLUDE_TABLES, "public\\..*");
+		runner.setProperty(LogicalDecoding.OPERATIONS, "insert, update");
+		runner.setProperty("customers", "public\\.customers");
+		runner.assertValid();
+		Relationship customers = new Relationship.Builder().name("customers").build();
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 2);
+		runner.run(1, true, false);
+		
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(customers);
+		assertEquals(1, results.size());
+		assertEquals("BEGIN 1\ntable public.customers: INSERT: id[integer]:1\nCOMMIT 1\n", content(results.get(0)));
+		results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(2, results.size());
+		assertEquals("BEGIN 1\ntable public.orders: INSERT: id[integer]:1\nCOMMIT 1\n", content(results.get(0)));
+		assertEquals("BEGIN 3\ntable public.orders: INSERT: id[integer]:3\nCOMMIT 3\n", content(results.get(1)));
+		runner.getStateManager().assertStateEquals(LogicalDecoding.LSN_STATE_KEY, "0/320", Scope.LOCAL);
+		// Nothing failed on the way
+		assertEquals(1, processor.startLsns.size());
+	}
+	
+	/**
+	 * Test of a large transaction split in fragments, the last one only with the commit, followed by a small one.
+	 */
+	@org.junit.Test
+	public void testFragments() throws Exception {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		FakeReplicationStream stream = new FakeReplicationStream().add(0x100, "BEGIN 9");
+		for (int i = 1; i <= 4; i++) {
+			stream.add(0x100 + i * 0x10, "table public.orders: INSERT: id[integer]:" + i);
+		}
+		stream.add(0x150, "COMMIT 9");
+		processor.streams.add(stream.add(0x200, "BEGIN 10")
+				.add(0x210, "table public.orders: INSERT: id[integer]:5")
+				.add(0x220, "COMMIT 10"));
+		TestRunner runner = newOfflineRunner(processor);
+		runner.setProperty(LogicalDecoding.MAX_CHANGES_PER_FLOWFILE, "2");
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 4);
+		runner.run(1, true, false);
+		
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(4, results.size());
+		assertEquals("BEGIN 9\ntable public.orders: INSERT: id[integer]:1\ntable public.orders: INSERT: id[integer]:2\n", content(results.get(0)));
+		assertEquals("BEGIN 9\ntable public.orders: INSERT: id[integer]:3\ntable public.orders: INSERT: id[integer]:4\n", content(results.get(1)));
+		assertEquals("BEGIN 9\nCOMMIT 9\n", content(results.get(2)));
+		for (int i = 0; i < 3; i++) {
+			results.get(i).assertAttributeEquals(LogicalDecoding.XID_ATTRIBUTE, "9");
+			results.get(i).assertAttributeEquals(LogicalDecoding.FRAGMENT_INDEX_ATTRIBUTE, String.valueOf(i));
+			results.get(i).assertAttributeEquals(LogicalDecoding.FRAGMENT_LAST_ATTRIBUTE, String.valueOf(i == 2));
+			results.get(i).assertAttributeEquals(LogicalDecoding.TRANSACTION_COUNT_ATTRIBUTE, i == 2 ? "1" : "0");
+		}
+		results.get(1).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/140");
+		results.get(2).assertAttributeEquals(LogicalDecoding.LSN_ATTRIBUTE, "0/150");
+		assertEquals("BEGIN 10\ntable public.orders: INSERT: id[integer]:5\nCOMMIT 10\n", content(results.get(3)));
+		results.get(3).assertAttributeNotExists(LogicalDecoding.XID_ATTRIBUTE);
+		results.get(3).assertAttributeNotExists(LogicalDecoding.FRAGMENT_INDEX_ATTRIBUTE);
+		runner.getStateManager().assertStateEquals(LogicalDecoding.LSN_STATE_KEY, "0/220", Scope.LOCAL);
+		
+		// With a record writer, the last fragment is an empty record set, and only its records would have a commit time
+		processor = new OfflineLogicalDecoding();
+		processor.streams.add(new FakeReplicationStream()
+				.add(0x100, "BEGIN 9")
+				.add(0x110, "table public.orders: INSERT: id[integer]:1")
+				.add(0x120, "table public.orders: INSERT: id[integer]:2")
+				.add(0x130, "COMMIT 9 (at 2018-09-20 12:34:56+00)"));
+		runner = newOfflineRunner(processor);
+		ChangeLinesRecordWriter writer = new ChangeLinesRecordWriter();
+		runner.addControllerService("writer", writer);
+		runner.enableControllerService(writer);
+		runner.setProperty(LogicalDecoding.RECORD_WRITER, "writer");
+		runner.setProperty(LogicalDecoding.MAX_CHANGES_PER_FLOWFILE, "2");
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 2);
+		runner.run(1, true, false);
+		
+		results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(2, results.size());
+		assertEquals("insert public.orders\ninsert public.orders\n", content(results.get(0)));
+		results.get(0).assertAttributeEquals(GraphQL.RECORD_COUNT_ATTRIBUTE, "2");
+		results.get(0).assertAttributeEquals(LogicalDecoding.FRAGMENT_LAST_ATTRIBUTE, "false");
+		assertEquals("", content(results.get(1)));
+		results.get(1).assertAttributeEquals(GraphQL.RECORD_COUNT_ATTRIBUTE, "0");
+		results.get(1).assertAttributeEquals(LogicalDecoding.FRAGMENT_LAST_ATTRIBUTE, "true");
+		assertNull(writer.written.get(0).getValue("commitTime"));
+	}
+	
+	/**
+	 * Test of the key ranges of the snapshot chunks, including keys too close to be split and the widest range of keys.
+	 */
+	@org.junit.Test
+	public void testSnapshotRanges() {
+		assertEquals(Arrays.asList("\"id\" < 26", "\"id\" >= 26 AND \"id\" < 51", "\"id\" >= 51 AND \"id\" < 76", "\"id\" >= 76"),
+				TableSnapshot.ranges("\"id\"", 1, 100, 4));
+		assertEquals(Arrays.asList("\"id\" < 0", "\"id\" >= 0"), TableSnapshot.ranges("\"id\"", -10, 9, 2));
+		assertEquals(Arrays.asList("\"id\" < 6", "\"id\" >= 6"), TableSnapshot.ranges("\"id\"", 5, 6, 10));
+		assertTrue(TableSnapshot.ranges("\"id\"", 5, 5, 10).isEmpty());
+		assertTrue(TableSnapshot.ranges("\"id\"", 1, 100, 1).isEmpty());
+		assertEquals(Arrays.asList("\"id\" < 0", "\"id\" >= 0"), TableSnapshot.ranges("\"id\"", Long.MIN_VALUE, Long.MAX_VALUE, 2));
+		List<String> ranges = TableSnapshot.ranges("\"id\"", Long.MIN_VALUE, Long.MAX_VALUE, 1000);
+		assertEquals(1000, ranges.size());
+		assertFalse(ranges.get(0).contains(">="));
+		assertFalse(ranges.get(999).contains("<"));
+		
+		// Cancelled before it connects
+		TableSnapshot snapshot = new TableSnapshot(() -> {
+			throw new AssertionError("Connected after being cancelled");
+		}, "00000003-00000002-1", LogSequenceNumber.valueOf("0/100"), passThrough(), null, null, 1000, 2, new MockComponentLog("snapshot", this));
+		snapshot.cancel();
+		try {
+			snapshot.run(null);
+			fail("Copied after being cancelled");
+		}
+		catch (Exception e) {
+			assertTrue(e.getMessage().contains("cancelled"));
+		}
+	}
+	
+	/**
+	 * Test of the reader thread: messages read ahead in order, status updates sent while the queue is full with the
+	 * acknowledged LSN, failures thrown once the messages before them have been taken, and stops.
+	 */
+	@org.junit.Test
+	public void testReplicationReader() throws Exception {
+		FakeReplicationStream stream = new FakeReplicationStream()
+				.add(0x100, "BEGIN 1")
+				.add(0x110, "COMMIT 1")
+				.add(0x200, "BEGIN 2")
+				.fail();
+		ReplicationReader reader = new ReplicationReader(stream, 1, 10, "test reader");
+		reader.acknowledge(LogSequenceNumber.valueOf("0/90"));
+		reader.start();
+		
+		// Back pressure, the server still hears from the reader
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (stream.statusUpdates.get() < 3 && System.nanoTime() - deadline < 0) {
+			Thread.sleep(10);
+		}
+		assertTrue(stream.statusUpdates.get() >= 3);
+		assertEquals(1, reader.getQueueSize());
+		assertEquals(LogSequenceNumber.valueOf("0/90"), stream.flushedLsn);
+		reader.acknowledge(LogSequenceNumber.valueOf("0/110"));
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!stream.flushedLsn.equals(LogSequenceNumber.valueOf("0/110")) && System.nanoTime() - deadline < 0) {
+			Thread.sleep(10);
+		}
+		assertEquals(LogSequenceNumber.valueOf("0/110"), stream.flushedLsn);
+		assertEquals(LogSequenceNumber.valueOf("0/110"), stream.appliedLsn);
+		
+		ReplicationReader.Message message = reader.poll(1, TimeUnit.SECONDS);
+		assertEquals("BEGIN 1", new String(message.buffer.array(), StandardCharsets.UTF_8));
+		assertEquals(LogSequenceNumber.valueOf("0/100"), message.lsn);
+		assertEquals(LogSequenceNumber.valueOf("0/110"), reader.poll(1, TimeUnit.SECONDS).lsn);
+		assertEquals(LogSequenceNumber.valueOf("0/200"), reader.poll(1, TimeUnit.SECONDS).lsn);
+		try {
+			reader.poll(1, TimeUnit.SECONDS);
+			fail("Failure of the stream not thrown");
+		}
+		catch (SQLException e) {
+			assertEquals("Connection reset", e.getMessage());
+		}
+		assertTrue(reader.stop(1000));
+		
+		// Stopped while blocked reading, without failing
+		stream = new FakeReplicationStream();
+		reader = new ReplicationReader(stream, 10, 10000, "test reader");
+		reader.start();
+		assertNull(reader.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(reader.stop(1000));
+		assertNull(reader.poll(0, TimeUnit.MILLISECONDS));
+		reader.acknowledge(LogSequenceNumber.valueOf("0/300"));
+		reader.forceUpdateStatus();
+		assertEquals(LogSequenceNumber.valueOf("0/300"), stream.flushedLsn);
+		assertEquals(1, stream.statusUpdates.get());
+	}
+	
+	/**
+	 * Test of a connection failure in the middle of a transaction, which is discarded and received again once the
+	 * stream is reopened from the last committed transaction, after a backoff.
+	 */
+	@org.junit.Test
+	public void testReconnect() {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(transactions(1)
+				.add(0x200, "BEGIN 2")
+				.add(0x210, "table public.orders: INSERT: id[integer]:2")
+				.fail());
+		FakeReplicationStream resumed = new FakeReplicationStream()
+				.add(0x200, "BEGIN 2")
+				.add(0x210, "table public.orders: INSERT: id[integer]:2")
+				.add(0x220, "COMMIT 2");
+		processor.streams.add(resumed);
+		TestRunner runner = newOfflineRunner(processor);
+		
+		runUntil(runner, LogicalDecoding.SUCCESS, 2);
+		runner.run(1, true, false);
+		
+		List<MockFlowFile> results = runner.getFlowFilesForRelationship(LogicalDecoding.SUCCESS);
+		assertEquals(2, results.size());
+		assertEquals("BEGIN 2\ntable public.orders: INSERT: id[integer]:2\nCOMMIT 2\n", content(results.get(1)));
+		assertEquals(Arrays.asList(null, LogSequenceNumber.valueOf("0/120")), processor.startLsns);
+		// The failure, and its throwable recorded apart by the mock logger
+		assertEquals(2, runner.getLogger().getErrorMessages().size());
+		assertTrue(resumed.closed);
+	}
+	
+	/**
+	 * Test of a replication slot missing where replication has to resume, i.e. after a failover to a standby without it,
+	 * which fails instead of starting from wherever the slot would be created again.
+	 */
+	@org.junit.Test
+	public void testMissingSlot() throws Exception {
+		OfflineLogicalDecoding processor = new OfflineLogicalDecoding();
+		processor.streams.add(transactions(1));
+		processor.slotExists = false;
+		TestRunner runner = newOfflineRunner(processor);
+		runner.setProperty(LogicalDecoding.DB_HOST, "db1,db2");
+		runner.getStateManager().setState(Collections.singletonMap(LogicalDecoding.LSN_STATE_KEY, "0/100"), Scope.LOCAL);
+		
+		runner.run(3, false, true);
+		assertTrue(processor.startLsns.isEmpty());
+		runner.assertTransferCount(LogicalDecoding.SUCCESS, 0);
+		// The mock logger records the failure in a message of its own
+		Throwable failure = runner.getLogger().getErrorMessages().get(1).getThrowable();
+		assertTrue(failure instanceof IllegalStateException);
+		assertTrue(failure.getMessage().startsWith("Replication slot slot doesn't exist on the primary of db1,db2"));
+		
+		processor.slotExists = true;
+		runUntil(runner, LogicalDecoding.SUCCESS, 1);
+		runner.run(1, true, false);
+		assertEquals(Arrays.asList(LogSequenceNumber.valueOf("0/100")), processor.startLsns);
+	}
+	
 	/**
 	 * Test of onTrigger method, of class JsonProcessor.
 	 */
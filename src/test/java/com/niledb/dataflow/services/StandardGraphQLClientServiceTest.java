@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2018 NileDB, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.niledb.dataflow.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import com.niledb.dataflow.processors.GraphQL;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+
+import static org.junit.Assert.*;
+
+public class StandardGraphQLClientServiceTest {
+
+	/**
+	 * Test of enabling and disabling the service: the pooled client only exists while the service is enabled, with the
+	 * configured timeouts.
+	 */
+	@org.junit.Test
+	public void testEnableDisable() throws Exception {
+		TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+		StandardGraphQLClientService clientService = new StandardGraphQLClientService();
+		runner.addControllerService("client", clientService);
+		runner.setProperty(clientService, StandardGraphQLClientService.SOCKET_TIMEOUT, "2 sec");
+		runner.setProperty(clientService, StandardGraphQLClientService.IDLE_TIMEOUT, "10 sec");
+		runner.assertValid(clientService);
+		assertNull(clientService.getHttpClient());
+
+		runner.enableControllerService(clientService);
+		assertTrue(runner.isControllerServiceEnabled(clientService));
+		assertNotNull(clientService.getHttpClient());
+		assertEquals(StandardGraphQLClientService.DEFAULT_CONNECT_TIMEOUT, clientService.getConnectTimeout());
+		assertEquals(2000, clientService.getSocketTimeout());
+		assertEquals(10000, clientService.getIdleTimeout());
+
+		runner.disableControllerService(clientService);
+		assertFalse(runner.isControllerServiceEnabled(clientService));
+		assertNull(clientService.getHttpClient());
+
+		// Enabled again with a new pool
+		runner.enableControllerService(clientService);
+		assertNotNull(clientService.getHttpClient());
+		runner.disableControllerService(clientService);
+	}
+
+	/**
+	 * Test of two GraphQL processors referencing the same service: their requests share the pooled client, and so the
+	 * kept-alive connection to the service.
+	 */
+	@org.junit.Test
+	public void testSharedClient() throws Exception {
+		Vertx vertx = Vertx.vertx();
+		try {
+			AtomicInteger connections = new AtomicInteger();
+			AtomicInteger requests = new AtomicInteger();
+			CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+			vertx.createHttpServer()
+					.connectionHandler(connection -> connections.incrementAndGet())
+					.requestHandler(request -> request.bodyHandler(body -> {
+						requests.incrementAndGet();
+						request.response()
+								.putHeader("Content-Type", "application/json")
+								.end("{\"data\":{\"__typename\":\"Query\"}}");
+					}))
+					.listen(0, result -> listening.complete(result.result()));
+			String endpoint = "http://localhost:" + listening.get().actualPort() + "/graphql";
+
+			StandardGraphQLClientService clientService = new StandardGraphQLClientService();
+			TestRunner first = newRunner(endpoint);
+			first.addControllerService("client", clientService);
+			first.enableControllerService(clientService);
+			CloseableHttpClient httpClient = clientService.getHttpClient();
+
+			// The same enabled service, as NiFi shares it between the processors of a flow
+			TestRunner second = newRunner(endpoint);
+			((MockProcessContext) second.getProcessContext()).addControllerService(clientService, "client").setEnabled(true);
+
+			for (TestRunner runner : new TestRunner[] { first, second, first }) {
+				runner.enqueue("{}");
+				runner.run();
+				runner.assertAllFlowFilesTransferred(GraphQL.SUCCESS, 1);
+				runner.clearTransferState();
+			}
+
+			assertEquals(3, requests.get());
+			assertEquals(1, connections.get());
+			// Stopping the processors doesn't close the client of the service
+			assertSame(httpClient, clientService.getHttpClient());
+
+			first.disableControllerService(clientService);
+			assertNull(clientService.getHttpClient());
+		}
+		finally {
+			vertx.close();
+		}
+	}
+
+	private static TestRunner newRunner(String endpoint) {
+		TestRunner runner = TestRunners.newTestRunner(new GraphQL());
+		runner.setProperty(GraphQL.HTTP_CLIENT_SERVICE, "client");
+		runner.setProperty(GraphQL.ENDPOINT, endpoint);
+		runner.setProperty(GraphQL.QUERY, "{ __typename }");
+		return runner;
+	}
+}